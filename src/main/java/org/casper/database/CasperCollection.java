@@ -1,56 +1,1151 @@
 package org.casper.database;
 
+import org.casper.exception.CasperException;
+import org.casper.index.CasperIndex;
+import org.casper.index.HashIndex;
+import org.casper.index.RangeIndex;
+import org.casper.persistence.RecordCodec;
+import org.casper.query.AccessPath;
+import org.casper.query.Column;
+import org.casper.query.ColumnView;
+import org.casper.query.CompiledQuery;
+import org.casper.query.QuerySource;
+import org.casper.stereotype.CasperColumnar;
+import org.casper.stereotype.CasperId;
+import org.casper.stereotype.CasperOffHeap;
+import org.casper.stereotype.CasperIndexed;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.FieldAccessor;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The records of one collection, stored as versioned rows. Readers never
+ * block: an iterator, {@link #toList()} or {@link #count()} sees the
+ * collection as of the last completed write, however many writes follow.
+ * Writers read the key and indexed fields of a record before taking the
+ * commit lock, which they hold only to publish the new rows. Index lookups
+ * see every completed write, and a write in progress either whole or not
+ * at all.
+ */
+public class CasperCollection<T> implements Iterable<T>, QuerySource<T> {
+    private static final Object NULL = new Object();
+    private static final int COMPACT_THRESHOLD = 1024;
 
-public class CasperCollection<T> implements Iterable<T> {
-    private List<T> records;
-    private Map<String, Object> indexes;
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentMap<Object, Row<T>> primary = new ConcurrentHashMap<>();
+    private final ChangeFeed<T> feed;
+    private volatile Schema<T> schema;
+    private volatile Journal journal;
+    private volatile State state = new State(new Object[16], 0, 0, 0, null);
+    private long seq;
+    // incremented before and after a write changes the key map and indexes,
+    // so it is odd while they may hold both the old and the new rows
+    private volatile long changes;
 
     public CasperCollection() {
-        records = Collections.synchronizedList(new ArrayList<T>());
-        indexes = Collections.synchronizedMap(new HashMap<String, Object>());
+        this(null);
     }
 
-    public synchronized T add(T t) {
-        for (T e : records) {
-            if (t.equals(e)) {
-                records.remove(e);
-                break;
-            }
+    public CasperCollection(String name) {
+        this.name = name;
+        feed = new ChangeFeed<>(name);
+    }
+
+    public T add(T t) {
+        Schema<T> s = resolve(t);
+        Object id = s.key != null ? s.keyOf(t) : null;
+        Object[] indexed = s.indexValues(t);
+        byte[] encoded = s.encode(t);
+
+        long position;
+        lock.lock();
+        try {
+            State current = state;
+            Row<T> old = s.key != null ? primary.get(id) : find(current, s.identity(t, encoded));
+            Row<T> added = s.row(t, encoded, id, indexed, ++seq, current.version + 1);
+            position = commit(s, current, Collections.singletonList(added),
+                    old != null ? Collections.singletonList(old) : Collections.<Row<T>>emptyList());
+        } finally {
+            lock.unlock();
         }
 
-        records.add(t);
+        sync(position);
         return t;
     }
 
-    public synchronized void remove(T t) {
-        for (T e : records) {
-            if (t.equals(e)) {
-                records.remove(e);
-                break;
+    /**
+     * Adds or replaces many records as one write. Replaced records are found
+     * with one hash lookup each, or one pass over the collection when it is
+     * not keyed, and the whole batch becomes visible at once. When the batch
+     * holds the same record more than once, the last copy wins.
+     *
+     * @param records the records to save
+     * @return the number of records now stored for the batch
+     * @since 1.2
+     */
+    public int addAll(Collection<? extends T> records) {
+        if (records.isEmpty())
+            return 0;
+
+        Schema<T> s = resolve(records.iterator().next());
+
+        // remove before put so a repeated record takes its last position
+        Map<Object, T> batch = new LinkedHashMap<>();
+        for (T t : records) {
+            Object id = s.key != null ? s.keyOf(t) : s.identity(t, s.encode(t));
+            batch.remove(id);
+            batch.put(id, t);
+        }
+
+        List<Object[]> indexed = new ArrayList<>(batch.size());
+        List<byte[]> encoded = new ArrayList<>(batch.size());
+        for (T t : batch.values()) {
+            indexed.add(s.indexValues(t));
+            encoded.add(s.encode(t));
+        }
+
+        long position;
+        lock.lock();
+        try {
+            State current = state;
+            List<Row<T>> removed = s.key != null ? findAll(batch.keySet()) : findAll(current, batch.keySet());
+
+            List<Row<T>> added = new ArrayList<>(batch.size());
+            int i = 0;
+            for (Map.Entry<Object, T> e : batch.entrySet()) {
+                added.add(s.row(e.getValue(), encoded.get(i), s.key != null ? e.getKey() : null,
+                        indexed.get(i), ++seq, current.version + 1));
+                i++;
+            }
+
+            position = commit(s, current, added, removed);
+        } finally {
+            lock.unlock();
+        }
+
+        sync(position);
+        return batch.size();
+    }
+
+    public void remove(T t) {
+        Schema<T> s = schema;
+        if (s == null || t == null)
+            return;
+
+        Object id = s.key != null ? s.keyOf(t) : s.identity(t, s.encode(t));
+        long position = -1;
+        lock.lock();
+        try {
+            State current = state;
+            Row<T> old = s.key != null ? primary.get(id) : find(current, id);
+            if (old != null)
+                position = commit(s, current, Collections.<Row<T>>emptyList(), Collections.singletonList(old));
+        } finally {
+            lock.unlock();
+        }
+
+        sync(position);
+    }
+
+    /**
+     * Removes many records as one write, matching them by primary key, or
+     * by equals when the collection is not keyed
+     *
+     * @param records the records to remove
+     * @return the number of records removed
+     * @since 1.2
+     */
+    public int removeAll(Collection<?> records) {
+        Schema<T> s = schema;
+        if (s == null || records.isEmpty())
+            return 0;
+
+        Set<Object> ids = new HashSet<>();
+        for (Object t : records) {
+            if (t != null)
+                ids.add(s.key != null ? s.keyOf(t) : s.identity(t, s.encode(t)));
+        }
+
+        List<Row<T>> removed;
+        long position;
+        lock.lock();
+        try {
+            State current = state;
+            removed = s.key != null ? findAll(ids) : findAll(current, ids);
+            position = commit(s, current, Collections.<Row<T>>emptyList(), removed);
+        } finally {
+            lock.unlock();
+        }
+
+        sync(position);
+        return removed.size();
+    }
+
+    /**
+     * Removes the records matching a query in one pass over the collection.
+     * Matches are tested against the committed rows under the commit lock,
+     * so nothing is removed if the query fails on any record.
+     *
+     * @param query the records to remove
+     * @return the number of records removed
+     * @throws CasperException if the query cannot be evaluated
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public int removeAll(CompiledQuery query) throws CasperException {
+        Schema<T> s = schema;
+        if (s == null)
+            return 0;
+
+        List<Row<T>> removed = new ArrayList<>();
+        long position;
+        lock.lock();
+        try {
+            State current = state;
+            for (int i = 0; i < current.size; i++) {
+                Row<T> row = (Row<T>) current.rows[i];
+                if (row.isLive() && query.test(row.value())) {
+                    removed.add(row);
+                    if (removed.size() == query.getLimit())
+                        break;
+                }
             }
+
+            position = commit(s, current, Collections.<Row<T>>emptyList(), removed);
+        } finally {
+            lock.unlock();
+        }
+
+        sync(position);
+        return removed.size();
+    }
+
+    /**
+     * Removes the record stored under the given primary key
+     *
+     * @param id the value of the {@link CasperId} field
+     * @return the removed record, or null if there was none or the
+     * collection is not keyed
+     * @since 1.2
+     */
+    public T removeById(Object id) {
+        Schema<T> s = schema;
+        if (s == null || s.key == null)
+            return null;
+
+        Row<T> old;
+        long position = -1;
+        lock.lock();
+        try {
+            old = primary.get(id != null ? id : NULL);
+            if (old != null)
+                position = commit(s, state, Collections.<Row<T>>emptyList(), Collections.singletonList(old));
+        } finally {
+            lock.unlock();
+        }
+
+        sync(position);
+        return old != null ? old.value() : null;
+    }
+
+    /**
+     * Looks up a record by its primary key
+     *
+     * @param id the value of the {@link CasperId} field
+     * @return the matching record, or null if there is none or the
+     * collection is not keyed
+     * @since 1.2
+     */
+    public T get(Object id) {
+        if (!isKeyed())
+            return null;
+
+        Row<T> row = primary.get(id != null ? id : NULL);
+        return row != null ? row.value() : null;
+    }
+
+    /**
+     * Registers a query whose listener is told, on the given executor, about
+     * every later write that adds a record to its results, changes one in
+     * them or takes one out
+     *
+     * @param query    the records to watch
+     * @param listener told about each change, in write order
+     * @param executor runs the listener
+     * @return the subscription, to cancel
+     * @since 1.2
+     */
+    public Subscription subscribe(CompiledQuery query, ChangeListener<? super T> listener, Executor executor) {
+        if (query == null || listener == null || executor == null)
+            throw new IllegalArgumentException("Query, listener and executor are required");
+        return feed.subscribe(query, listener, executor);
+    }
+
+    public boolean isKeyed() {
+        Schema<T> s = schema;
+        return s != null && s.key != null;
+    }
+
+    /**
+     * @return a number that changes whenever a record is added or removed
+     * @since 1.2
+     */
+    public long getVersion() {
+        return state.version;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public AccessPath getAccessPath(String field) {
+        Schema<T> s = schema;
+        if (s == null)
+            return AccessPath.FullScan;
+        if (s.key != null && s.key.getName().equals(field))
+            return AccessPath.PrimaryKey;
+
+        CasperIndex<Row<T>> index = s.index(field);
+        if (index instanceof RangeIndex)
+            return AccessPath.RangeIndex;
+
+        return index != null ? AccessPath.HashIndex : AccessPath.FullScan;
+    }
+
+    /**
+     * Estimates how many records an equality lookup on the field would
+     * return without scanning the collection
+     *
+     * @param field the field being compared
+     * @param value the value it must equal
+     * @return the number of candidate records, or -1 if the field has no
+     * primary or hash index usable for this value
+     * @since 1.2
+     */
+    @Override
+    public int estimate(String field, Object value) {
+        return count(field, value);
+    }
+
+    /**
+     * Counts the records whose field equals the value using the primary key
+     * or a {@link CasperIndexed} hash index
+     *
+     * @return the number of records, or -1 if the field has no primary or
+     * hash index usable for this value
+     * @since 1.2
+     */
+    @Override
+    public int count(String field, Object value) {
+        Schema<T> s = schema;
+        if (s == null)
+            return -1;
+        if (s.isKeyField(field, value))
+            return primary.containsKey(value) ? 1 : 0;
+
+        CasperIndex<Row<T>> index = s.index(field);
+        if (index == null || !accepts(s.accessor(field), value))
+            return -1;
+
+        return index.count(value);
+    }
+
+    /**
+     * Finds the records whose field equals the value using the primary
+     * key or a {@link CasperIndexed} hash index
+     *
+     * @param field the field being compared
+     * @param value the value it must equal
+     * @return the matching records, or null if the field has no index
+     * usable for this value
+     * @since 1.2
+     */
+    @Override
+    public List<T> lookup(String field, Object value) {
+        Schema<T> s = schema;
+        if (s == null)
+            return null;
+        if (s.isKeyField(field, value)) {
+            Row<T> row = primary.get(value);
+            return row != null ? Collections.singletonList(row.value()) : Collections.<T>emptyList();
+        }
+
+        CasperIndex<Row<T>> index = s.index(field);
+        if (index == null || !accepts(s.accessor(field), value))
+            return null;
+
+        long c;
+        List<T> values;
+        do {
+            c = changes;
+            values = values(index.find(value));
+        } while (!isStable(c));
+        return values;
+    }
+
+    /**
+     * Estimates how many records lie within a range of the field without
+     * scanning the collection or walking the whole range. A null bound
+     * leaves that side open.
+     *
+     * @param limit the count past which the exact figure does not matter
+     * @return the number of candidate records, exact up to the limit, or -1
+     * if the field has no ordered index usable for these bounds
+     * @since 1.2
+     */
+    @Override
+    public int estimate(String field, Object from, boolean fromInclusive,
+                        Object to, boolean toInclusive, int limit) {
+        RangeIndex<Row<T>> index = rangeIndex(field, from, to);
+        return index != null ? index.estimate(from, fromInclusive, to, toInclusive, limit) : -1;
+    }
+
+    /**
+     * Counts the records whose field lies within a range using an ordered
+     * {@link CasperIndexed} index. A null bound leaves that side open.
+     *
+     * @return the number of records, or -1 if the field has no ordered
+     * index usable for these bounds
+     * @since 1.2
+     */
+    @Override
+    public int count(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        RangeIndex<Row<T>> index = rangeIndex(field, from, to);
+        return index != null ? index.count(from, fromInclusive, to, toInclusive) : -1;
+    }
+
+    /**
+     * Finds the records whose field lies within a range using an ordered
+     * {@link CasperIndexed} index. A null bound leaves that side open.
+     *
+     * @return the matching records in field order, or null if the field has
+     * no ordered index usable for these bounds
+     * @since 1.2
+     */
+    @Override
+    public List<T> lookup(String field, Object from, boolean fromInclusive,
+                          Object to, boolean toInclusive) {
+        RangeIndex<Row<T>> index = rangeIndex(field, from, to);
+        if (index == null)
+            return null;
+
+        long c;
+        List<T> values;
+        do {
+            c = changes;
+            values = values(index.range(from, fromInclusive, to, toInclusive));
+        } while (!isStable(c));
+        return values;
+    }
+
+    /**
+     * Reads the records whose field lies within a range lazily, in field
+     * order, from an ordered {@link CasperIndexed} index. A null bound leaves
+     * that side open; a range open on both sides reads the whole index, which
+     * holds every record only when the field is a primitive.
+     *
+     * @return the records in field order, or in reverse, or null if the field
+     * has no ordered index usable for these bounds
+     * @since 1.2
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterable<T> ordered(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                               boolean descending) {
+        RangeIndex<Row<T>> index;
+        if (from == null && to == null) {
+            Schema<T> s = schema;
+            CasperIndex<Row<T>> i = s != null ? s.index(field) : null;
+            if (!(i instanceof RangeIndex) || !s.accessor(field).getType().isPrimitive())
+                return null;
+            index = (RangeIndex<Row<T>>) i;
+        } else {
+            index = rangeIndex(field, from, to);
+            if (index == null)
+                return null;
         }
+
+        final Iterable<Row<T>> rows = index.iterate(from, fromInclusive, to, toInclusive, descending);
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final Iterator<Row<T>> it = rows.iterator();
+                return new Iterator<T>() {
+                    private Row<T> next = advance();
+
+                    private Row<T> advance() {
+                        while (it.hasNext()) {
+                            Row<T> row = it.next();
+                            if (isCurrent(row))
+                                return row;
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (next == null)
+                            throw new NoSuchElementException();
+                        Row<T> row = next;
+                        next = advance();
+                        return row.value();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
     }
 
+    /**
+     * @return a copy of the records as of the last completed write
+     */
+    @Override
     public List<T> toList() {
-        return records;
+        State s = state;
+        List<T> list = new ArrayList<>(s.live);
+        for (Iterator<T> it = new SnapshotIterator(s); it.hasNext(); )
+            list.add(it.next());
+        return list;
     }
 
+    @Override
     public int count() {
-        return records.size();
+        return state.live;
     }
 
-    public void sort() {
-        Collections.sort(records, new Comparator<T>() {
+    /**
+     * Runs a query over every record as of now, over the columns when the
+     * record type is {@link CasperColumnar}. A query selecting fields of
+     * {@link CasperOffHeap} records decodes only the fields it reads.
+     */
+    @Override
+    public List<T> scan(CompiledQuery filter) throws CasperException {
+        final State s = state;
+        Schema<T> schema = this.schema;
+        final Set<String> fields = schema != null && schema.offHeap != null ? filter.getFields() : null;
+        if (s.columns != null)
+            return filter.execute(new SnapshotView(s, fields));
+
+        return filter.execute(new Iterable<T>() {
             @Override
-            public int compare(T o1, T o2) {
-                return 0;
+            public Iterator<T> iterator() {
+                return new SnapshotIterator(s, fields);
             }
         });
     }
 
+    /**
+     * Records are kept in insertion order; an upsert moves a record to the
+     * end. Kept for compatibility, this does nothing.
+     */
+    public void sort() {
+    }
+
+    /**
+     * @return an iterator over the records as of the last completed write,
+     * unaffected by later writes
+     */
     @Override
     public Iterator<T> iterator() {
-        return records.iterator();
+        return new SnapshotIterator(state);
+    }
+
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Applies a logged write again, giving the added rows the sequence
+     * numbers they were logged with. Removed rows are found by their
+     * sequence number, since rows are stored in sequence order. Writes
+     * already covered by a loaded snapshot are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    void replay(long version, long[] removed, long[] added, List<T> records) {
+        lock.lock();
+        try {
+            State current = state;
+            Schema<T> s = records.isEmpty() ? schema : resolve(records.get(0));
+            if (s == null || version <= current.version)
+                return;
+
+            List<Row<T>> dead = new ArrayList<>(removed.length);
+            for (long n : removed) {
+                int i = search(current, n);
+                if (i >= 0 && ((Row<T>) current.rows[i]).isLive())
+                    dead.add((Row<T>) current.rows[i]);
+            }
+
+            List<Row<T>> rows = new ArrayList<>(added.length);
+            for (int i = 0; i < added.length; i++) {
+                T t = records.get(i);
+                rows.add(s.row(t, s.encode(t), s.key != null ? s.keyOf(t) : null, s.indexValues(t), added[i], version));
+                seq = Math.max(seq, added[i]);
+            }
+
+            commit(s, current, rows, dead, version);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the collection as of now. Only taking the snapshot holds the
+     * commit lock; the rows are written while writers carry on.
+     */
+    void writeSnapshot(DataOutput out) throws IOException, CasperException {
+        State current;
+        long last;
+        lock.lock();
+        try {
+            current = state;
+            last = seq;
+        } finally {
+            lock.unlock();
+        }
+
+        out.writeLong(current.version);
+        out.writeLong(last);
+        out.writeInt(current.live);
+        for (int i = 0; i < current.size; i++) {
+            Row<?> row = (Row<?>) current.rows[i];
+            if (row.isVisible(current.version)) {
+                out.writeLong(row.seq);
+                row.write(out);
+            }
+        }
+    }
+
+    /**
+     * Loads rows written by {@link #writeSnapshot} into an empty collection,
+     * restoring its version so the log can be replayed from there
+     */
+    @SuppressWarnings("unchecked")
+    void readSnapshot(DataInput in) throws IOException {
+        long version = in.readLong();
+        long last = in.readLong();
+        int count = in.readInt();
+
+        lock.lock();
+        try {
+            List<Row<T>> rows = new ArrayList<>(count);
+            Schema<T> s = null;
+            for (int i = 0; i < count; i++) {
+                long n = in.readLong();
+                T t = (T) RecordCodec.read(in);
+                if (s == null)
+                    s = resolve(t);
+                rows.add(s.row(t, s.encode(t), s.key != null ? s.keyOf(t) : null, s.indexValues(t), n, version));
+            }
+
+            if (s != null)
+                commit(s, state, rows, Collections.<Row<T>>emptyList(), version);
+            else
+                state = new State(state.rows, 0, version, 0, null);
+            seq = last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int search(State s, long seq) {
+        int low = 0, high = s.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long n = ((Row<Object>) s.rows[mid]).seq;
+            if (n < seq)
+                low = mid + 1;
+            else if (n > seq)
+                high = mid - 1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    private Schema<T> resolve(T t) {
+        Schema<T> s = schema;
+        if (s != null)
+            return s;
+
+        lock.lock();
+        try {
+            if (schema == null)
+                schema = new Schema<>(t.getClass());
+            return schema;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // unkeyed records are matched by equals, or by encoding off the heap, newest first
+    @SuppressWarnings("unchecked")
+    private Row<T> find(State s, Object identity) {
+        for (int i = s.size - 1; i >= 0; i--) {
+            Row<T> row = (Row<T>) s.rows[i];
+            if (row.isLive() && identity.equals(row.identity()))
+                return row;
+        }
+
+        return null;
+    }
+
+    private List<Row<T>> findAll(Set<Object> ids) {
+        List<Row<T>> rows = new ArrayList<>();
+        for (Object id : ids) {
+            Row<T> row = primary.get(id);
+            if (row != null)
+                rows.add(row);
+        }
+
+        return rows;
+    }
+
+    // one pass over the live rows of an unkeyed collection
+    @SuppressWarnings("unchecked")
+    private List<Row<T>> findAll(State s, Set<Object> records) {
+        List<Row<T>> rows = new ArrayList<>();
+        for (int i = 0; i < s.size; i++) {
+            Row<T> row = (Row<T>) s.rows[i];
+            if (row.isLive() && records.contains(row.identity()))
+                rows.add(row);
+        }
+
+        return rows;
+    }
+
+    /**
+     * Applies one write: logs it, then replaces the removed rows with the
+     * added ones in the key map and indexes, and publishes the new state.
+     * Called holding the commit lock.
+     *
+     * @return the log position to sync, or -1 if nothing was logged
+     */
+    private long commit(Schema<T> s, State current, List<Row<T>> added, List<Row<T>> removed) {
+        return commit(s, current, added, removed, current.version + 1);
+    }
+
+    private long commit(Schema<T> s, State current, List<Row<T>> added, List<Row<T>> removed, long version) {
+        if (added.isEmpty() && removed.isEmpty())
+            return -1;
+
+        long position = -1;
+        Journal j = journal;
+        if (j != null) {
+            try {
+                position = j.commit(name, version, added, removed);
+            } catch (IOException ex) {
+                release(s, added);
+                throw new IllegalStateException("Unable to write to the log", ex);
+            } catch (CasperException ex) {
+                release(s, added);
+                throw new IllegalArgumentException(ex.getMessage(), ex);
+            }
+        }
+
+        // the new rows go in before the old come out, so a lookup never
+        // misses a record that exists both before and after the write
+        changes++;
+        for (Row<T> row : added) {
+            for (int i = 0; i < s.indexes.length; i++)
+                s.indexes[i].add(row.indexed[i], row);
+            if (s.key != null)
+                primary.put(row.key, row);
+        }
+
+        for (Row<T> row : removed) {
+            row.died = version;
+            if (s.offHeap != null)
+                s.offHeap.release(row);
+            if (s.key != null)
+                primary.remove(row.key, row);
+            for (int i = 0; i < s.indexes.length; i++)
+                s.indexes[i].remove(row.indexed[i], row);
+        }
+        changes++;
+
+        publish(s, current, added, version, removed.size());
+        if (!feed.isEmpty())
+            feed.publish(s.key != null, removed, added, version);
+        return position;
+    }
+
+    private void sync(long position) {
+        Journal j = journal;
+        if (j == null || position < 0)
+            return;
+
+        try {
+            j.sync(position);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to write to the log", ex);
+        }
+    }
+
+    private void publish(Schema<T> s, State current, List<Row<T>> added, long version, int removed) {
+        Object[] rows = current.rows;
+        int size = current.size;
+        int live = current.live - removed;
+        int dead = size - live;
+
+        if (dead > live && dead > COMPACT_THRESHOLD) {
+            rows = compact(current, live + added.size());
+            size = live;
+            if (s.offHeap != null)
+                relocate(s, rows, size, version);
+            if (s.columns != null) {
+                s.columns.reset(rows.length);
+                for (int i = 0; i < size; i++)
+                    s.columns.set(i, ((Row<?>) rows[i]).value());
+            }
+        } else if (size + added.size() > rows.length) {
+            rows = Arrays.copyOf(rows, Math.max(rows.length * 2, size + added.size()));
+        }
+
+        // slots past a snapshot's size are never read through it
+        for (Row<T> row : added) {
+            if (s.columns != null)
+                s.columns.set(size, row.value());
+            rows[size++] = row;
+        }
+        live += added.size();
+
+        state = new State(rows, size, version, live, s.columns != null ? s.columns.view() : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object[] compact(State s, int capacity) {
+        Object[] rows = new Object[Math.max(16, capacity * 2)];
+        int n = 0;
+        for (int i = 0; i < s.size; i++) {
+            Row<T> row = (Row<T>) s.rows[i];
+            if (row.isLive())
+                rows[n++] = row;
+        }
+
+        return rows;
+    }
+
+    // moves the rows of mostly dead slabs, as a write replacing each with
+    // itself; older snapshots still read the old rows. An index orders rows
+    // by sequence number, so the old row must leave before the moved one,
+    // which has the same, goes in; lookups meanwhile are retried.
+    @SuppressWarnings("unchecked")
+    private void relocate(Schema<T> s, Object[] rows, int size, long version) {
+        changes++;
+        for (int i = 0; i < size; i++) {
+            Row<T> row = (Row<T>) rows[i];
+            Row<T> moved = s.offHeap.relocate(row);
+            if (moved == null)
+                continue;
+
+            for (int j = 0; j < s.indexes.length; j++) {
+                s.indexes[j].remove(row.indexed[j], row);
+                s.indexes[j].add(moved.indexed[j], moved);
+            }
+            if (s.key != null)
+                primary.put(moved.key, moved);
+            row.died = version;
+            rows[i] = moved;
+        }
+        changes++;
+    }
+
+    // rows that were never committed
+    private static <T> void release(Schema<T> s, List<Row<T>> rows) {
+        if (s.offHeap == null)
+            return;
+        for (Row<T> row : rows)
+            s.offHeap.release(row);
+    }
+
+    /**
+     * @return the direct memory held for the live records, or 0 if records
+     * stay on the heap
+     */
+    long reserved() {
+        Schema<T> s = schema;
+        if (s == null || s.offHeap == null)
+            return 0;
+
+        lock.lock();
+        try {
+            return s.offHeap.reserved();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private RangeIndex<Row<T>> rangeIndex(String field, Object from, Object to) {
+        Schema<T> s = schema;
+        if (s == null)
+            return null;
+
+        CasperIndex<Row<T>> index = s.index(field);
+        if (!(index instanceof RangeIndex) || (from == null && to == null))
+            return null;
+
+        FieldAccessor f = s.accessor(field);
+        if ((from != null && !accepts(f, from)) || (to != null && !accepts(f, to)))
+            return null;
+
+        return (RangeIndex<Row<T>>) index;
+    }
+
+    // a value of another type never matches, but the scan reports the mismatch
+    private static boolean accepts(FieldAccessor f, Object value) {
+        return value != null && CasperUtils.wrap(f.getType()).equals(value.getClass());
+    }
+
+    private static <T> List<T> values(Collection<Row<T>> rows) {
+        List<T> list = new ArrayList<>(rows.size());
+        for (Row<T> row : rows)
+            list.add(row.value());
+        return list;
+    }
+
+    // whether no write touched the indexes since changes read c, so a
+    // lookup made in between saw them whole; otherwise it is retried
+    private boolean isStable(long c) {
+        return (c & 1) == 0 && changes == c;
+    }
+
+    // while a record is replaced, its index holds both rows; the key map
+    // switches from one to the other at once, so only one is current
+    private boolean isCurrent(Row<T> row) {
+        return row.key == null || primary.get(row.key) == row;
+    }
+
+    /**
+     * The rows published by the last completed write. Only the writer
+     * holding the commit lock appends to the array, past {@code size}.
+     */
+    private static final class State {
+        final Object[] rows;
+        final int size;
+        final long version;
+        final int live;
+        final Map<String, Column> columns;
+
+        State(Object[] rows, int size, long version, int live, Map<String, Column> columns) {
+            this.rows = rows;
+            this.size = size;
+            this.version = version;
+            this.live = live;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * The columns of a snapshot, for a {@link org.casper.stereotype.CasperColumnar}
+     * collection
+     */
+    private final class SnapshotView implements ColumnView<T> {
+        private final State snapshot;
+        private final Set<String> fields;
+
+        SnapshotView(State snapshot, Set<String> fields) {
+            this.snapshot = snapshot;
+            this.fields = fields;
+        }
+
+        @Override
+        public int size() {
+            return snapshot.size;
+        }
+
+        @Override
+        public Column column(String field) {
+            return snapshot.columns.get(field);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int position) {
+            Row<T> row = (Row<T>) snapshot.rows[position];
+            return row.isVisible(snapshot.version) ? row.value(fields) : null;
+        }
+
+        @Override
+        public boolean contains(int position) {
+            return ((Row<?>) snapshot.rows[position]).isVisible(snapshot.version);
+        }
+    }
+
+    private final class SnapshotIterator implements Iterator<T> {
+        private final State snapshot;
+        private final Set<String> fields;
+        private int next;
+        private Row<T> row;
+
+        SnapshotIterator(State snapshot) {
+            this(snapshot, null);
+        }
+
+        // decodes only the given fields of off-heap records, or every field when null
+        SnapshotIterator(State snapshot, Set<String> fields) {
+            this.snapshot = snapshot;
+            this.fields = fields;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return row != null;
+        }
+
+        @Override
+        public T next() {
+            if (row == null)
+                throw new NoSuchElementException();
+
+            T value = fields != null ? row.value(fields) : row.value();
+            advance();
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            row = null;
+            while (next < snapshot.size) {
+                Row<T> candidate = (Row<T>) snapshot.rows[next++];
+                if (candidate.isVisible(snapshot.version)) {
+                    row = candidate;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The key and indexed fields of the record type, read from its
+     * annotations when the first record is added
+     */
+    private static final class Schema<T> {
+        final FieldAccessor key;
+        final FieldAccessor[] fields;
+        final CasperIndex<Row<T>>[] indexes;
+        final Map<String, Integer> positions = new HashMap<>();
+        final ColumnStore columns;
+        final OffHeapStore offHeap;
+
+        @SuppressWarnings("unchecked")
+        Schema(Class<?> type) {
+            Field id = CasperUtils.getAnnotatedField(type, CasperId.class);
+            key = id != null ? accessor(type, id) : null;
+            columns = type.isAnnotationPresent(CasperColumnar.class) ? ColumnStore.of(type) : null;
+            offHeap = type.isAnnotationPresent(CasperOffHeap.class) ? new OffHeapStore(OffHeapStore.SLAB_SIZE) : null;
+
+            List<Field> indexed = CasperUtils.getAnnotatedFields(type, CasperIndexed.class);
+            fields = new FieldAccessor[indexed.size()];
+            indexes = (CasperIndex<Row<T>>[]) new CasperIndex<?>[indexed.size()];
+            for (int i = 0; i < fields.length; i++) {
+                Field f = indexed.get(i);
+                fields[i] = accessor(type, f);
+                if (f.getAnnotation(CasperIndexed.class).ordered())
+                    indexes[i] = new RangeIndex<Row<T>>(f.getName(), Row.ORDER);
+                else
+                    indexes[i] = new HashIndex<Row<T>>(f.getName(), Row.ORDER);
+                positions.put(f.getName(), i);
+            }
+        }
+
+        Object[] indexValues(T t) {
+            Object[] values = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                values[i] = valueOf(fields[i], t);
+            return values;
+        }
+
+        /**
+         * Encodes a record of an off-heap collection; done before taking
+         * the commit lock, which only copies the bytes
+         *
+         * @return the encoded record, or null if records stay on the heap
+         */
+        byte[] encode(Object t) {
+            if (offHeap == null)
+                return null;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try {
+                RecordCodec.write(new DataOutputStream(bytes), t);
+            } catch (IOException | CasperException ex) {
+                throw new IllegalArgumentException("Unable to store the record off the heap", ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        // matches Row.identity: the record, or its encoding when off the heap
+        Object identity(Object t, byte[] encoded) {
+            return encoded != null ? ByteBuffer.wrap(encoded) : t;
+        }
+
+        Row<T> row(T t, byte[] encoded, Object key, Object[] indexed, long seq, long born) {
+            if (offHeap != null)
+                return offHeap.row(encoded, key, indexed, seq, born);
+            return new Row<>(t, key, indexed, seq, born);
+        }
+
+        Object keyOf(Object t) {
+            Object id = valueOf(key, t);
+            return id != null ? id : NULL;
+        }
+
+        CasperIndex<Row<T>> index(String field) {
+            Integer i = positions.get(field);
+            return i != null ? indexes[i] : null;
+        }
+
+        FieldAccessor accessor(String field) {
+            return fields[positions.get(field)];
+        }
+
+        boolean isKeyField(String field, Object value) {
+            return key != null && key.getName().equals(field) && accepts(key, value);
+        }
+
+        private static Object valueOf(FieldAccessor f, Object t) {
+            try {
+                return f.get(t);
+            } catch (CasperException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private static FieldAccessor accessor(Class<?> type, Field f) {
+            try {
+                return FieldAccessor.of(type, f.getName());
+            } catch (CasperException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
     }
 }
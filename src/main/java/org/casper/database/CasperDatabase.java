@@ -1,25 +1,85 @@
 package org.casper.database;
 
 import org.casper.exception.CasperException;
-import org.casper.query.ListQuery;
+import org.casper.query.CompiledQuery;
+import org.casper.query.PreparedQuery;
+import org.casper.query.QueryPlan;
+import org.casper.query.QueryPlanner;
 import org.casper.query.QueryBuilder;
 import org.casper.query.QueryPart;
 
+import org.casper.persistence.FsyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class CasperDatabase {
-    private Map<String, CasperCollection<?>> database;
+    private ConcurrentMap<String, CasperCollection<?>> database;
+    private Journal journal;
+    private ScheduledExecutorService checkpoints;
+    private volatile ResultCache cache;
+    private ExecutorService events;
 
     public CasperDatabase() {
-        database = new HashMap<>();
+        database = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Opens a durable database, loading the last checkpoint and replaying
+     * the log to rebuild its collections and indexes. Every later write is
+     * appended to the log before it is visible.
+     *
+     * @param log      the log file, created if it does not exist
+     * @param policy   when writes are forced to disk
+     * @param interval the force interval in milliseconds, unless the policy
+     *                 is {@link FsyncPolicy#PerOperation}
+     * @throws CasperException if the log cannot be read
+     * @since 1.2
+     */
+    public CasperDatabase(File log, FsyncPolicy policy, long interval) throws CasperException {
+        this();
+        journal = new Journal(log, policy, interval);
+        try {
+            journal.recover(database);
+        } catch (IOException ex) {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+            throw new CasperException("Unable to replay the log", ex);
+        }
+
+        for (CasperCollection<?> collection : database.values())
+            collection.setJournal(journal);
     }
 
     public <T> void createCollection(String name) {
-        if (!database.containsKey(name))
-            database.put(name, new CasperCollection<T>());
+        if (database.containsKey(name))
+            return;
+
+        CasperCollection<T> collection = new CasperCollection<>(name);
+        collection.setJournal(journal);
+        if (database.putIfAbsent(name, collection) == null && journal != null) {
+            try {
+                journal.sync(journal.create(name));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to write to the log", ex);
+            }
+        }
     }
 
     public CasperCollection<?> getCollection(String name) {
@@ -27,7 +87,97 @@ public class CasperDatabase {
     }
 
     public void dropCollection(String name) {
-        database.remove(name);
+        CasperCollection<?> collection = database.remove(name);
+        if (collection != null && journal != null) {
+            collection.setJournal(null);
+            try {
+                journal.sync(journal.drop(name));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Unable to write to the log", ex);
+            }
+        }
+    }
+
+    /**
+     * Writes every collection to a snapshot file and discards the part of
+     * the log it covers, so the next startup reads the snapshot instead of
+     * replaying that log. Writers keep going while the snapshot is written.
+     *
+     * @throws CasperException if the snapshot cannot be written
+     * @since 1.2
+     */
+    public void checkpoint() throws CasperException {
+        if (journal == null)
+            throw new CasperException("Database has no log");
+
+        try {
+            journal.checkpoint(database);
+        } catch (IOException ex) {
+            throw new CasperException("Unable to write a checkpoint", ex);
+        }
+    }
+
+    /**
+     * Takes a checkpoint in the background at a fixed interval until the
+     * database is closed
+     *
+     * @param interval the time between checkpoints in milliseconds
+     * @throws CasperException if the database has no log
+     * @since 1.2
+     */
+    public synchronized void scheduleCheckpoints(long interval) throws CasperException {
+        if (journal == null)
+            throw new CasperException("Database has no log");
+        if (checkpoints != null)
+            checkpoints.shutdown();
+
+        checkpoints = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "casper-checkpoint");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        checkpoints.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (CasperException ex) {
+                    // the log still holds every write, so the next checkpoint retries
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forces the log and closes it, and stops delivering change events.
+     * Writes made after closing are lost.
+     *
+     * @throws CasperException if the log cannot be forced
+     * @since 1.2
+     */
+    public void close() throws CasperException {
+        // a later subscription starts a new delivery thread
+        synchronized (this) {
+            if (events != null)
+                events.shutdown();
+            events = null;
+        }
+        if (journal == null)
+            return;
+
+        synchronized (this) {
+            if (checkpoints != null)
+                checkpoints.shutdownNow();
+        }
+
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            throw new CasperException("Unable to close the log", ex);
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -36,6 +186,34 @@ public class CasperDatabase {
         return t;
     }
 
+    /**
+     * Saves many records as one write, replacing any stored copies
+     *
+     * @param repository the collection name
+     * @param t the records to save
+     * @return the records
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> saveAll(String repository, Collection<T> t) {
+        ((CasperCollection<T>) database.get(repository)).addAll(t);
+        return new ArrayList<>(t);
+    }
+
+    /**
+     * Removes many records as one write
+     *
+     * @param repository the collection name
+     * @param t the records to remove
+     * @return the records
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> deleteAll(String repository, Collection<T> t) {
+        ((CasperCollection<T>) database.get(repository)).removeAll(t);
+        return new ArrayList<>(t);
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T remove(String repository, T t) {
         ((CasperCollection<T>)database.get(repository)).remove(t);
@@ -43,14 +221,7 @@ public class CasperDatabase {
     }
 
     public <T> List<T> remove(String repository, List<T> t) {
-        CasperCollection<T> records = (CasperCollection<T>) database.get(repository);
-        for (T e : t) {
-            for (T c : records) {
-                if (e.equals(c))
-                    records.remove(c);
-            }
-        }
-
+        database.get(repository).removeAll(t);
         return t;
     }
 
@@ -58,6 +229,19 @@ public class CasperDatabase {
         return remove(repository, Arrays.asList(t));
     }
 
+    /**
+     * Removes every record matching a query without first collecting the
+     * matches into a result list
+     *
+     * @param qb the query
+     * @return the number of records removed
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    public int remove(QueryBuilder qb) throws CasperException {
+        return database.get(qb.getRepository()).removeAll(CompiledQuery.compile(qb, 0));
+    }
+
     public <T> T delete(String repository, T t) {
         return remove(repository, t);
     }
@@ -70,43 +254,222 @@ public class CasperDatabase {
         return remove(repository, Arrays.asList(t));
     }
 
+    public int delete(QueryBuilder qb) throws CasperException {
+        return remove(qb);
+    }
+
     @SuppressWarnings("unchecked")
     public <T> List<T> findAll(String repository) {
         return ((CasperCollection<T>)database.get(repository)).toList();
     }
 
-    public <T> T findOne(String repository, T id) {
-        return null;
+    @SuppressWarnings("unchecked")
+    public <T> T findOne(String repository, Object id) {
+        return ((CasperCollection<T>) database.get(repository)).get(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T removeOne(String repository, Object id) {
+        return ((CasperCollection<T>) database.get(repository)).removeById(id);
     }
 
     @SuppressWarnings("unchecked")
     public <T> List<T> find(final QueryBuilder qb) throws CasperException {
+        if (cache != null)
+            return (List<T>) cached("find", qb);
+        return this.<T>plan(qb).execute();
+    }
 
-        ListQuery q = ListQuery.from(database.get(qb.getRepository()).toList());
-
-        for (QueryPart p : qb) {
-            switch (p.getCommand()) {
-                case EqField:
-                    q.eq(p.getField(), p.getValue());
-                    break;
-                case LikeField:
-                    q.like(p.getField(), (String) p.getValue());
-                    break;
-                case And:
-                    q.and();
-                    break;
-                case Or:
-                    q.or();
-                    break;
-                case Not:
-                    q.not();
-                    break;
-                case Limit:
-                    q.limit((Integer) p.getValue());
-            }
+    /**
+     * Finds records lazily, so a caller that walks the results once never
+     * holds all of them. Each iteration reads the collection as of when it
+     * starts.
+     *
+     * @param qb the query
+     * @return the matching records, tested as they are iterated
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    public <T> Iterable<T> iterate(QueryBuilder qb) throws CasperException {
+        return this.<T>plan(qb).iterate();
+    }
+
+    /**
+     * Computes the aggregate named by the query's Count, Sum, Avg, Min or
+     * Max part over the matching records, in one pass and without
+     * collecting them. A GroupBy part groups the matches by a field.
+     *
+     * @param qb the query
+     * @return the aggregate value, or a map from each group to its value
+     * @throws CasperException if the query is invalid or has no aggregate
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V aggregate(QueryBuilder qb) throws CasperException {
+        if (cache != null)
+            return (V) cached("aggregate", qb);
+        return (V) plan(qb).aggregate();
+    }
+
+    /**
+     * Keeps the results of the most recently used find and aggregate
+     * queries. A later identical query returns a copy of the stored result
+     * as long as no write has changed the collection since. Caching is off
+     * by default.
+     *
+     * @param capacity the maximum number of results kept, or 0 to stop
+     *                 caching and discard them
+     * @since 1.2
+     */
+    public void setResultCacheSize(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity is negative");
+        cache = capacity > 0 ? new ResultCache(capacity) : null;
+    }
+
+    /**
+     * @return the number of queries answered from the result cache
+     * @since 1.2
+     */
+    public long getCacheHits() {
+        ResultCache c = cache;
+        return c != null ? c.getHits() : 0;
+    }
+
+    /**
+     * @return the number of queries the result cache could not answer
+     * @since 1.2
+     */
+    public long getCacheMisses() {
+        ResultCache c = cache;
+        return c != null ? c.getMisses() : 0;
+    }
+
+    private Object cached(String operation, QueryBuilder qb) throws CasperException {
+        ResultCache c = cache;
+        CasperCollection<?> collection = database.get(qb.getRepository());
+        boolean find = operation.equals("find");
+        if (c == null || collection == null)
+            return find ? plan(qb).execute() : plan(qb).aggregate();
+
+        List<Object> key = ResultCache.key(operation, qb);
+        Object result = c.get(key, collection);
+        if (result != null)
+            return copy(result);
+
+        // read before running, so the result is never older than its version
+        long version = collection.getVersion();
+        result = find ? plan(qb).execute() : plan(qb).aggregate();
+        if (result != null)
+            c.put(key, collection, version, copy(result));
+        return result;
+    }
+
+    // callers may change the lists and maps they are given
+    private static Object copy(Object result) {
+        if (result instanceof List)
+            return new ArrayList<>((List<?>) result);
+        if (result instanceof Map)
+            return new LinkedHashMap<>((Map<?, ?>) result);
+        return result;
+    }
+
+    /**
+     * Plans a query against its collection, choosing between a full scan
+     * and the primary key, hash and range indexes
+     *
+     * @param qb the query
+     * @return the plan, which can be executed or explained
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <T> QueryPlan<T> plan(QueryBuilder qb) throws CasperException {
+        CasperCollection<T> collection = (CasperCollection<T>) database.get(qb.getRepository());
+        return QueryPlanner.plan(CompiledQuery.compile(qb, 0), collection);
+    }
+
+    /**
+     * Compiles a query once for running many times with different arguments
+     * for its {@link org.casper.query.Parameter}s. Each run is planned for
+     * its arguments, so it can still use any index.
+     *
+     * @param qb the query, with parameters in place of some values
+     * @return the prepared query
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    public PreparedQuery prepare(QueryBuilder qb) throws CasperException {
+        return PreparedQuery.of(CompiledQuery.compile(qb, 0), database.get(qb.getRepository()));
+    }
+
+    /**
+     * Watches the results of a query: the listener is told about every later
+     * write that adds a record to them, changes one in them or takes one
+     * out. Events are delivered in write order on a background thread
+     * shared by the database's subscriptions.
+     *
+     * -- ex: Watching the people with a job
+     * <pre>
+     * {@code
+     *      Subscription s = db.subscribe(new QueryBuilder("people", FIND).where("job").eq("Digging"), listener);
+     * }
+     * </pre>
+     *
+     * @param qb       the records to watch
+     * @param listener told about each change
+     * @return the subscription, to cancel
+     * @throws CasperException if the query is invalid or its collection
+     *                         does not exist
+     * @since 1.2
+     */
+    public <T> Subscription subscribe(QueryBuilder qb, ChangeListener<T> listener) throws CasperException {
+        return subscribe(qb, listener, events());
+    }
+
+    /**
+     * Watches the results of a query, delivering the events on the given
+     * executor, one at a time and in write order
+     *
+     * @param qb       the records to watch
+     * @param listener told about each change
+     * @param executor runs the listener
+     * @return the subscription, to cancel
+     * @throws CasperException if the query is invalid or its collection
+     *                         does not exist
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Subscription subscribe(QueryBuilder qb, ChangeListener<T> listener, Executor executor)
+            throws CasperException {
+        CasperCollection<T> collection = (CasperCollection<T>) database.get(qb.getRepository());
+        if (collection == null)
+            throw new CasperException("Collection does not exist: " + qb.getRepository());
+        return collection.subscribe(CompiledQuery.compile(qb, 0), listener, executor);
+    }
+
+    private synchronized Executor events() {
+        if (events == null) {
+            events = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "casper-events");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return events;
+    }
 
-        return q.execute();
+    /**
+     * @param qb the query
+     * @return a description of how the query would be answered
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    public String explain(QueryBuilder qb) throws CasperException {
+        return plan(qb).explain();
     }
 
     public <T> T findOne(QueryBuilder qb) throws CasperException {
@@ -0,0 +1,68 @@
+package org.casper.database;
+
+/**
+ * A change to the results of a subscribed query, caused by one write to a
+ * collection. The type says how the record moved relative to the results:
+ * it entered them, changed while staying in them, or left them. The old
+ * and new values are the record before and after the write, whichever
+ * exist, so an Insert may carry the old copy of a record that was saved
+ * with new values, and a Delete the new copy of a record that no longer
+ * matches.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public final class ChangeEvent<T> {
+
+    public enum Type {
+        Insert, Update, Delete
+    }
+
+    private final Type type;
+    private final String collection;
+    private final long version;
+    private final T oldValue;
+    private final T newValue;
+
+    ChangeEvent(Type type, String collection, long version, T oldValue, T newValue) {
+        this.type = type;
+        this.collection = collection;
+        this.version = version;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return the version of the collection the write produced
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the record before the write, or null if it was added
+     */
+    public T getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return the record after the write, or null if it was removed
+     */
+    public T getNewValue() {
+        return newValue;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + collection + "@" + version + ": " + oldValue + " -> " + newValue;
+    }
+}
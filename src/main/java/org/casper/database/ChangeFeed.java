@@ -0,0 +1,177 @@
+package org.casper.database;
+
+import org.casper.exception.CasperException;
+import org.casper.query.CompiledQuery;
+import org.casper.utils.FieldAccessor;
+import org.casper.utils.ValueComparator;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * The subscriptions of one collection, and the matching of each write
+ * against them. A subscription whose query requires a field to equal a
+ * value is indexed under that value, so a write only tests the queries
+ * indexed under the values of the records it changes, and those that
+ * could not be indexed.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+class ChangeFeed<T> {
+    private final String name;
+    private volatile Registry registry = new Registry(Collections.<Subscription>emptyList());
+
+    ChangeFeed(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isEmpty() {
+        return registry.all.isEmpty();
+    }
+
+    synchronized Subscription subscribe(CompiledQuery query, ChangeListener<? super T> listener, Executor executor) {
+        Subscription subscription = new Subscription(this, query, listener, executor);
+        List<Subscription> all = new ArrayList<>(registry.all);
+        all.add(subscription);
+        registry = new Registry(all);
+        return subscription;
+    }
+
+    synchronized void cancel(Subscription subscription) {
+        List<Subscription> all = new ArrayList<>(registry.all);
+        if (all.remove(subscription))
+            registry = new Registry(all);
+    }
+
+    /**
+     * Tells the subscribers about one write. A removed and an added row with
+     * the same key, or of the same record when unkeyed, are one update.
+     * Called holding the commit lock, so events are queued in write order.
+     */
+    void publish(boolean keyed, List<Row<T>> removed, List<Row<T>> added, long version) {
+        Registry r = registry;
+        if (r.all.isEmpty())
+            return;
+
+        Map<Object, Row<T>> old = new LinkedHashMap<>();
+        for (Row<T> row : removed)
+            old.put(keyed ? row.key : row.identity(), row);
+
+        for (Row<T> row : added) {
+            Row<T> before = old.remove(keyed ? row.key : row.identity());
+            publish(r, before != null ? before.value() : null, row.value(), version);
+        }
+
+        for (Row<T> row : old.values())
+            publish(r, row.value(), null, version);
+    }
+
+    private void publish(Registry r, T oldValue, T newValue, long version) {
+        for (Subscription s : r.candidates(oldValue, newValue)) {
+            boolean was = s.matches(oldValue);
+            boolean is = s.matches(newValue);
+            if (!was && !is)
+                continue;
+
+            ChangeEvent.Type type = was ? (is ? ChangeEvent.Type.Update : ChangeEvent.Type.Delete) : ChangeEvent.Type.Insert;
+            s.offer(new ChangeEvent<Object>(type, name, version, oldValue, newValue));
+        }
+    }
+
+    /**
+     * The value an equality is indexed under: equal for every field value
+     * the query finds equal to it
+     *
+     * @return the key, or null if values of this type are not indexed
+     */
+    static Object key(Object value) {
+        Object key = ValueComparator.key(value);
+        if (key instanceof Long || key instanceof Double || key instanceof String
+                || key instanceof Character || key instanceof Boolean)
+            return key;
+
+        return null;
+    }
+
+    /**
+     * An immutable view of the subscriptions, replaced on every subscribe
+     * and cancel so that writers read it without locking
+     */
+    private static final class Registry {
+        final List<Subscription> all;
+        final List<Subscription> scanned = new ArrayList<>();
+        final Map<String, Map<Object, List<Subscription>>> indexed = new HashMap<>();
+
+        Registry(List<Subscription> all) {
+            this.all = all;
+            for (Subscription s : all) {
+                if (!index(s))
+                    scanned.add(s);
+            }
+        }
+
+        private boolean index(Subscription s) {
+            for (Map.Entry<String, Object> e : s.getQuery().getEqualities().entrySet()) {
+                Object key = key(e.getValue());
+                if (key == null)
+                    continue;
+
+                Map<Object, List<Subscription>> values = indexed.get(e.getKey());
+                if (values == null)
+                    indexed.put(e.getKey(), values = new HashMap<>());
+                List<Subscription> list = values.get(key);
+                if (list == null)
+                    values.put(key, list = new ArrayList<>());
+                list.add(s);
+                return true;
+            }
+
+            return false;
+        }
+
+        Collection<Subscription> candidates(Object oldValue, Object newValue) {
+            if (indexed.isEmpty())
+                return scanned;
+
+            Set<Subscription> candidates = new LinkedHashSet<>(scanned);
+            for (Map.Entry<String, Map<Object, List<Subscription>>> e : indexed.entrySet()) {
+                add(candidates, e.getKey(), e.getValue(), oldValue);
+                add(candidates, e.getKey(), e.getValue(), newValue);
+            }
+
+            return candidates;
+        }
+
+        private static void add(Set<Subscription> candidates, String field,
+                                Map<Object, List<Subscription>> values, Object record) {
+            if (record == null)
+                return;
+
+            Object key;
+            try {
+                Object value = FieldAccessor.of(record.getClass(), field).get(record);
+                if (value == null)
+                    return;
+                key = key(value);
+            } catch (CasperException ex) {
+                key = null;
+            }
+
+            if (key == null) {
+                // a field that cannot be read or keyed: let the queries decide
+                for (List<Subscription> list : values.values())
+                    candidates.addAll(list);
+                return;
+            }
+
+            List<Subscription> list = values.get(key);
+            if (list != null)
+                candidates.addAll(list);
+        }
+    }
+}
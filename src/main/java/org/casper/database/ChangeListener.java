@@ -0,0 +1,18 @@
+package org.casper.database;
+
+/**
+ * Receives the changes to the results of a subscribed query
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public interface ChangeListener<T> {
+    /**
+     * Called for each change, one at a time and in the order of the writes
+     * that caused them, on the executor given when subscribing. An exception
+     * thrown here is ignored and does not stop later events.
+     *
+     * @param event the change
+     */
+    void onChange(ChangeEvent<T> event);
+}
@@ -0,0 +1,233 @@
+package org.casper.database;
+
+import org.casper.exception.CasperException;
+import org.casper.query.Column;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.FieldAccessor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * The column-wise copy of a {@link org.casper.stereotype.CasperColumnar}
+ * collection, aligned with its row array. Only the writer holding the
+ * commit lock calls {@link #set}, always past the size of every published
+ * view; growing or compacting copies the arrays, so views keep reading the
+ * arrays they were given.
+ *
+ * @since 1.2
+ */
+final class ColumnStore {
+    private final Map<String, Writer> writers = new LinkedHashMap<>();
+
+    private ColumnStore() {
+    }
+
+    /**
+     * @return the store for the type, or null if none of its fields can be
+     * stored as a column
+     */
+    static ColumnStore of(Class<?> type) {
+        ColumnStore store = new ColumnStore();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers()) || store.writers.containsKey(f.getName()))
+                    continue;
+
+                Class<?> boxed = CasperUtils.wrap(f.getType());
+                Writer writer;
+                if (boxed == Integer.class || boxed == Long.class || boxed == Short.class || boxed == Byte.class
+                        || boxed == Character.class || boxed == Boolean.class)
+                    writer = new LongWriter(boxed);
+                else if (boxed == Double.class || boxed == Float.class)
+                    writer = new DoubleWriter(boxed);
+                else if (boxed == String.class)
+                    writer = new StringWriter();
+                else
+                    continue;
+
+                writer.field = accessor(type, f);
+                store.writers.put(f.getName(), writer);
+            }
+        }
+
+        return store.writers.isEmpty() ? null : store;
+    }
+
+    void set(int position, Object record) {
+        for (Writer writer : writers.values()) {
+            try {
+                writer.set(position, writer.field.get(record));
+            } catch (CasperException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /**
+     * Starts new arrays for a compacted row array
+     */
+    void reset(int capacity) {
+        for (Writer writer : writers.values())
+            writer.reset(capacity);
+    }
+
+    /**
+     * @return views over the arrays as they are now
+     */
+    Map<String, Column> view() {
+        Map<String, Column> columns = new HashMap<>(writers.size() * 2);
+        for (Map.Entry<String, Writer> e : writers.entrySet())
+            columns.put(e.getKey(), e.getValue().view());
+        return columns;
+    }
+
+    private static FieldAccessor accessor(Class<?> type, Field f) {
+        try {
+            return FieldAccessor.of(type, f.getName());
+        } catch (CasperException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int grow(int length, int position) {
+        return Math.max(Math.max(16, length * 2), position + 1);
+    }
+
+    private static int words(int length) {
+        return (length + 63) >>> 6;
+    }
+
+    private abstract static class Writer {
+        FieldAccessor field;
+
+        abstract void set(int position, Object value);
+
+        abstract void reset(int capacity);
+
+        abstract Column view();
+    }
+
+    private static final class LongWriter extends Writer {
+        private final Class<?> type;
+        private long[] values = new long[16];
+        private long[] nulls;
+
+        LongWriter(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        void set(int position, Object value) {
+            if (position >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, position));
+                // the bitmap covers every position once a null was written
+                if (nulls != null)
+                    nulls = Arrays.copyOf(nulls, words(values.length));
+            }
+
+            if (value == null) {
+                if (nulls == null)
+                    nulls = new long[words(values.length)];
+                nulls[position >>> 6] |= 1L << position;
+            } else if (value instanceof Character) {
+                values[position] = (Character) value;
+            } else if (value instanceof Boolean) {
+                values[position] = (Boolean) value ? 1 : 0;
+            } else {
+                values[position] = ((Number) value).longValue();
+            }
+        }
+
+        @Override
+        void reset(int capacity) {
+            values = new long[Math.max(16, capacity)];
+            nulls = null;
+        }
+
+        @Override
+        Column view() {
+            return new Column.Longs(type, values, nulls);
+        }
+    }
+
+    private static final class DoubleWriter extends Writer {
+        private final Class<?> type;
+        private double[] values = new double[16];
+        private long[] nulls;
+
+        DoubleWriter(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        void set(int position, Object value) {
+            if (position >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, position));
+                // the bitmap covers every position once a null was written
+                if (nulls != null)
+                    nulls = Arrays.copyOf(nulls, words(values.length));
+            }
+
+            if (value == null) {
+                if (nulls == null)
+                    nulls = new long[words(values.length)];
+                nulls[position >>> 6] |= 1L << position;
+            } else {
+                values[position] = ((Number) value).doubleValue();
+            }
+        }
+
+        @Override
+        void reset(int capacity) {
+            values = new double[Math.max(16, capacity)];
+            nulls = null;
+        }
+
+        @Override
+        Column view() {
+            return new Column.Doubles(type, values, nulls);
+        }
+    }
+
+    private static final class StringWriter extends Writer {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private int[] values = new int[16];
+        private String[] dictionary = new String[16];
+
+        @Override
+        void set(int position, Object value) {
+            if (position >= values.length)
+                values = Arrays.copyOf(values, grow(values.length, position));
+
+            if (value == null) {
+                values[position] = -1;
+                return;
+            }
+
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                if (code == dictionary.length)
+                    dictionary = Arrays.copyOf(dictionary, code * 2);
+                dictionary[code] = (String) value;
+                codes.put((String) value, code);
+            }
+            values[position] = code;
+        }
+
+        // values no longer stored are dropped from the dictionary
+        @Override
+        void reset(int capacity) {
+            values = new int[Math.max(16, capacity)];
+            dictionary = new String[16];
+            codes.clear();
+        }
+
+        @Override
+        Column view() {
+            return new Column.Strings(values, dictionary, codes.size());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.casper.database;
+
+import org.casper.exception.CasperException;
+import org.casper.persistence.FsyncPolicy;
+import org.casper.persistence.MappedInputStream;
+import org.casper.persistence.RecordCodec;
+import org.casper.persistence.WriteAheadLog;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Records the writes of a database in its write-ahead log and applies them
+ * again on startup. Each commit of a collection is one log entry holding
+ * its version, the sequence numbers of the rows it removed and the rows it
+ * added, so a batch is replayed as a whole or not at all.
+ * <p>
+ * A checkpoint moves the log to a numbered segment, then writes every
+ * collection to a snapshot file that covers that segment and all earlier
+ * ones. Startup loads the snapshot and replays the later segments and the
+ * log, skipping commits the snapshot already holds.
+ *
+ * @since 1.2
+ */
+final class Journal implements Closeable {
+    private static final byte CREATE = 1;
+    private static final byte DROP = 2;
+    private static final byte COMMIT = 3;
+    private static final int MAGIC = 0x43535053;
+    private static final int FORMAT = 1;
+
+    private final WriteAheadLog log;
+    private final File snapshot;
+    private long generation;
+
+    Journal(File file, FsyncPolicy policy, long interval) {
+        log = new WriteAheadLog(file, policy, interval);
+        snapshot = new File(file.getPath() + ".snapshot");
+    }
+
+    long create(String name) throws IOException {
+        return append(CREATE, name);
+    }
+
+    long drop(String name) throws IOException {
+        return append(DROP, name);
+    }
+
+    long commit(String name, long version, List<? extends Row<?>> added, List<? extends Row<?>> removed)
+            throws IOException, CasperException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 64 * added.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(COMMIT);
+        out.writeUTF(name);
+        out.writeLong(version);
+        out.writeInt(removed.size());
+        for (Row<?> row : removed)
+            out.writeLong(row.seq);
+        out.writeInt(added.size());
+        for (Row<?> row : added) {
+            out.writeLong(row.seq);
+            row.write(out);
+        }
+
+        return log.append(bytes.toByteArray());
+    }
+
+    void sync(long position) throws IOException {
+        log.sync(position);
+    }
+
+    /**
+     * Rebuilds the collections and their indexes from the snapshot and the
+     * log, then opens the log for appending
+     *
+     * @param collections receives the collections, by name
+     * @throws IOException if the files cannot be read or decoded
+     */
+    void recover(Map<String, CasperCollection<?>> collections) throws IOException {
+        // the segments the snapshot holds; later ones stay until a checkpoint covers them
+        long covered = 0;
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new MappedInputStream(snapshot))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+                    throw new StreamCorruptedException("Not a snapshot: " + snapshot);
+
+                covered = in.readLong();
+                generation = covered;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    CasperCollection<?> collection = new CasperCollection<>(in.readUTF());
+                    collection.readSnapshot(in);
+                    collections.put(collection.getName(), collection);
+                }
+            }
+        }
+
+        WriteAheadLog.EntryHandler handler = handler(collections);
+        for (Map.Entry<Long, File> segment : segments().entrySet()) {
+            if (segment.getKey() > generation) {
+                WriteAheadLog.read(segment.getValue(), handler);
+                generation = segment.getKey();
+            }
+        }
+
+        log.replay(handler);
+        delete(covered);
+    }
+
+    /**
+     * Writes a snapshot of the collections and discards the log it covers.
+     * Writers are held up only while the log is switched to a new file and
+     * while each collection's current state is taken.
+     *
+     * @param collections the collections, by name
+     * @throws IOException     if the snapshot cannot be written
+     * @throws CasperException if a record cannot be encoded
+     */
+    synchronized void checkpoint(Map<String, CasperCollection<?>> collections)
+            throws IOException, CasperException {
+        long next = generation + 1;
+        log.roll(segment(next));
+        generation = next;
+
+        List<CasperCollection<?>> list = new ArrayList<>(collections.values());
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(next);
+            out.writeInt(list.size());
+            for (CasperCollection<?> collection : list) {
+                out.writeUTF(collection.getName());
+                collection.writeSnapshot(out);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        delete(next);
+    }
+
+    private WriteAheadLog.EntryHandler handler(final Map<String, CasperCollection<?>> collections) {
+        return new WriteAheadLog.EntryHandler() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void handle(byte[] entry) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+                byte type = in.readByte();
+                String name = in.readUTF();
+
+                switch (type) {
+                    case CREATE:
+                        if (!collections.containsKey(name))
+                            collections.put(name, new CasperCollection<>(name));
+                        break;
+                    case DROP:
+                        collections.remove(name);
+                        break;
+                    case COMMIT:
+                        CasperCollection<Object> collection = (CasperCollection<Object>) collections.get(name);
+                        if (collection == null) {
+                            collection = new CasperCollection<>(name);
+                            collections.put(name, collection);
+                        }
+
+                        long version = in.readLong();
+                        long[] removed = new long[in.readInt()];
+                        for (int i = 0; i < removed.length; i++)
+                            removed[i] = in.readLong();
+
+                        long[] added = new long[in.readInt()];
+                        List<Object> records = new ArrayList<>(added.length);
+                        for (int i = 0; i < added.length; i++) {
+                            added[i] = in.readLong();
+                            records.add(RecordCodec.read(in));
+                        }
+
+                        collection.replay(version, removed, added, records);
+                        break;
+                    default:
+                        throw new StreamCorruptedException("Unknown log entry " + type);
+                }
+            }
+        };
+    }
+
+    private File segment(long generation) {
+        return new File(log.getFile().getPath() + "." + generation);
+    }
+
+    // the segments left by earlier checkpoints, oldest first
+    private SortedMap<Long, File> segments() {
+        SortedMap<Long, File> segments = new TreeMap<>();
+        File dir = log.getFile().getAbsoluteFile().getParentFile();
+        String prefix = log.getFile().getName() + ".";
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null)
+            return segments;
+
+        for (File f : files) {
+            String suffix = f.getName().startsWith(prefix) ? f.getName().substring(prefix.length()) : "";
+            if (suffix.matches("\\d{1,18}"))
+                segments.put(Long.parseLong(suffix), f);
+        }
+
+        return segments;
+    }
+
+    private void delete(long covered) {
+        for (Map.Entry<Long, File> segment : segments().entrySet()) {
+            if (segment.getKey() <= covered)
+                segment.getValue().delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private long append(byte type, String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(name);
+        return log.append(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,72 @@
+package org.casper.database;
+
+import org.casper.persistence.RecordCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * A row whose record is held encoded in a slab of an {@link OffHeapStore}.
+ * Each read decodes a fresh copy of the record, or of just the fields a
+ * query reads. The row keeps its slab reachable, so the slab's memory is
+ * released once no snapshot can reach any of its rows.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+final class OffHeapRow<T> extends Row<T> {
+    final OffHeapStore.Slab slab;
+    private final int offset;
+    final int length;
+
+    OffHeapRow(OffHeapStore.Slab slab, int offset, int length, Object key, Object[] indexed, long seq, long born) {
+        super(null, key, indexed, seq, born);
+        this.slab = slab;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    T value() {
+        return value(null);
+    }
+
+    // skipped fields are never decoded, so a query reading two fields of a wide record allocates little
+    @Override
+    @SuppressWarnings("unchecked")
+    T value(Set<String> fields) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes()));
+            return (T) (fields != null ? RecordCodec.read(in, fields) : RecordCodec.read(in));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read an off-heap record", ex);
+        }
+    }
+
+    @Override
+    Object identity() {
+        return region();
+    }
+
+    @Override
+    void write(DataOutput out) throws IOException {
+        out.write(bytes());
+    }
+
+    byte[] bytes() {
+        byte[] bytes = new byte[length];
+        region().get(bytes);
+        return bytes;
+    }
+
+    // a view of the record's bytes; readers never move the slab's own position
+    private ByteBuffer region() {
+        ByteBuffer region = slab.buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        return region;
+    }
+}
@@ -0,0 +1,115 @@
+package org.casper.database;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Allocates the rows of a {@link org.casper.stereotype.CasperOffHeap}
+ * collection in direct buffers. Records are appended to the current slab
+ * until it is full, then a new slab is started; a record larger than a
+ * slab gets a buffer of its own. Each slab counts the bytes of its live
+ * rows. Space is never reused in place, as an older snapshot may still
+ * read a dead row: instead, when the collection compacts, the live rows of
+ * a mostly dead slab are copied to the current one, and the slab is freed
+ * by the collector once no snapshot can reach its old rows. So the on-heap
+ * cost of a record is its row, key and index values, and the direct memory
+ * held stays within about twice the live records. Only the writer holding
+ * the commit lock allocates.
+ *
+ * @since 1.2
+ */
+final class OffHeapStore {
+    static final int SLAB_SIZE = 1 << 20;
+
+    private final int slabSize;
+    private final Set<Slab> slabs = new HashSet<>();
+    private Slab slab;
+
+    OffHeapStore(int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    <T> Row<T> row(byte[] record, Object key, Object[] indexed, long seq, long born) {
+        Slab target = slab(record.length);
+        int offset = target.put(record);
+        return new OffHeapRow<>(target, offset, record.length, key, indexed, seq, born);
+    }
+
+    private Slab slab(int length) {
+        if (length > slabSize)
+            return add(new Slab(length));
+
+        if (slab == null || slab.buffer.remaining() < length)
+            slab = add(new Slab(slabSize));
+        return slab;
+    }
+
+    private Slab add(Slab s) {
+        slabs.add(s);
+        return s;
+    }
+
+    /**
+     * Tells the store a row died, so its bytes no longer count as live
+     */
+    void release(Row<?> row) {
+        if (row instanceof OffHeapRow)
+            release(((OffHeapRow<?>) row).slab, ((OffHeapRow<?>) row).length);
+    }
+
+    private void release(Slab s, int length) {
+        s.live -= length;
+        if (s.live == 0)
+            slabs.remove(s);
+    }
+
+    /**
+     * Copies a live row out of its slab if less than half of the slab is
+     * still live, so the slab can be freed
+     *
+     * @return the row at its new place, with the same key, index values,
+     * sequence number and version, or null if the row stays where it is
+     */
+    <T> Row<T> relocate(Row<T> row) {
+        if (!(row instanceof OffHeapRow))
+            return null;
+
+        OffHeapRow<T> r = (OffHeapRow<T>) row;
+        if (r.slab == slab || r.slab.live * 2 >= r.slab.buffer.position())
+            return null;
+
+        byte[] bytes = r.bytes();
+        release(r.slab, bytes.length);
+        return row(bytes, r.key, r.indexed, r.seq, r.born);
+    }
+
+    /**
+     * @return the direct memory held by the slabs that still have live rows
+     */
+    long reserved() {
+        long reserved = 0;
+        for (Slab s : slabs)
+            reserved += s.buffer.capacity();
+        return reserved;
+    }
+
+    /**
+     * A direct buffer filled from the start, and the bytes of its live rows
+     */
+    static final class Slab {
+        final ByteBuffer buffer;
+        int live;
+
+        Slab(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        int put(byte[] record) {
+            int offset = buffer.position();
+            buffer.put(record);
+            live += record.length;
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.casper.database;
+
+import org.casper.query.QueryBuilder;
+import org.casper.query.QueryPart;
+
+import java.util.*;
+
+/**
+ * The results of recent queries, least recently used first. Each result is
+ * stored with the collection and the version of it the query read, and is
+ * only returned while the collection is still at that version, so any write
+ * to a collection invalidates its results without touching the cache.
+ * <p>
+ * A query's key is its collection, its parts and their values. Values are
+ * copied into the key, so changing an argument after the call does not
+ * change the key, but the records are not copied: changing a stored record
+ * without saving it again is not seen by the cache.
+ *
+ * @since 1.2
+ */
+final class ResultCache {
+    private final int capacity;
+    private final LinkedHashMap<List<Object>, CachedResult> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity the maximum number of results kept
+     */
+    ResultCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<List<Object>, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, CachedResult> eldest) {
+                return size() > ResultCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param operation what the query computes, such as find or aggregate
+     * @param qb        the query
+     * @return the key of the query
+     */
+    static List<Object> key(String operation, QueryBuilder qb) {
+        List<Object> key = new ArrayList<>(qb.getParts().size() * 3 + 2);
+        key.add(operation);
+        key.add(qb.getRepository());
+        for (QueryPart part : qb.getParts()) {
+            key.add(part.getCommand());
+            key.add(part.getField());
+            key.add(value(part.getValue()));
+        }
+
+        return key;
+    }
+
+    // arrays and collections compare by their elements
+    private static Object value(Object value) {
+        if (value instanceof Object[])
+            return Arrays.asList(((Object[]) value).clone());
+        if (value instanceof Collection)
+            return new ArrayList<>((Collection<?>) value);
+        return value;
+    }
+
+    /**
+     * @return the result of the query if the collection has not changed
+     * since it was stored, otherwise null
+     */
+    synchronized Object get(List<Object> key, CasperCollection<?> collection) {
+        CachedResult e = entries.get(key);
+        if (e != null && e.collection == collection && e.version == collection.getVersion()) {
+            hits++;
+            return e.result;
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Stores the result of a query that read the collection at a version
+     */
+    synchronized void put(List<Object> key, CasperCollection<?> collection, long version, Object result) {
+        entries.put(key, new CachedResult(collection, version, result));
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class CachedResult {
+        final CasperCollection<?> collection;
+        final long version;
+        final Object result;
+
+        CachedResult(CasperCollection<?> collection, long version, Object result) {
+            this.collection = collection;
+            this.version = version;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.casper.database;
+
+import org.casper.exception.CasperException;
+import org.casper.persistence.RecordCodec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Set;
+
+/**
+ * One stored version of a record. A row is visible to a snapshot taken at
+ * version v when it was born at or before v and had not died by then.
+ * The key and index values are captured when the row is written, so the
+ * row can be unindexed even if the record is changed afterwards.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+class Row<T> {
+    static final Comparator<Row<?>> ORDER = new Comparator<Row<?>>() {
+        @Override
+        public int compare(Row<?> o1, Row<?> o2) {
+            return o1.seq < o2.seq ? -1 : (o1.seq == o2.seq ? 0 : 1);
+        }
+    };
+
+    private final T value;
+    final Object key;
+    final Object[] indexed;
+    final long seq;
+    final long born;
+    volatile long died = Long.MAX_VALUE;
+
+    Row(T value, Object key, Object[] indexed, long seq, long born) {
+        this.value = value;
+        this.key = key;
+        this.indexed = indexed;
+        this.seq = seq;
+        this.born = born;
+    }
+
+    /**
+     * @return the record
+     */
+    T value() {
+        return value;
+    }
+
+    /**
+     * @param fields the fields a reader needs
+     * @return the record, or for a row stored off the heap a copy with only
+     * those fields decoded
+     */
+    T value(Set<String> fields) {
+        return value;
+    }
+
+    /**
+     * @return what an unkeyed row is matched by: the record, or its encoding
+     * when it is stored off the heap
+     */
+    Object identity() {
+        return value;
+    }
+
+    /**
+     * Writes the record as {@link RecordCodec} does
+     */
+    void write(DataOutput out) throws IOException, CasperException {
+        RecordCodec.write(out, value);
+    }
+
+    boolean isVisible(long version) {
+        return born <= version && died > version;
+    }
+
+    boolean isLive() {
+        return died == Long.MAX_VALUE;
+    }
+}
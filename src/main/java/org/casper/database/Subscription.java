@@ -0,0 +1,113 @@
+package org.casper.database;
+
+import org.casper.exception.CasperException;
+import org.casper.query.CompiledQuery;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A query registered on a collection whose listener is told about every
+ * write that changes its results. Events are queued by the writer and
+ * delivered on the subscription's executor, one at a time and in write
+ * order, whatever the executor's threads.
+ *
+ * @since 1.2
+ */
+public final class Subscription {
+    private final ChangeFeed<?> feed;
+    private final CompiledQuery query;
+    private final ChangeListener<Object> listener;
+    private final Executor executor;
+    private final Queue<ChangeEvent<Object>> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean cancelled;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    Subscription(ChangeFeed<?> feed, CompiledQuery query, ChangeListener<?> listener, Executor executor) {
+        this.feed = feed;
+        this.query = query;
+        this.listener = (ChangeListener<Object>) listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Stops the events. Events already queued are dropped.
+     */
+    public void cancel() {
+        cancelled = true;
+        events.clear();
+        feed.cancel(this);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    CompiledQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return whether the record is in the query's results; a record the
+     * query cannot be evaluated on is not
+     */
+    boolean matches(Object record) {
+        try {
+            return record != null && query.test(record);
+        } catch (CasperException ex) {
+            return false;
+        }
+    }
+
+    void offer(ChangeEvent<Object> event) {
+        if (cancelled)
+            return;
+
+        events.add(event);
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException ex) {
+                // the executor is shut down, so nothing can be delivered again
+                cancel();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            ChangeEvent<Object> event = events.poll();
+            if (event == null) {
+                scheduled.set(false);
+                // an event queued after the poll but before the flag was cleared
+                if (events.isEmpty() || !scheduled.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+
+            if (cancelled)
+                return;
+            try {
+                listener.onChange(event);
+            } catch (RuntimeException ex) {
+                // a failing listener still gets the later events
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "subscription to " + feed.getName() + " where " + query;
+    }
+}
@@ -0,0 +1,35 @@
+package org.casper.index;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The records sharing one indexed value, kept in the order given by the
+ * owning collection. Writers are serialized by the collection; readers may
+ * iterate concurrently.
+ *
+ * @param <T> the record type
+ */
+final class Bucket<T> {
+    final ConcurrentSkipListSet<T> records;
+    private volatile int size;
+
+    Bucket(Comparator<? super T> order) {
+        records = new ConcurrentSkipListSet<>(order);
+    }
+
+    void add(T t) {
+        if (records.add(t))
+            ++size;
+    }
+
+    boolean remove(T t) {
+        if (records.remove(t))
+            --size;
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
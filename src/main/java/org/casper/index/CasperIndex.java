@@ -0,0 +1,36 @@
+package org.casper.index;
+
+import java.util.Collection;
+
+/**
+ * A secondary index over one field of the records in a collection. The
+ * owning collection extracts the field value and keeps the index up to
+ * date on every add and remove. Writes must be serialized by the collection;
+ * lookups may run concurrently with them.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public interface CasperIndex<T> {
+    String getField();
+
+    void add(Object value, T t);
+
+    void remove(Object value, T t);
+
+    /**
+     * Finds the records whose indexed field equals the given value
+     *
+     * @param value the value to look up
+     * @return the matching records, empty if there are none
+     */
+    Collection<T> find(Object value);
+
+    /**
+     * @param value the value to look up
+     * @return the number of records {@link #find} would return
+     */
+    int count(Object value);
+
+    void clear();
+}
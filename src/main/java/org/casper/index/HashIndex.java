@@ -0,0 +1,68 @@
+package org.casper.index;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hash index answering equality lookups on a single field. Records that
+ * share a value are kept in the order given by the collection.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public class HashIndex<T> implements CasperIndex<T> {
+    private static final Object NULL = new Object();
+
+    private String field;
+    private Comparator<? super T> order;
+    private ConcurrentMap<Object, Bucket<T>> entries;
+
+    public HashIndex(String field, Comparator<? super T> order) {
+        this.field = field;
+        this.order = order;
+        entries = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public void add(Object value, T t) {
+        Object key = value != null ? value : NULL;
+        Bucket<T> bucket = entries.get(key);
+        if (bucket == null) {
+            bucket = new Bucket<>(order);
+            entries.put(key, bucket);
+        }
+
+        bucket.add(t);
+    }
+
+    @Override
+    public void remove(Object value, T t) {
+        Object key = value != null ? value : NULL;
+        Bucket<T> bucket = entries.get(key);
+        if (bucket != null && bucket.remove(t))
+            entries.remove(key);
+    }
+
+    @Override
+    public Collection<T> find(Object value) {
+        Bucket<T> bucket = entries.get(value != null ? value : NULL);
+        return bucket != null ? bucket.records : Collections.<T>emptySet();
+    }
+
+    @Override
+    public int count(Object value) {
+        Bucket<T> bucket = entries.get(value != null ? value : NULL);
+        return bucket != null ? bucket.size() : 0;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,210 @@
+package org.casper.index;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Ordered index answering equality and range lookups on a single field.
+ * Values must be mutually {@link Comparable}; records whose field is null
+ * are not indexed. Range lookups return records in field order, and records
+ * sharing a value in the order given by the collection.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public class RangeIndex<T> implements CasperIndex<T> {
+    // distinct values read before a wide numeric range is extrapolated
+    private static final int SAMPLE = 64;
+
+    private String field;
+    private Comparator<? super T> order;
+    private ConcurrentNavigableMap<Object, Bucket<T>> entries;
+
+    public RangeIndex(String field, Comparator<? super T> order) {
+        this.field = field;
+        this.order = order;
+        entries = new ConcurrentSkipListMap<>();
+    }
+
+    @Override
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public void add(Object value, T t) {
+        if (value == null)
+            return;
+
+        Bucket<T> bucket = entries.get(value);
+        if (bucket == null) {
+            bucket = new Bucket<>(order);
+            entries.put(value, bucket);
+        }
+
+        bucket.add(t);
+    }
+
+    @Override
+    public void remove(Object value, T t) {
+        if (value == null)
+            return;
+
+        Bucket<T> bucket = entries.get(value);
+        if (bucket != null && bucket.remove(t))
+            entries.remove(value);
+    }
+
+    @Override
+    public Collection<T> find(Object value) {
+        Bucket<T> bucket = value != null ? entries.get(value) : null;
+        return bucket != null ? bucket.records : Collections.<T>emptySet();
+    }
+
+    @Override
+    public int count(Object value) {
+        Bucket<T> bucket = value != null ? entries.get(value) : null;
+        return bucket != null ? bucket.size() : 0;
+    }
+
+    /**
+     * Finds the records whose indexed field lies within a range. A null
+     * bound leaves that side of the range open.
+     *
+     * @param from          the lower bound, or null
+     * @param fromInclusive whether records equal to from are included
+     * @param to            the upper bound, or null
+     * @param toInclusive   whether records equal to to are included
+     * @return the matching records in field order
+     */
+    public List<T> range(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        List<T> results = new ArrayList<>();
+        for (Bucket<T> bucket : slice(from, fromInclusive, to, toInclusive).values())
+            results.addAll(bucket.records);
+
+        return results;
+    }
+
+    /**
+     * Reads the records whose indexed field lies within a range lazily,
+     * walking the index as the result is iterated. A null bound leaves that
+     * side of the range open.
+     *
+     * @param descending whether to walk from the largest value down; records
+     *                   sharing a value keep the order given by the collection
+     * @return the matching records in field order, or in reverse
+     * @since 1.2
+     */
+    public Iterable<T> iterate(Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                               boolean descending) {
+        NavigableMap<Object, Bucket<T>> slice = slice(from, fromInclusive, to, toInclusive);
+        final Collection<Bucket<T>> buckets = (descending ? slice.descendingMap() : slice).values();
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private final Iterator<Bucket<T>> outer = buckets.iterator();
+                    private Iterator<T> inner = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!inner.hasNext() && outer.hasNext())
+                            inner = outer.next().records.iterator();
+                        return inner.hasNext();
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        return inner.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the number of records {@link #range} would return
+     */
+    public int count(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        int count = 0;
+        for (Bucket<T> bucket : slice(from, fromInclusive, to, toInclusive).values())
+            count += bucket.size();
+
+        return count;
+    }
+
+    /**
+     * Estimates the number of records {@link #range} would return, reading
+     * few of them: the count stops once it passes the limit, and a range of
+     * numbers wider than a sample of values is extrapolated from that sample
+     * by the share of the range it spans.
+     *
+     * @param limit the count past which the exact figure does not matter
+     * @return the exact count if it is at most the limit, otherwise a
+     * number above the limit
+     * @since 1.2
+     */
+    public int estimate(Object from, boolean fromInclusive, Object to, boolean toInclusive, int limit) {
+        NavigableMap<Object, Bucket<T>> slice = slice(from, fromInclusive, to, toInclusive);
+        long count = 0;
+        int values = 0;
+        for (Map.Entry<Object, Bucket<T>> e : slice.entrySet()) {
+            count += e.getValue().size();
+            if (count > limit)
+                break;
+            if (++values == SAMPLE) {
+                long estimate = extrapolate(slice, e.getKey(), count);
+                if (estimate >= 0)
+                    return (int) Math.min(estimate, Integer.MAX_VALUE);
+            }
+        }
+
+        return (int) count;
+    }
+
+    // scales the count of the values up to last by the share of the range's
+    // span they cover, or -1 if the values are not numbers
+    private static long extrapolate(NavigableMap<Object, ?> slice, Object last, long count) {
+        Double first = number(slice.firstKey()), end = number(slice.lastKey()), at = number(last);
+        if (first == null || end == null || at == null || at <= first)
+            return -1;
+
+        return (long) Math.ceil(count * ((end - first) / (at - first)));
+    }
+
+    private static Double number(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof Character)
+            return (double) (Character) value;
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private NavigableMap<Object, Bucket<T>> slice(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        if (from != null && to != null) {
+            if (((Comparable<Object>) from).compareTo(to) > 0)
+                return new TreeMap<Object, Bucket<T>>();
+            return entries.subMap(from, fromInclusive, to, toInclusive);
+        } else if (from != null) {
+            return entries.tailMap(from, fromInclusive);
+        } else if (to != null) {
+            return entries.headMap(to, toInclusive);
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,27 @@
+package org.casper.persistence;
+
+/**
+ * When the log forces appended entries to disk, trading write latency
+ * against how much is lost on a crash
+ *
+ * @since 1.2
+ */
+public enum FsyncPolicy {
+    /**
+     * Every write waits for its entry to be forced. Writers that arrive
+     * while a force is running share the next one.
+     */
+    PerOperation,
+
+    /**
+     * The log is forced every interval and writers wait for the force that
+     * covers their entry, so a crash loses no acknowledged write
+     */
+    GroupCommit,
+
+    /**
+     * The log is forced every interval but writers do not wait; a crash may
+     * lose the writes of the last interval
+     */
+    Async
+}
@@ -0,0 +1,81 @@
+package org.casper.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through read-only memory mappings, one region at a time, so
+ * files larger than a single mapping can be read and no bytes are copied
+ * through a read buffer
+ *
+ * @since 1.2
+ */
+public class MappedInputStream extends InputStream {
+    private static final long REGION = 1L << 30;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long length;
+    private final long region;
+    private long position;
+    private MappedByteBuffer buffer;
+
+    public MappedInputStream(File file) throws IOException {
+        this(file, REGION);
+    }
+
+    MappedInputStream(File file, long region) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        length = channel.size();
+        this.region = region;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!map())
+            return -1;
+
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!map())
+            return -1;
+
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, length - position + (buffer != null ? buffer.remaining() : 0));
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        raf.close();
+    }
+
+    // maps the next region once the current one is used up
+    private boolean map() throws IOException {
+        if (buffer != null && buffer.hasRemaining())
+            return true;
+        if (position >= length)
+            return false;
+
+        long size = Math.min(region, length - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        position += size;
+        return true;
+    }
+}
@@ -0,0 +1,437 @@
+package org.casper.persistence;
+
+import org.casper.exception.CasperException;
+import org.springframework.objenesis.SpringObjenesis;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.*;
+
+/**
+ * Binary encoding of records for the log and snapshots. A record is written
+ * as its class name followed by its non-static, non-transient fields by
+ * name, so fields added to or removed from a class later are tolerated.
+ * Common value types, including UUIDs, dates and the java.time values,
+ * are written directly; arrays, collections and other JDK classes fall back
+ * to Java serialization, as their fields cannot be read reflectively.
+ * Records are created without calling a constructor, and a record that
+ * refers back to itself is rejected.
+ *
+ * @since 1.2
+ */
+public final class RecordCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final SpringObjenesis OBJENESIS = new SpringObjenesis();
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte CHAR = 9;
+    private static final byte DATE = 10;
+    private static final byte BIG_DECIMAL = 11;
+    private static final byte BIG_INTEGER = 12;
+    private static final byte ENUM = 13;
+    private static final byte RECORD = 14;
+    private static final byte SERIALIZED = 15;
+    private static final byte UNIQUE_ID = 16;
+    private static final byte SQL_DATE = 17;
+    private static final byte TIME = 18;
+    private static final byte TIMESTAMP = 19;
+    private static final byte TEXT = 20;
+
+    private static final ClassValue<Map<String, Field>> FIELDS = new ClassValue<Map<String, Field>>() {
+        @Override
+        protected Map<String, Field> computeValue(Class<?> type) {
+            Map<String, Field> fields = new LinkedHashMap<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int modifiers = f.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic()
+                            || fields.containsKey(f.getName()))
+                        continue;
+
+                    f.setAccessible(true);
+                    fields.put(f.getName(), f);
+                }
+            }
+
+            return fields;
+        }
+    };
+
+    // the static parse(CharSequence) of a java.time value, which reads back
+    // its toString(); looked up reflectively so Java 7 can still load this
+    private static final ClassValue<Method> PARSERS = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            if (!type.getName().startsWith("java.time."))
+                return null;
+            try {
+                Method parse = type.getMethod("parse", CharSequence.class);
+                return Modifier.isStatic(parse.getModifiers()) && parse.getReturnType() == type ? parse : null;
+            } catch (NoSuchMethodException ex) {
+                return null;
+            }
+        }
+    };
+
+    private RecordCodec() {
+    }
+
+    /**
+     * Writes a value
+     *
+     * @param out   the output
+     * @param value the value
+     * @throws IOException     if the value cannot be written
+     * @throws CasperException if the value cannot be encoded: a JDK class
+     *                         that is not serializable, or a record that
+     *                         refers back to itself
+     */
+    public static void write(DataOutput out, Object value) throws IOException, CasperException {
+        write(out, value, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+    }
+
+    // visiting holds the records being written, outermost first
+    private static void write(DataOutput out, Object value, Set<Object> visiting)
+            throws IOException, CasperException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == java.sql.Date.class) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == Time.class) {
+            out.writeByte(TIME);
+            out.writeLong(((Date) value).getTime());
+        } else if (value.getClass() == Timestamp.class) {
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof UUID) {
+            out.writeByte(UNIQUE_ID);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeString(out, value.toString());
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+            out.writeUTF(((Enum<?>) value).name());
+        } else if (PARSERS.get(value.getClass()) != null) {
+            out.writeByte(TEXT);
+            out.writeUTF(value.getClass().getName());
+            writeString(out, value.toString());
+        } else if (value.getClass().isArray() || value instanceof Collection || value instanceof Map
+                || isPlatform(value.getClass())) {
+            if (!(value instanceof Serializable))
+                throw new CasperException("Unable to encode " + value.getClass().getName() + ": not serializable");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        } else {
+            if (!visiting.add(value))
+                throw new CasperException("Unable to encode " + value.getClass().getName() + ": it refers to itself");
+
+            out.writeByte(RECORD);
+            writeRecord(out, value, visiting);
+            visiting.remove(value);
+        }
+    }
+
+    // whether the class is or extends a JDK class other than Object, whose
+    // fields are closed to reflection
+    private static boolean isPlatform(Class<?> type) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            if (c.getName().startsWith("java.") || c.getName().startsWith("javax."))
+                return true;
+        }
+
+        return false;
+    }
+
+    public static Object read(DataInput in) throws IOException {
+        return read(in.readByte(), in);
+    }
+
+    /**
+     * Reads a value, decoding only some of the fields when it is a record.
+     * The other fields are skipped without being decoded and keep the
+     * default value of their type.
+     *
+     * @param in     the input
+     * @param fields the names of the fields to decode
+     * @return the value
+     * @throws IOException if the value cannot be read
+     * @since 1.2
+     */
+    public static Object read(DataInput in, Set<String> fields) throws IOException {
+        byte tag = in.readByte();
+        return tag == RECORD ? readRecord(in, fields) : read(tag, in);
+    }
+
+    private static Object read(byte tag, DataInput in) throws IOException {
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case BOOLEAN:
+                return in.readBoolean();
+            case CHAR:
+                return in.readChar();
+            case DATE:
+                return new Date(in.readLong());
+            case SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            case TIME:
+                return new Time(in.readLong());
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case UNIQUE_ID:
+                return new UUID(in.readLong(), in.readLong());
+            case TEXT:
+                return readText(in);
+            case BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            case BIG_INTEGER:
+                return new BigInteger(readString(in));
+            case ENUM:
+                return readEnum(in);
+            case RECORD:
+                return readRecord(in, null);
+            case SERIALIZED:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new InvalidClassException(ex.getMessage());
+                }
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void writeRecord(DataOutput out, Object record, Set<Object> visiting)
+            throws IOException, CasperException {
+        Map<String, Field> fields = FIELDS.get(record.getClass());
+        out.writeUTF(record.getClass().getName());
+        out.writeShort(fields.size());
+        try {
+            for (Field f : fields.values()) {
+                out.writeUTF(f.getName());
+                write(out, f.get(record), visiting);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // decodes the named fields, or every field when names is null
+    private static Object readRecord(DataInput in, Set<String> names) throws IOException {
+        Class<?> type = load(in.readUTF());
+        Map<String, Field> fields = FIELDS.get(type);
+        Object record = OBJENESIS.newInstance(type);
+
+        int count = in.readUnsignedShort();
+        try {
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                if (names != null && !names.contains(name)) {
+                    skip(in);
+                    continue;
+                }
+
+                Field f = fields.get(name);
+                Object value = read(in);
+                // a field removed from the class since the record was written
+                if (f != null && (value != null || !f.getType().isPrimitive()))
+                    f.set(record, value);
+            }
+        } catch (IllegalAccessException | IllegalArgumentException ex) {
+            throw new InvalidClassException(type.getName(), ex.getMessage());
+        }
+
+        return record;
+    }
+
+    // moves past a value without decoding it
+    private static void skip(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                break;
+            case BYTE:
+            case BOOLEAN:
+                skip(in, 1);
+                break;
+            case SHORT:
+            case CHAR:
+                skip(in, 2);
+                break;
+            case INT:
+            case FLOAT:
+                skip(in, 4);
+                break;
+            case LONG:
+            case DOUBLE:
+            case DATE:
+            case SQL_DATE:
+            case TIME:
+                skip(in, 8);
+                break;
+            case TIMESTAMP:
+                skip(in, 12);
+                break;
+            case UNIQUE_ID:
+                skip(in, 16);
+                break;
+            case STRING:
+            case BIG_DECIMAL:
+            case BIG_INTEGER:
+            case SERIALIZED:
+                skip(in, in.readInt());
+                break;
+            case ENUM:
+                skip(in, in.readUnsignedShort());
+                skip(in, in.readUnsignedShort());
+                break;
+            case TEXT:
+                skip(in, in.readUnsignedShort());
+                skip(in, in.readInt());
+                break;
+            case RECORD:
+                skip(in, in.readUnsignedShort());
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    skip(in, in.readUnsignedShort());
+                    skip(in);
+                }
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    private static void skip(DataInput in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(DataInput in) throws IOException {
+        Class type = load(in.readUTF());
+        String name = in.readUTF();
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidObjectException("Unknown constant " + name + " of " + type.getName());
+        }
+    }
+
+    private static Object readText(DataInput in) throws IOException {
+        Class<?> type = load(in.readUTF());
+        String text = readString(in);
+        Method parse = PARSERS.get(type);
+        if (parse == null)
+            throw new InvalidClassException(type.getName(), "no parse method");
+
+        try {
+            return parse.invoke(null, text);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            throw new InvalidObjectException("Unable to parse " + text + " as " + type.getName());
+        }
+    }
+
+    private static Class<?> load(String name) throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try {
+            return Class.forName(name, false, loader != null ? loader : RecordCodec.class.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            throw new InvalidClassException(name, "class not found");
+        }
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,281 @@
+package org.casper.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of entries, each framed by its length and checksum.
+ * {@link #append} writes an entry and returns its position; {@link #sync}
+ * then waits until the entry is durable as the {@link FsyncPolicy} demands.
+ * Appending and syncing are separate so callers can append while holding a
+ * lock and wait for the disk after releasing it.
+ * <p>
+ * A torn or corrupt entry at the end of the file, left by a crash during a
+ * write, is discarded when the log is replayed.
+ *
+ * @since 1.2
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int HEADER = 8;
+
+    private final File file;
+    private final FsyncPolicy policy;
+    private final Object monitor = new Object();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ScheduledExecutorService flusher;
+    // positions count every byte appended since the log was opened
+    private long written;
+    private long synced;
+    private IOException failure;
+
+    /**
+     * Opens the log, creating the file if needed. Nothing can be appended
+     * until the existing entries have been read with {@link #replay}.
+     *
+     * @param file     the log file
+     * @param policy   when appended entries are forced to disk
+     * @param interval the force interval in milliseconds for
+     *                 {@link FsyncPolicy#GroupCommit} and {@link FsyncPolicy#Async}
+     */
+    public WriteAheadLog(File file, FsyncPolicy policy, long interval) {
+        if (policy != FsyncPolicy.PerOperation && interval <= 0)
+            throw new IllegalArgumentException("Interval must be positive");
+
+        this.file = file;
+        this.policy = policy;
+        if (policy != FsyncPolicy.PerOperation) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "casper-log-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public FsyncPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Reads every intact entry in order, then opens the log for appending
+     * after the last of them
+     *
+     * @param handler receives each entry
+     * @throws IOException if the file cannot be read or the handler fails
+     */
+    public synchronized void replay(EntryHandler handler) throws IOException {
+        if (channel != null)
+            throw new IllegalStateException("Log is already open");
+
+        long valid = read(file, handler);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    /**
+     * Reads the intact entries of a log file, such as a segment left by
+     * {@link #roll}, without opening it for appending
+     *
+     * @param file    the log file; a missing file has no entries
+     * @param handler receives each entry
+     * @return the length of the intact part of the file
+     * @throws IOException if the file cannot be read or the handler fails
+     */
+    public static long read(File file, EntryHandler handler) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CRC32 crc = new CRC32();
+            long length = file.length();
+            while (valid + HEADER <= length) {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size < 0 || valid + HEADER + size > length)
+                    break;
+
+                byte[] entry = new byte[size];
+                in.readFully(entry);
+                crc.reset();
+                crc.update(entry, 0, size);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                handler.handle(entry);
+                valid += HEADER + size;
+            }
+        }
+
+        return valid;
+    }
+
+    /**
+     * Forces the entries written so far, moves them to a segment file and
+     * continues in an empty log. Positions returned by {@link #append} stay
+     * valid across the switch.
+     *
+     * @param segment the file the current entries are moved to
+     * @throws IOException if the log cannot be forced or moved
+     */
+    public void roll(File segment) throws IOException {
+        synchronized (monitor) {
+            synchronized (this) {
+                if (channel == null)
+                    throw new IllegalStateException("Log is not open");
+
+                force();
+                if (failure != null)
+                    throw failure;
+
+                raf.close();
+                try {
+                    Files.move(file.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    raf = new RandomAccessFile(file, "rw");
+                    channel = raf.getChannel();
+                    channel.position(channel.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an entry to the end of the log
+     *
+     * @param entry the entry
+     * @return the position just past the entry, to pass to {@link #sync}
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized long append(byte[] entry) throws IOException {
+        if (channel == null)
+            throw new IllegalStateException("Log is not open");
+
+        CRC32 crc = new CRC32();
+        crc.update(entry, 0, entry.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + entry.length);
+        buffer.putInt(entry.length).putInt((int) crc.getValue()).put(entry);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+
+        written += buffer.limit();
+        return written;
+    }
+
+    /**
+     * Waits until the entry ending at the given position is as durable as
+     * the policy requires
+     *
+     * @param position a position returned by {@link #append}
+     * @throws IOException if the log could not be forced
+     */
+    public void sync(long position) throws IOException {
+        switch (policy) {
+            case PerOperation:
+                synchronized (monitor) {
+                    if (synced < position)
+                        force();
+                    if (failure != null)
+                        throw failure;
+                }
+                break;
+            case GroupCommit:
+                synchronized (monitor) {
+                    while (synced < position && failure == null) {
+                        try {
+                            monitor.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for the log");
+                        }
+                    }
+                    if (failure != null)
+                        throw failure;
+                }
+                break;
+            default:
+                synchronized (monitor) {
+                    if (failure != null)
+                        throw failure;
+                }
+        }
+    }
+
+    /**
+     * Forces everything appended so far and closes the file
+     *
+     * @throws IOException if the log could not be forced
+     */
+    @Override
+    public void close() throws IOException {
+        if (flusher != null)
+            flusher.shutdownNow();
+
+        synchronized (monitor) {
+            if (channel != null && channel.isOpen()) {
+                force();
+                raf.close();
+            }
+            monitor.notifyAll();
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    private void flush() {
+        synchronized (monitor) {
+            if (channel != null && channel.isOpen())
+                force();
+        }
+    }
+
+    // called holding the monitor, so one force covers every waiting writer
+    private void force() {
+        long target;
+        synchronized (this) {
+            target = written;
+        }
+        if (target == synced || failure != null)
+            return;
+
+        try {
+            channel.force(false);
+            synced = target;
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        monitor.notifyAll();
+    }
+
+    /**
+     * Receives the entries of a log as it is replayed
+     */
+    public interface EntryHandler {
+        void handle(byte[] entry) throws IOException;
+    }
+}
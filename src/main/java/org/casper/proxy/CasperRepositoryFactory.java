@@ -1,182 +1,223 @@
 package org.casper.proxy;
 
-import org.aopalliance.intercept.MethodInterceptor;
-import org.aopalliance.intercept.MethodInvocation;
 import org.casper.database.CasperDatabase;
+import org.casper.database.ChangeListener;
+import org.casper.exception.CasperException;
 import org.casper.exception.CasperQueryBuilderException;
 import org.casper.query.QueryBuilder;
-import org.casper.query.QueryPart;
 import org.casper.repository.CasperRepository;
-import org.springframework.aop.Advisor;
-import org.springframework.aop.framework.ProxyFactory;
-import org.springframework.aop.support.DefaultPointcutAdvisor;
-import org.springframework.aop.support.StaticMethodMatcherPointcut;
 
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 public class CasperRepositoryFactory {
 
     private static CasperDatabase database = new CasperDatabase();
 
+    // the parsed query of each derived method, shared by every repository
+    private static final ConcurrentMap<Method, QueryTemplate> templates = new ConcurrentHashMap<>();
+
+    // one proxy per repository interface
+    private static final ConcurrentMap<Class<?>, Object> repositories = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the repository backed by the collection named after the
+     * interface, creating it on first use. The query of each derived method
+     * is parsed then, once, and every method is bound to its handler, so a
+     * call is a single table lookup.
+     *
+     * @param iface the repository interface
+     * @return the repository
+     * @throws IllegalArgumentException if a method name is not a valid query
+     */
     @SuppressWarnings("unchecked")
     public static <T extends CasperRepository<?>> T getRepository(Class<T> iface) {
-        database.createCollection(iface.getSimpleName());
-
-        ProxyFactory pf = new ProxyFactory();
-        Advisor advisor = new DefaultPointcutAdvisor(new CasperRepositoryPointcut(), new CasperRepositoryInterceptor());
-
-        pf.addAdvisor(advisor);
-        pf.setInterfaces(iface);
-        pf.setTarget(iface);
+        Object repository = repositories.get(iface);
+        if (repository == null) {
+            repository = create(iface);
+            Object existing = repositories.putIfAbsent(iface, repository);
+            if (existing != null)
+                repository = existing;
+        }
 
-        return (T) pf.getProxy();
+        return (T) repository;
     }
 
-    private static class CasperRepositoryInterceptor implements MethodInterceptor {
-
-        @Override
-        public Object invoke(MethodInvocation invoc) throws Throwable {
-
-            Method method = invoc.getMethod();
-            Object[] args = invoc.getArguments();
-
-            Class target = (Class) invoc.getThis();
-
-            String repository = target.getSimpleName();
-            String methodName = method.getName();
-
-            if (methodName.equals("save")) {
-                return database.save(repository, args[0]);
-            } else if (methodName.equals("remove")) {
-                return database.remove(repository, args[0]);
-            } else if (methodName.equals("delete")) {
-                return database.delete(repository, args[0]);
-            } else if (methodName.equals("count")) {
-                return database.count(repository);
-            } else if (methodName.equals("findAll")) {
-                return database.findAll(repository);
-            } else if (methodName.equals("findOne")) {
-                return database.findOne(repository, args[0]);
-            } else if (methodName.startsWith("find")) {
-
-                if (methodName.startsWith("findAll"))
-                    methodName = "find" + methodName.substring(6);
-
-                String s = methodName.substring(4);
-                boolean single = false;
-                if (s.startsWith("By")) {
-                    s = s.substring(2);
-                } else if (s.startsWith("OneBy")) {
-                    single = true;
-                    s = s.substring(5);
-                } else {
-                    throw new CasperQueryBuilderException("Invalid query type");
+    private static Object create(Class<?> iface) {
+        Map<Method, Handler> handlers = new HashMap<>();
+        for (Method method : iface.getMethods()) {
+            Handler handler = handler(method);
+            if (handler == null) {
+                QueryTemplate template = templates.get(method);
+                if (template == null) {
+                    try {
+                        template = QueryTemplate.parse(method);
+                    } catch (CasperQueryBuilderException ex) {
+                        throw new IllegalArgumentException(ex.getMessage() + ": " + method.getName(), ex);
+                    }
+                    templates.putIfAbsent(method, template);
                 }
+                handler = new TemplateHandler(template);
+            }
+            handlers.put(method, handler);
+        }
 
-                String[] parts = s.split("(?=\\p{Upper})");
-                QueryBuilder qb = new QueryBuilder(repository, QueryBuilder.Type.FIND);
-                String field = "";
-                int partIndex = 0;
-                int index = 0;
-                QueryPart.Command command = QueryPart.Command.EqField;
-                for (String p : parts) {
-                    switch (p.toLowerCase()) {
-                        case "not":
-                            if (field.length() == 0) {
-                                field += p;
-                                break;
-                            }
-                            qb.add(QueryPart.Command.Not);
-                            break;
-                        case "like":
-                            if (field.length() == 0) {
-                                field += p;
-                                break;
-                            }
-                            command = QueryPart.Command.LikeField;
-                            break;
-                        case "and":
-                            if (partIndex > args.length)
-                                throw new CasperQueryBuilderException("Invalid number of arguments");
-                            qb.add(command, formatFieldName(field), args[partIndex]);
-                            qb.add(QueryPart.Command.And);
-                            field = "";
-                            ++partIndex;
-                            break;
-                        case "or":
-                            if (partIndex > args.length)
-                                throw new CasperQueryBuilderException("Invalid number of arguments");
-
-                            qb.add(command, formatFieldName(field), args[partIndex]);
-                            qb.add(QueryPart.Command.Or);
-                            field = "";
-                            ++partIndex;
-                            break;
-                        case "limit":
-
-                            if (index < parts.length - 1) {
-                                field += p;
-                                command = QueryPart.Command.EqField;
-                                break;
-                            }
-
-                            if (field.length() > 0) {
-                                if (partIndex > args.length)
-                                    throw new CasperQueryBuilderException("Invalid number of arguments");
-                                qb.add(command, formatFieldName(field), args[partIndex]);
-                                field = "";
-                                ++partIndex;
-                            }
-
-                            if (partIndex > args.length)
-                                throw new CasperQueryBuilderException("Invalid number of arguments");
-
-                            qb.add(QueryPart.Command.Limit, args[partIndex]);
-                            ++partIndex;
-                            break;
-                        default:
-                            command = QueryPart.Command.EqField;
-                            field += p;
+        String repository = iface.getSimpleName();
+        database.createCollection(repository);
+        return Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface},
+                new RepositoryHandler(repository, handlers));
+    }
 
-                    }
+    // the handler of a CasperRepository method, chosen by name and
+    // parameter, or null for a derived method
+    @SuppressWarnings("unchecked")
+    private static Handler handler(Method method) {
+        Class<?>[] parameters = method.getParameterTypes();
+        try {
+            CasperRepository.class.getMethod(method.getName(), parameters);
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
 
-                    ++index;
+        switch (method.getName()) {
+            case "save":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.save(repository, args[0]);
+                    }
+                };
+            case "saveAll":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.saveAll(repository, (Collection<Object>) args[0]);
+                    }
+                };
+            case "deleteAll":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.deleteAll(repository, (Collection<Object>) args[0]);
+                    }
+                };
+            case "remove":
+            case "delete":
+                if (parameters[0] == List.class) {
+                    return new Handler() {
+                        @Override
+                        public Object invoke(String repository, Object[] args) {
+                            return database.remove(repository, (List<Object>) args[0]);
+                        }
+                    };
+                } else if (parameters[0].isArray()) {
+                    return new Handler() {
+                        @Override
+                        public Object invoke(String repository, Object[] args) {
+                            return database.remove(repository, (Object[]) args[0]);
+                        }
+                    };
                 }
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.remove(repository, args[0]);
+                    }
+                };
+            case "count":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.count(repository);
+                    }
+                };
+            case "findAll":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.findAll(repository);
+                    }
+                };
+            case "findOne":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.findOne(repository, args[0]);
+                    }
+                };
+            case "subscribe":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) throws CasperException {
+                        return database.subscribe(new QueryBuilder(repository, QueryBuilder.Type.FIND),
+                                (ChangeListener<?>) args[0]);
+                    }
+                };
+            case "removeOne":
+                return new Handler() {
+                    @Override
+                    public Object invoke(String repository, Object[] args) {
+                        return database.removeOne(repository, args[0]);
+                    }
+                };
+            default:
+                return null;
+        }
+    }
 
-                if (field.length() > 0) {
-                    if (partIndex > args.length)
-                        throw new CasperQueryBuilderException("Invalid number of arguments");
-
-                    qb.add(command, formatFieldName(field), args[partIndex]);
-                }
+    /**
+     * Runs one repository method
+     */
+    private interface Handler {
+        Object invoke(String repository, Object[] args) throws CasperException;
+    }
 
-                return single ? database.findOne(qb) : database.find(qb);
-            }
+    private static class TemplateHandler implements Handler {
+        private final QueryTemplate template;
 
-            throw new CasperQueryBuilderException("Invalid query type");
+        TemplateHandler(QueryTemplate template) {
+            this.template = template;
         }
 
-        private String formatFieldName(String field) {
-            return Character.toLowerCase(field.charAt(0)) + field.substring(1);
+        @Override
+        public Object invoke(String repository, Object[] args) throws CasperException {
+            return template.execute(database, repository, args);
         }
     }
 
-    private static class CasperRepositoryPointcut extends StaticMethodMatcherPointcut {
-        @Override
-        public boolean matches(Method method, Class cls) {
-            // TODO ideally we would handle this better
-            return (method.getDeclaringClass().getSimpleName().endsWith("Repository"));
+    private static class RepositoryHandler implements InvocationHandler {
+        private final String repository;
+        private final Map<Method, Handler> handlers;
+
+        RepositoryHandler(String repository, Map<Method, Handler> handlers) {
+            this.repository = repository;
+            this.handlers = handlers;
         }
 
-        /*
-        public ClassFilter getClassFilter() {
-            return new ClassFilter() {
-                public boolean matches(Class cls) {
-                    return (cls == SomeBean.class);
-                }
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Handler handler = handlers.get(method);
+            if (handler != null)
+                return handler.invoke(repository, args);
+
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "CasperRepository(" + repository + ")";
+                default:
+                    throw new CasperQueryBuilderException("Invalid query type");
             }
         }
-         */
     }
 }
\ No newline at end of file
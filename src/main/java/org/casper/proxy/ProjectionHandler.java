@@ -0,0 +1,182 @@
+package org.casper.proxy;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Backs a projection interface with a tuple of selected fields. Each getter
+ * of the interface, getName or isActive, names a field; a finder returning
+ * the interface selects exactly those fields and every result is a proxy
+ * reading its getters from the tuple, so no record is copied.
+ *
+ * @since 1.2
+ */
+final class ProjectionHandler implements InvocationHandler {
+
+    private static final Map<Class<?>, Getters> GETTERS = new ConcurrentHashMap<>();
+
+    private final Class<?> type;
+    private final Getters getters;
+    private final Object[] tuple;
+
+    private ProjectionHandler(Class<?> type, Getters getters, Object[] tuple) {
+        this.type = type;
+        this.getters = getters;
+        this.tuple = tuple;
+    }
+
+    /**
+     * @return whether a type is an interface a finder can project onto
+     */
+    static boolean isProjection(Class<?> type) {
+        return type.isInterface() && !type.getName().startsWith("java.");
+    }
+
+    /**
+     * @return the fields the getters of a projection interface read, in the
+     * order their tuples hold them
+     */
+    static String[] fields(Class<?> type) {
+        return getters(type).fields;
+    }
+
+    /**
+     * @return a view of a tuple selected by {@link #fields(Class)} as the
+     * projection interface
+     */
+    static Object wrap(Class<?> type, Object[] tuple) {
+        Getters g = getters(type);
+        try {
+            return g.constructor.newInstance(new ProjectionHandler(type, g, tuple));
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException ex) {
+            throw new IllegalStateException("Unable to create a projection of " + type.getName(), ex);
+        }
+    }
+
+    /**
+     * @return a lazy view of tuples selected by {@link #fields(Class)} as the
+     * projection interface
+     */
+    static Iterable<Object> wrap(final Class<?> type, final Iterable<Object> tuples) {
+        return new Iterable<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                final Iterator<Object> it = tuples.iterator();
+                return new Iterator<Object>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Object next() {
+                        return wrap(type, (Object[]) it.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        it.remove();
+                    }
+                };
+            }
+        };
+    }
+
+    private static Getters getters(Class<?> type) {
+        Getters g = GETTERS.get(type);
+        if (g == null) {
+            g = new Getters(type);
+            GETTERS.put(type, g);
+        }
+        return g;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Integer index = getters.index.get(method);
+        if (index != null) {
+            Object value = tuple[index];
+            // a null read through a primitive getter is its zero value
+            return value != null ? value : getters.defaults.get(method);
+        }
+
+        switch (method.getName()) {
+            case "equals":
+                if (args[0] == null || !Proxy.isProxyClass(args[0].getClass()))
+                    return false;
+                InvocationHandler other = Proxy.getInvocationHandler(args[0]);
+                return other instanceof ProjectionHandler && ((ProjectionHandler) other).type == type
+                        && Arrays.equals(((ProjectionHandler) other).tuple, tuple);
+            case "hashCode":
+                return Arrays.hashCode(tuple);
+            case "toString":
+                StringBuilder sb = new StringBuilder(type.getSimpleName()).append('{');
+                for (int i = 0; i < tuple.length; i++) {
+                    if (i > 0)
+                        sb.append(", ");
+                    sb.append(getters.fields[i]).append('=').append(tuple[i]);
+                }
+                return sb.append('}').toString();
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    /**
+     * The getters of a projection interface and the tuple index each reads,
+     * with the constructor of its proxy class, looked up once
+     */
+    private static final class Getters {
+        final String[] fields;
+        final Map<Method, Integer> index = new HashMap<>();
+        // the zero value of each getter returning a primitive
+        final Map<Method, Object> defaults = new HashMap<>();
+        final Constructor<?> constructor;
+
+        Getters(Class<?> type) {
+            // sorted, as getMethods returns no particular order
+            Map<String, List<Method>> properties = new TreeMap<>();
+            for (Method m : type.getMethods()) {
+                String name = m.getName();
+                int prefix = name.startsWith("get") ? 3 : name.startsWith("is") ? 2 : 0;
+                if (prefix == 0 || name.length() == prefix || m.getParameterTypes().length > 0
+                        || m.getDeclaringClass() == Object.class)
+                    continue;
+
+                String field = Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+                List<Method> methods = properties.get(field);
+                if (methods == null) {
+                    methods = new ArrayList<>();
+                    properties.put(field, methods);
+                }
+                methods.add(m);
+            }
+
+            fields = properties.keySet().toArray(new String[properties.size()]);
+            for (int i = 0; i < fields.length; i++) {
+                for (Method m : properties.get(fields[i])) {
+                    index.put(m, i);
+                    Class<?> r = m.getReturnType();
+                    if (r.isPrimitive() && r != void.class)
+                        defaults.put(m, Array.get(Array.newInstance(r, 1), 0));
+                }
+            }
+
+            // the proxy class is taken from a first, unused proxy, as
+            // Proxy.getProxyClass is deprecated
+            Object first = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                    new ProjectionHandler(type, this, new Object[0]));
+            try {
+                constructor = first.getClass().getConstructor(InvocationHandler.class);
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package org.casper.proxy;
+
+import org.casper.database.CasperDatabase;
+import org.casper.database.ChangeListener;
+import org.casper.exception.CasperException;
+import org.casper.exception.CasperQueryBuilderException;
+import org.casper.query.QueryBuilder;
+import org.casper.query.QueryPart;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The query a derived repository method runs, parsed once from the method
+ * name and signature. The query parts hold placeholders for the method
+ * arguments, which are bound on each call, so invoking the method does no
+ * string handling at all.
+ *
+ * @since 1.2
+ */
+final class QueryTemplate {
+
+    enum Kind {
+        Find, FindOne, Iterable, Iterator, Remove, Aggregate, Subscribe
+    }
+
+    private final Kind kind;
+    private final QueryBuilder.Type type;
+    private final QueryPart[] parts;
+    private final Class<?> returnType;
+    // the projection interface the results are wrapped in, or null
+    private final Class<?> projection;
+
+    private QueryTemplate(Kind kind, QueryBuilder qb, Class<?> returnType, Class<?> projection) {
+        this.kind = kind;
+        this.type = qb.getType();
+        this.parts = qb.getParts().toArray(new QueryPart[qb.getParts().size()]);
+        this.returnType = returnType;
+        this.projection = projection;
+    }
+
+    /**
+     * Parses a derived repository method
+     *
+     * @param method the method
+     * @return the template of its query
+     * @throws CasperQueryBuilderException if the name is not a valid query or
+     *                                     does not match the parameters
+     */
+    static QueryTemplate parse(Method method) throws CasperQueryBuilderException {
+        String methodName = method.getName();
+        Object[] args = new Object[method.getParameterTypes().length];
+        for (int i = 0; i < args.length; i++)
+            args[i] = new Argument(i);
+
+        if (methodName.startsWith("countBy") || methodName.startsWith("countGroupBy")
+                || methodName.matches("(sum|avg|min|max)\\p{Upper}.*")) {
+            return aggregate(method, args);
+        } else if (methodName.startsWith("find")) {
+
+            if (methodName.startsWith("findAll"))
+                methodName = "find" + methodName.substring(7);
+
+            String s = methodName.substring(4);
+            String sort = null;
+            int order = s.indexOf("OrderBy");
+            if (order >= 0) {
+                sort = s.substring(order + 7);
+                s = s.substring(0, order);
+                // a trailing Limit takes the last argument, after the conditions
+                if (sort.endsWith("Limit")) {
+                    sort = sort.substring(0, sort.length() - 5);
+                    s += "Limit";
+                }
+            }
+
+            boolean single = false;
+            String select = null;
+            if (s.isEmpty() || s.equals("Limit")) {
+                // every record, only sorted
+            } else if (s.startsWith("By")) {
+                s = s.substring(2);
+            } else if (s.startsWith("OneBy")) {
+                single = true;
+                s = s.substring(5);
+            } else {
+                // the fields to select, as in findNameAndAgeByJob
+                int by = by(s);
+                if (by < 0)
+                    throw new CasperQueryBuilderException("Invalid query type");
+                select = s.substring(0, by);
+                s = s.substring(by + 2);
+            }
+
+            Class<?> projection = projection(method);
+            String[] fields;
+            if (projection != null && projection != Object[].class) {
+                if (select != null)
+                    throw new CasperQueryBuilderException("Invalid query type");
+                fields = ProjectionHandler.fields(projection);
+            } else if (select != null) {
+                fields = select.split("(?<!^)And(?=\\p{Upper})");
+                for (int i = 0; i < fields.length; i++)
+                    fields[i] = formatFieldName(fields[i]);
+            } else if (projection != null) {
+                throw new CasperQueryBuilderException("Invalid query type");
+            } else {
+                fields = null;
+            }
+
+            QueryBuilder qb = parse(QueryBuilder.Type.FIND, s, args);
+            if (sort != null)
+                orderBy(qb, sort);
+            if (fields != null) {
+                for (String field : fields)
+                    qb.add(QueryPart.Command.Select, field, null);
+            }
+            if (projection == Object[].class)
+                projection = null;
+
+            // lazy results for finders declared to return Iterable or Iterator
+            Class<?> type = method.getReturnType();
+            Kind kind = single ? Kind.FindOne : type == Iterable.class ? Kind.Iterable
+                    : type == Iterator.class ? Kind.Iterator : Kind.Find;
+            return new QueryTemplate(kind, qb, type, projection);
+        } else if (methodName.startsWith("deleteBy") || methodName.startsWith("removeBy")) {
+            QueryBuilder qb = parse(QueryBuilder.Type.REMOVE, methodName.substring(8), args);
+            return new QueryTemplate(Kind.Remove, qb, method.getReturnType(), null);
+        } else if (methodName.startsWith("subscribeBy")) {
+            // the listener comes last, after the arguments of the conditions
+            Class<?>[] parameters = method.getParameterTypes();
+            if (parameters.length == 0 || parameters[parameters.length - 1] != ChangeListener.class)
+                throw new CasperQueryBuilderException("Invalid query type");
+            QueryBuilder qb = parse(QueryBuilder.Type.FIND, methodName.substring(11),
+                    Arrays.copyOf(args, args.length - 1));
+            return new QueryTemplate(Kind.Subscribe, qb, method.getReturnType(), null);
+        }
+
+        throw new CasperQueryBuilderException("Invalid query type");
+    }
+
+    /**
+     * Binds the arguments of a call and runs the query
+     *
+     * @param database   the database
+     * @param repository the collection of the repository
+     * @param args       the arguments of the call
+     * @return the result, as the method declares it
+     * @throws CasperException if the query fails
+     */
+    Object execute(CasperDatabase database, String repository, Object[] args) throws CasperException {
+        QueryBuilder qb = bind(repository, args);
+        switch (kind) {
+            case Aggregate:
+                return convert(database.aggregate(qb), returnType);
+            case Subscribe:
+                return database.subscribe(qb, (ChangeListener<?>) args[args.length - 1]);
+            case Remove:
+                int removed = database.remove(qb);
+                return returnType == long.class || returnType == Long.class ? (Object) (long) removed : removed;
+            case FindOne:
+                Object result = database.findOne(qb);
+                return projection != null && result != null
+                        ? ProjectionHandler.wrap(projection, (Object[]) result) : result;
+            case Iterable:
+            case Iterator:
+                Iterable<Object> results = database.iterate(qb);
+                if (projection != null)
+                    results = ProjectionHandler.wrap(projection, results);
+                return kind == Kind.Iterator ? results.iterator() : results;
+            default:
+                List<Object> list = database.find(qb);
+                if (projection != null && list != null) {
+                    List<Object> wrapped = new ArrayList<>(list.size());
+                    for (Object tuple : list)
+                        wrapped.add(ProjectionHandler.wrap(projection, (Object[]) tuple));
+                    return wrapped;
+                }
+                return list;
+        }
+    }
+
+    // a new query with the placeholders replaced by the arguments; parts
+    // without one are shared, as nothing changes a part once added
+    private QueryBuilder bind(String repository, Object[] args) {
+        QueryBuilder qb = new QueryBuilder(repository, type);
+        List<QueryPart> bound = qb.getParts();
+        for (QueryPart part : parts) {
+            Object value = part.getValue();
+            if (value instanceof Argument) {
+                value = args[((Argument) value).index];
+            } else if (value instanceof Object[]) {
+                Object[] range = ((Object[]) value).clone();
+                for (int i = 0; i < range.length; i++)
+                    range[i] = args[((Argument) range[i]).index];
+                value = range;
+            } else {
+                bound.add(part);
+                continue;
+            }
+            bound.add(new QueryPart(part.getCommand(), part.getField(), value));
+        }
+        return qb;
+    }
+
+    private static QueryBuilder parse(QueryBuilder.Type type, String s, Object[] args)
+            throws CasperQueryBuilderException {
+        String[] parts = s.split("(?=\\p{Upper})");
+        QueryBuilder qb = new QueryBuilder(null, type);
+        String field = "";
+        int partIndex = 0;
+        int index = 0;
+        QueryPart.Command command = QueryPart.Command.EqField;
+        for (String p : parts) {
+            switch (p.toLowerCase()) {
+                case "not":
+                    if (field.length() == 0) {
+                        field += p;
+                        break;
+                    }
+                    qb.add(QueryPart.Command.Not);
+                    break;
+                case "like":
+                    if (field.length() == 0) {
+                        field += p;
+                        break;
+                    }
+                    command = QueryPart.Command.LikeField;
+                    break;
+                case "between":
+                    if (field.length() == 0) {
+                        field += p;
+                        break;
+                    }
+                    command = QueryPart.Command.BetweenField;
+                    break;
+                case "and":
+                    partIndex = condition(qb, command, field, args, partIndex);
+                    qb.add(QueryPart.Command.And);
+                    field = "";
+                    break;
+                case "or":
+                    partIndex = condition(qb, command, field, args, partIndex);
+                    qb.add(QueryPart.Command.Or);
+                    field = "";
+                    break;
+                case "limit":
+
+                    if (index < parts.length - 1) {
+                        field += p;
+                        command = QueryPart.Command.EqField;
+                        break;
+                    }
+
+                    if (field.length() > 0) {
+                        partIndex = condition(qb, command, field, args, partIndex);
+                        field = "";
+                    }
+
+                    if (partIndex >= args.length)
+                        throw new CasperQueryBuilderException("Invalid number of arguments");
+
+                    qb.add(QueryPart.Command.Limit, args[partIndex]);
+                    ++partIndex;
+                    break;
+                default:
+                    command = QueryPart.Command.EqField;
+                    field += p;
+
+            }
+
+            ++index;
+        }
+
+        if (field.length() > 0)
+            partIndex = condition(qb, command, field, args, partIndex);
+        if (partIndex != args.length)
+            throw new CasperQueryBuilderException("Invalid number of arguments");
+
+        return qb;
+    }
+
+    // adds the sort keys of an OrderBy clause such as NameAscAgeDesc
+    private static void orderBy(QueryBuilder qb, String s) throws CasperQueryBuilderException {
+        String field = "";
+        int keys = 0;
+        for (String p : s.split("(?=\\p{Upper})")) {
+            if ((p.equals("Asc") || p.equals("Desc")) && field.length() > 0) {
+                qb.add(p.equals("Desc") ? QueryPart.Command.OrderByDesc : QueryPart.Command.OrderBy,
+                        formatFieldName(field), null);
+                field = "";
+                ++keys;
+            } else {
+                field += p;
+            }
+        }
+
+        if (field.length() > 0) {
+            qb.add(QueryPart.Command.OrderBy, formatFieldName(field), null);
+            ++keys;
+        }
+
+        if (keys == 0)
+            throw new CasperQueryBuilderException("Invalid sort order");
+    }
+
+    // countBy<conditions>, and sum, avg, min or max <Field>By<conditions>,
+    // optionally followed by GroupBy<Field>. A method returning a Map
+    // without a GroupBy groups by the field after By instead, as in
+    // Map<String, Long> sumAmountByCustomer().
+    private static QueryTemplate aggregate(Method method, Object[] args) throws CasperQueryBuilderException {
+        String name = method.getName();
+        QueryPart.Command function;
+        String s;
+        if (name.startsWith("count")) {
+            function = QueryPart.Command.Count;
+            s = name.substring(5);
+        } else {
+            function = QueryPart.Command.valueOf(Character.toUpperCase(name.charAt(0)) + name.substring(1, 3));
+            s = name.substring(3);
+        }
+
+        String group = null;
+        int g = s.indexOf("GroupBy");
+        if (g >= 0) {
+            group = s.substring(g + 7);
+            s = s.substring(0, g);
+        }
+
+        // the field is everything before the first By
+        String field = s;
+        String clause = "";
+        int by = by(s);
+        if (by >= 0) {
+            field = s.substring(0, by);
+            clause = s.substring(by + 2);
+        }
+
+        if (group == null && Map.class.isAssignableFrom(method.getReturnType())) {
+            group = clause;
+            clause = "";
+        }
+        if ((function == QueryPart.Command.Count) != field.isEmpty() || (group != null && group.isEmpty()))
+            throw new CasperQueryBuilderException("Invalid query type");
+
+        QueryBuilder qb = parse(QueryBuilder.Type.FIND, clause, args);
+        qb.add(function, field.isEmpty() ? null : formatFieldName(field), null);
+        if (group != null)
+            qb.add(QueryPart.Command.GroupBy, formatFieldName(group), null);
+
+        return new QueryTemplate(Kind.Aggregate, qb, method.getReturnType(), null);
+    }
+
+    // the offset of the first By word in a method name, or -1
+    private static int by(String s) {
+        int offset = 0;
+        for (String p : s.split("(?=\\p{Upper})")) {
+            if (p.equals("By"))
+                return offset;
+            offset += p.length();
+        }
+        return -1;
+    }
+
+    // the element type of a finder that selects fields: Object[] for
+    // tuples, a projection interface, or null for whole records
+    private static Class<?> projection(Method method) {
+        Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            ParameterizedType p = (ParameterizedType) type;
+            Type raw = p.getRawType();
+            if (raw == List.class || raw == Collection.class || raw == Iterable.class || raw == Iterator.class)
+                type = p.getActualTypeArguments()[0];
+        }
+
+        if (type == Object[].class)
+            return Object[].class;
+        if (type instanceof Class && ProjectionHandler.isProjection((Class<?>) type))
+            return (Class<?>) type;
+        return null;
+    }
+
+    // aggregates are Long, Double or BigDecimal; a primitive result of
+    // no values is zero
+    private static Object convert(Object value, Class<?> type) {
+        if (value == null && type.isPrimitive())
+            value = 0L;
+        if (!(value instanceof Number))
+            return value;
+
+        Number n = (Number) value;
+        if (type == int.class || type == Integer.class)
+            return n.intValue();
+        if (type == long.class || type == Long.class)
+            return n.longValue();
+        if (type == double.class || type == Double.class)
+            return n.doubleValue();
+        if (type == float.class || type == Float.class)
+            return n.floatValue();
+        return value;
+    }
+
+    // adds the condition on a field with its arguments, two for a range, and
+    // returns the index of the next argument
+    private static int condition(QueryBuilder qb, QueryPart.Command command, String field, Object[] args,
+                                 int partIndex) throws CasperQueryBuilderException {
+        int count = command == QueryPart.Command.BetweenField ? 2 : 1;
+        if (partIndex + count > args.length)
+            throw new CasperQueryBuilderException("Invalid number of arguments");
+
+        Object value = count == 2 ? new Object[]{args[partIndex], args[partIndex + 1]} : args[partIndex];
+        qb.add(command, formatFieldName(field), value);
+        return partIndex + count;
+    }
+
+    private static String formatFieldName(String field) {
+        return Character.toLowerCase(field.charAt(0)) + field.substring(1);
+    }
+
+    /**
+     * The place of a method argument in a query
+     */
+    private static final class Argument {
+        final int index;
+
+        Argument(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.casper.query;
+
+/**
+ * The ways a plan can find candidate records
+ *
+ * @since 1.2
+ */
+public enum AccessPath {
+    FullScan, PrimaryKey, HashIndex, RangeIndex
+}
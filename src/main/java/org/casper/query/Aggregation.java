@@ -0,0 +1,242 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.FieldAccessor;
+import org.casper.utils.ValueComparator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An aggregate function evaluated while a query scans its source, so no
+ * list of matches is ever built. Without a grouping field the result is a
+ * single value; with one, matches are hashed into one accumulator per
+ * distinct group value and the result maps each group, in the order it was
+ * first seen, to its value. The functions are:
+ * <ul>
+ * <li>Count: the number of matches, or of non-null values of a field, as a
+ * Long</li>
+ * <li>Sum: a Long while every value is integral and the total fits, a
+ * Double once a floating value is seen, and a {@link BigDecimal} for
+ * decimals or a total that overflows a long</li>
+ * <li>Avg: the mean as a Double</li>
+ * <li>Min and Max: the smallest and largest value as the
+ * {@link ValueComparator} for its class orders them</li>
+ * </ul>
+ * Nulls are skipped, and Sum, Avg, Min and Max of no values are null.
+ * Primitive number fields are read and summed without boxing.
+ *
+ * @since 1.2
+ */
+final class Aggregation {
+    private static final String NOT_A_NUMBER = "Field is not a number";
+
+    private final QueryPart.Command function;
+    private final FieldReader field;
+    private final FieldReader group;
+
+    /**
+     * @param function one of Count, Sum, Avg, Min and Max
+     * @param field    the aggregated field, or null to count records
+     * @param group    the grouping field, or null
+     * @throws CasperException if the function is not an aggregate or needs a
+     *                         field it was not given
+     */
+    Aggregation(QueryPart.Command function, String field, String group) throws CasperException {
+        switch (function) {
+            case Count:
+                break;
+            case Sum:
+            case Avg:
+            case Min:
+            case Max:
+                if (field == null)
+                    throw new CasperException("Field is null");
+                break;
+            default:
+                throw new CasperException("Not an aggregate: " + function);
+        }
+
+        this.function = function;
+        this.field = field != null ? new FieldReader(field) : null;
+        this.group = group != null ? new FieldReader(group) : null;
+    }
+
+    /**
+     * @return whether this is an ungrouped count of the matching records,
+     * which an index can answer without reading them
+     */
+    boolean isRecordCount() {
+        return function == QueryPart.Command.Count && field == null && group == null;
+    }
+
+    String getGroup() {
+        return group != null ? group.field : null;
+    }
+
+    /**
+     * Accumulates the records of a source that match a predicate
+     *
+     * @return the value, or a map from each group to its value
+     * @throws CasperException if a record cannot be compared or a value
+     *                         cannot be aggregated
+     */
+    Object execute(Iterable<?> source, QueryPredicate predicate) throws CasperException {
+        if (group == null) {
+            Accumulator total = new Accumulator();
+            for (Object o : source) {
+                if (predicate.test(o))
+                    add(total, o);
+            }
+            return total.result(function);
+        }
+
+        Map<Object, Accumulator> groups = new LinkedHashMap<>();
+        for (Object o : source) {
+            if (!predicate.test(o))
+                continue;
+
+            Object key = group.read(o);
+            Accumulator a = groups.get(key);
+            if (a == null) {
+                a = new Accumulator();
+                groups.put(key, a);
+            }
+            add(a, o);
+        }
+
+        Map<Object, Object> results = new LinkedHashMap<>();
+        for (Map.Entry<Object, Accumulator> e : groups.entrySet())
+            results.put(e.getKey(), e.getValue().result(function));
+        return results;
+    }
+
+    private void add(Accumulator a, Object o) throws CasperException {
+        if (field == null) {
+            a.count++;
+            return;
+        }
+
+        FieldAccessor f = field.accessor(o);
+        switch (function) {
+            case Sum:
+            case Avg:
+                if (f.isIntegral())
+                    a.add(f.getLong(o));
+                else if (f.isFloating())
+                    a.add(f.getDouble(o));
+                else
+                    a.add(f.get(o));
+                break;
+            case Min:
+            case Max:
+                a.extreme(f.get(o), function == QueryPart.Command.Min ? -1 : 1);
+                break;
+            default:
+                if (f.get(o) != null)
+                    a.count++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String s = function.name().toLowerCase() + "(" + (field != null ? field.field : "*") + ")";
+        return group != null ? group.field + ", " + s : s;
+    }
+
+    /**
+     * The running value of one group
+     */
+    private static final class Accumulator {
+        long count;
+        long longSum;
+        double doubleSum;
+        BigDecimal decimalSum;
+        boolean floating;
+        Object extreme;
+
+        void add(long value) {
+            long sum = longSum + value;
+            // on overflow the exact total moves to the decimal sum
+            if (((longSum ^ sum) & (value ^ sum)) < 0) {
+                decimalSum = decimal().add(BigDecimal.valueOf(longSum)).add(BigDecimal.valueOf(value));
+                sum = 0;
+            }
+            longSum = sum;
+            count++;
+        }
+
+        void add(double value) {
+            doubleSum += value;
+            floating = true;
+            count++;
+        }
+
+        void add(Object value) throws CasperException {
+            if (value == null)
+                return;
+            if (!(value instanceof Number))
+                throw new CasperException(NOT_A_NUMBER);
+
+            Class<?> type = value.getClass();
+            if (ValueComparator.isIntegral(type)) {
+                add(((Number) value).longValue());
+            } else if (ValueComparator.isFloating(type)) {
+                add(((Number) value).doubleValue());
+            } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+                BigDecimal d = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal((BigInteger) value);
+                decimalSum = decimal().add(d);
+                count++;
+            } else {
+                throw new CasperException(NOT_A_NUMBER);
+            }
+        }
+
+        // keeps the value if it sorts before the current one in the direction
+        void extreme(Object value, int direction) throws CasperException {
+            if (value == null)
+                return;
+            if (extreme == null) {
+                extreme = value;
+                return;
+            }
+
+            int c = ValueComparator.of(value.getClass()).compare(value, extreme, CasperUtils.Mode.Exact);
+            if (c != ValueComparator.UNORDERED && c * direction > 0)
+                extreme = value;
+        }
+
+        Object result(QueryPart.Command function) {
+            switch (function) {
+                case Count:
+                    return count;
+                case Min:
+                case Max:
+                    return extreme;
+                case Avg:
+                    return count > 0 ? sum().doubleValue() / count : null;
+                default:
+                    return count > 0 ? sum() : null;
+            }
+        }
+
+        private Number sum() {
+            if (decimalSum != null) {
+                BigDecimal total = decimalSum.add(BigDecimal.valueOf(longSum));
+                if (!floating)
+                    return total;
+                // NaN and the infinities have no decimal form
+                return Double.isNaN(doubleSum) || Double.isInfinite(doubleSum)
+                        ? (Number) (total.doubleValue() + doubleSum) : total.add(new BigDecimal(doubleSum));
+            }
+            return floating ? (Number) (longSum + doubleSum) : (Number) longSum;
+        }
+
+        private BigDecimal decimal() {
+            return decimalSum != null ? decimalSum : BigDecimal.ZERO;
+        }
+    }
+}
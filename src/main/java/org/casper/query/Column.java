@@ -0,0 +1,139 @@
+package org.casper.query;
+
+/**
+ * One field of a collection stored column-wise, as a read-only view over
+ * arrays owned by the collection. The collection only ever writes past the
+ * size of a published view, so a view can be scanned while it is appended to.
+ *
+ * @since 1.2
+ */
+public abstract class Column {
+    final Class<?> type;
+
+    private Column(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the boxed type of the field
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    public abstract boolean isNull(int position);
+
+    /**
+     * @return the value at a position, boxed to the field type
+     */
+    public abstract Object get(int position);
+
+    /**
+     * Integral, character and boolean fields, with characters stored as
+     * their code and booleans as 0 or 1
+     */
+    public static final class Longs extends Column {
+        final long[] values;
+        final long[] nulls;
+
+        /**
+         * @param type   the boxed field type
+         * @param values the values by position
+         * @param nulls  a bitmap of the positions holding null, or null if
+         *               there are none
+         */
+        public Longs(Class<?> type, long[] values, long[] nulls) {
+            super(type);
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public boolean isNull(int position) {
+            return nulls != null && (nulls[position >>> 6] & (1L << position)) != 0;
+        }
+
+        @Override
+        public Object get(int position) {
+            if (isNull(position))
+                return null;
+
+            long v = values[position];
+            if (type == Integer.class)
+                return (int) v;
+            if (type == Long.class)
+                return v;
+            if (type == Short.class)
+                return (short) v;
+            if (type == Byte.class)
+                return (byte) v;
+            if (type == Character.class)
+                return (char) v;
+            return v != 0;
+        }
+
+        boolean isNumber() {
+            return Number.class.isAssignableFrom(type);
+        }
+    }
+
+    /**
+     * Floating point fields
+     */
+    public static final class Doubles extends Column {
+        final double[] values;
+        final long[] nulls;
+
+        public Doubles(Class<?> type, double[] values, long[] nulls) {
+            super(type);
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public boolean isNull(int position) {
+            return nulls != null && (nulls[position >>> 6] & (1L << position)) != 0;
+        }
+
+        @Override
+        public Object get(int position) {
+            if (isNull(position))
+                return null;
+
+            return type == Float.class ? (Object) (float) values[position] : values[position];
+        }
+    }
+
+    /**
+     * String fields, dictionary encoded so each distinct value is stored
+     * and compared once
+     */
+    public static final class Strings extends Column {
+        final int[] codes;
+        final String[] dictionary;
+        final int count;
+
+        /**
+         * @param codes      the dictionary code by position, -1 for null
+         * @param dictionary the distinct values by code
+         * @param count      the number of codes in use
+         */
+        public Strings(int[] codes, String[] dictionary, int count) {
+            super(String.class);
+            this.codes = codes;
+            this.dictionary = dictionary;
+            this.count = count;
+        }
+
+        @Override
+        public boolean isNull(int position) {
+            return codes[position] < 0;
+        }
+
+        @Override
+        public Object get(int position) {
+            int code = codes[position];
+            return code >= 0 ? dictionary[code] : null;
+        }
+    }
+}
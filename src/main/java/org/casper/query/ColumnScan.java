@@ -0,0 +1,309 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.ValueComparator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a predicate tree over the columns of a {@link ColumnView}. Each
+ * node narrows a bitmap of candidate positions: a conjunct only sees the
+ * positions every earlier conjunct accepted, and a disjunct only those no
+ * earlier one did, so records are compared in the same order and raise the
+ * same errors as a row-by-row scan. Comparisons on a column run over its
+ * array, and string comparisons run once per distinct value. Anything else
+ * falls back to testing the record. Records are only read for the positions
+ * that match, or that need the fallback. A projection reads the selected
+ * columns at the matching positions, so records are not read at all when
+ * every selected field is a column.
+ *
+ * @since 1.2
+ */
+final class ColumnScan {
+    private static final String MISMATCH = "Field and value type mismatch";
+
+    private ColumnScan() {
+    }
+
+    static <X> List<X> execute(QueryPredicate predicate, ColumnView<X> view, int limit) throws CasperException {
+        int size = view.size();
+        long[] hits = hits(predicate, view, size);
+        List<X> results = new ArrayList<>();
+        for (int i = next(hits, 0, size); i >= 0; i = next(hits, i + 1, size)) {
+            X x = view.get(i);
+            if (x != null) {
+                results.add(x);
+                if (results.size() == limit)
+                    break;
+            }
+        }
+
+        return results;
+    }
+
+    static List<Object[]> project(QueryPredicate predicate, ColumnView<?> view, int limit, Projection projection)
+            throws CasperException {
+        int size = view.size();
+        long[] hits = hits(predicate, view, size);
+        Column[] columns = new Column[projection.size()];
+        for (int f = 0; f < columns.length; f++)
+            columns[f] = view.column(projection.getField(f));
+
+        List<Object[]> results = new ArrayList<>();
+        for (int i = next(hits, 0, size); i >= 0; i = next(hits, i + 1, size)) {
+            if (!view.contains(i))
+                continue;
+
+            Object x = null;
+            Object[] tuple = new Object[columns.length];
+            for (int f = 0; f < columns.length; f++) {
+                if (columns[f] != null) {
+                    tuple[f] = columns[f].get(i);
+                } else {
+                    if (x == null)
+                        x = view.get(i);
+                    tuple[f] = projection.read(f, x);
+                }
+            }
+
+            results.add(tuple);
+            if (results.size() == limit)
+                break;
+        }
+
+        return results;
+    }
+
+    private static long[] hits(QueryPredicate predicate, ColumnView<?> view, int size) throws CasperException {
+        long[] domain = new long[(size + 63) >>> 6];
+        for (int i = 0; i < size; i++)
+            set(domain, i);
+
+        return eval(predicate, view, domain, size);
+    }
+
+    private static long[] eval(QueryPredicate p, ColumnView<?> view, long[] domain, int size) throws CasperException {
+        if (p instanceof Predicates.Constant)
+            return ((Predicates.Constant) p).value ? domain.clone() : new long[domain.length];
+
+        if (p instanceof Predicates.All) {
+            long[] bits = domain;
+            for (QueryPredicate child : ((Predicates.All) p).predicates) {
+                if (isEmpty(bits))
+                    break;
+                bits = eval(child, view, bits, size);
+            }
+            return bits;
+        }
+
+        if (p instanceof Predicates.Any) {
+            long[] result = new long[domain.length];
+            long[] rest = domain.clone();
+            for (QueryPredicate child : ((Predicates.Any) p).predicates) {
+                if (isEmpty(rest))
+                    break;
+                long[] bits = eval(child, view, rest, size);
+                for (int w = 0; w < result.length; w++) {
+                    result[w] |= bits[w];
+                    rest[w] &= ~bits[w];
+                }
+            }
+            return result;
+        }
+
+        if (p instanceof Predicates.Not) {
+            long[] bits = eval(((Predicates.Not) p).predicate, view, domain, size);
+            long[] result = new long[domain.length];
+            for (int w = 0; w < result.length; w++)
+                result[w] = domain[w] & ~bits[w];
+            return result;
+        }
+
+        Column column = p instanceof Predicates.FieldPredicate ? view.column(((Predicates.FieldPredicate) p).field) : null;
+        if (column == null)
+            return fallback(p, view, domain, size);
+        if (p instanceof Predicates.Compare)
+            return compare((Predicates.Compare) p, column, view, domain, size);
+        if (p instanceof Predicates.Between) {
+            long[] bits = compare(((Predicates.Between) p).lower, column, view, domain, size);
+            return compare(((Predicates.Between) p).upper, column, view, bits, size);
+        }
+        if (p instanceof Predicates.In)
+            return in((Predicates.In) p, column, view, domain, size);
+        if (p instanceof Predicates.Like)
+            return like((Predicates.Like) p, column, view, domain, size);
+
+        return fallback(p, view, domain, size);
+    }
+
+    private static long[] compare(Predicates.Compare p, Column column, ColumnView<?> view, long[] domain, int size)
+            throws CasperException {
+        Object value = p.value;
+        boolean integral = value != null && ValueComparator.isIntegral(value.getClass());
+        boolean floating = value != null && ValueComparator.isFloating(value.getClass());
+
+        // the comparison only yields -1, 0 or 1, so decide each outcome once
+        boolean lt = Predicates.accept(-1, p.mode);
+        boolean eq = Predicates.accept(0, p.mode);
+        boolean gt = Predicates.accept(1, p.mode);
+        long[] result = new long[domain.length];
+
+        if (column instanceof Column.Longs && (((Column.Longs) column).isNumber() ? integral || floating
+                : value != null && value.getClass() == column.type)) {
+            long[] values = ((Column.Longs) column).values;
+            long target = integral ? ((Number) value).longValue() : value instanceof Character ? (Character) value
+                    : value instanceof Boolean ? ((Boolean) value ? 1 : 0) : 0;
+            double fraction = floating ? ((Number) value).doubleValue() : 0;
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                if (column.isNull(i)) {
+                    test(p, view, i, result);
+                } else {
+                    int c = floating ? ValueComparator.compare(values[i], fraction)
+                            : ValueComparator.compare(values[i], target);
+                    if (c < 0 ? lt : c > 0 ? gt : eq)
+                        set(result, i);
+                }
+            }
+        } else if (column instanceof Column.Doubles && (integral || floating)) {
+            double[] values = ((Column.Doubles) column).values;
+            long whole = integral ? ((Number) value).longValue() : 0;
+            double target = floating ? ((Number) value).doubleValue() : 0;
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                if (column.isNull(i)) {
+                    test(p, view, i, result);
+                } else {
+                    int c = integral ? -ValueComparator.compare(whole, values[i])
+                            : ValueComparator.compare(values[i], target);
+                    if (c < 0 ? lt : c > 0 ? gt : eq)
+                        set(result, i);
+                }
+            }
+        } else if (column instanceof Column.Strings && value instanceof String) {
+            Column.Strings strings = (Column.Strings) column;
+            ValueComparator comparator = ValueComparator.of(String.class);
+            byte[] memo = new byte[strings.count];
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                int code = strings.codes[i];
+                if (code < 0) {
+                    test(p, view, i, result);
+                    continue;
+                }
+
+                if (memo[code] == 0) {
+                    int c = comparator.compare(strings.dictionary[code], value, p.mode);
+                    memo[code] = (byte) (Predicates.accept(c, p.mode) ? 1 : 2);
+                }
+                if (memo[code] == 1)
+                    set(result, i);
+            }
+        } else {
+            // nulls, decimals and mismatched types are compared, or rejected, by the record
+            return fallback(p, view, domain, size);
+        }
+
+        return result;
+    }
+
+    private static long[] in(Predicates.In p, Column column, ColumnView<?> view, long[] domain, int size) {
+        long[] result = new long[domain.length];
+        if (column instanceof Column.Strings) {
+            Column.Strings strings = (Column.Strings) column;
+            byte[] memo = new byte[strings.count];
+            boolean nulls = p.contains(null);
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                int code = strings.codes[i];
+                if (code < 0) {
+                    if (nulls)
+                        set(result, i);
+                    continue;
+                }
+
+                if (memo[code] == 0)
+                    memo[code] = (byte) (p.contains(strings.dictionary[code]) ? 1 : 2);
+                if (memo[code] == 1)
+                    set(result, i);
+            }
+        } else {
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                if (p.contains(column.get(i)))
+                    set(result, i);
+            }
+        }
+
+        return result;
+    }
+
+    private static long[] like(Predicates.Like p, Column column, ColumnView<?> view, long[] domain, int size)
+            throws CasperException {
+        long[] result = new long[domain.length];
+        if (!(column instanceof Column.Strings)) {
+            for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+                if (!column.isNull(i) && view.get(i) != null)
+                    throw new CasperException(MISMATCH);
+            }
+            return result;
+        }
+
+        Column.Strings strings = (Column.Strings) column;
+        byte[] memo = new byte[strings.count];
+        for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size)) {
+            int code = strings.codes[i];
+            if (code < 0)
+                continue;
+
+            if (memo[code] == 0)
+                memo[code] = (byte) (p.pattern.matches(strings.dictionary[code]) ? 1 : 2);
+            if (memo[code] == 1)
+                set(result, i);
+        }
+
+        return result;
+    }
+
+    private static long[] fallback(QueryPredicate p, ColumnView<?> view, long[] domain, int size)
+            throws CasperException {
+        long[] result = new long[domain.length];
+        for (int i = next(domain, 0, size); i >= 0; i = next(domain, i + 1, size))
+            test(p, view, i, result);
+        return result;
+    }
+
+    private static void test(QueryPredicate p, ColumnView<?> view, int position, long[] result)
+            throws CasperException {
+        Object x = view.get(position);
+        if (x != null && p.test(x))
+            set(result, position);
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static boolean isEmpty(long[] bits) {
+        for (long word : bits) {
+            if (word != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    // the first set position at or after from, or -1
+    private static int next(long[] bits, int from, int size) {
+        if (from >= size)
+            return -1;
+
+        int w = from >>> 6;
+        long word = bits[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < size ? i : -1;
+            }
+            if (++w == bits.length)
+                return -1;
+            word = bits[w];
+        }
+    }
+}
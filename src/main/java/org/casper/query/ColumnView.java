@@ -0,0 +1,34 @@
+package org.casper.query;
+
+/**
+ * A snapshot of a collection whose fields are also stored as columns.
+ * Positions run from 0 to the size; some hold records that are no longer
+ * part of the snapshot.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public interface ColumnView<T> {
+    int size();
+
+    /**
+     * @param field the field name
+     * @return the column holding the field, or null if it is not stored
+     * as a column
+     */
+    Column column(String field);
+
+    /**
+     * @param position a position below the size
+     * @return the record at the position, or null if it is not part of
+     * the snapshot
+     */
+    T get(int position);
+
+    /**
+     * @param position a position below the size
+     * @return whether the record at the position is part of the snapshot,
+     * without reading it
+     */
+    boolean contains(int position);
+}
@@ -0,0 +1,451 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.CasperUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * An immutable predicate tree built once from the parts of a query. The
+ * parts are folded left to right exactly as {@link ObjectMatcher} evaluates
+ * them, but each record is then tested without replaying the parts or
+ * allocating a matcher, and ANDs and ORs short-circuit. A compiled query can
+ * be executed any number of times, from any number of threads.
+ *
+ * -- ex: Compiling a query once and running it over several sources
+ * <pre>
+ * {@code
+ *      CompiledQuery q = ListQuery.from(list).where("name").like("B%").and("age").gt(20).compile();
+ *      List<Person> a = q.execute(list);
+ *      List<Person> b = q.execute(otherList);
+ * }
+ * </pre>
+ *
+ * @since 1.2
+ */
+public final class CompiledQuery implements QueryPredicate {
+    private final QueryPredicate predicate;
+    private final int limit;
+    private final Ordering order;
+    private final Aggregation aggregation;
+    private final Projection projection;
+
+    private CompiledQuery(QueryPredicate predicate, int limit, Ordering order, Aggregation aggregation,
+                          Projection projection) {
+        this.predicate = predicate;
+        this.limit = limit;
+        this.order = order;
+        this.aggregation = aggregation;
+        this.projection = projection;
+    }
+
+    /**
+     * Compiles the parts of a query. A query without any predicate matches
+     * every record. OrderBy and OrderByDesc parts add sort keys in turn; an
+     * aggregate part (Count, Sum, Avg, Min or Max) with an optional GroupBy
+     * part makes the query an aggregation, answered by
+     * {@link #aggregate(Iterable)}. Select parts name the fields a query
+     * returns, as an {@code Object[]} tuple per match instead of the record.
+     *
+     * @param parts the parts of the query, in order
+     * @param limit the maximum number of results, 0 for no limit; a Limit
+     *              part overrides it
+     * @return the compiled query
+     * @throws CasperException if a part is invalid
+     */
+    public static CompiledQuery compile(Iterable<QueryPart> parts, int limit) throws CasperException {
+        QueryPredicate result = null;
+        QueryPart.Command join = null;
+        String field = null;
+        boolean negate = false;
+        Ordering order = null;
+        QueryPart.Command function = null;
+        String aggregated = null;
+        String group = null;
+        Projection projection = null;
+
+        for (QueryPart part : parts) {
+            QueryPredicate p = null;
+
+            switch (part.getCommand()) {
+                case And:
+                case Or:
+                    join = part.getCommand();
+                    break;
+                case AndField:
+                    field = part.getField();
+                    join = QueryPart.Command.And;
+                    break;
+                case OrField:
+                    field = part.getField();
+                    join = QueryPart.Command.Or;
+                    break;
+                case Not:
+                    negate = true;
+                    break;
+                case Where:
+                    break;
+                case WhereField:
+                    field = part.getField();
+                    break;
+                case Limit:
+                    limit = (Integer) part.getValue();
+                    break;
+                case OrderBy:
+                case OrderByDesc:
+                    order = Ordering.then(order, require(part.getField()),
+                            part.getCommand() == QueryPart.Command.OrderByDesc);
+                    break;
+                case Count:
+                case Sum:
+                case Avg:
+                case Min:
+                case Max:
+                    function = part.getCommand();
+                    aggregated = part.getField();
+                    break;
+                case GroupBy:
+                    group = require(part.getField());
+                    break;
+                case Select:
+                    projection = Projection.then(projection, require(part.getField()));
+                    break;
+                case Eq:
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.Exact);
+                    break;
+                case EqField:
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.Exact);
+                    break;
+                case Ne:
+                case Lg:
+                    negate = true;
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.Exact);
+                    break;
+                case NeField:
+                case LgField:
+                    negate = true;
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.Exact);
+                    break;
+                case Lt:
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.LessThan);
+                    break;
+                case LtField:
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.LessThan);
+                    break;
+                case Le:
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.LessThanEqual);
+                    break;
+                case LeField:
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.LessThanEqual);
+                    break;
+                case Gt:
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.GreaterThan);
+                    break;
+                case GtField:
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.GreaterThan);
+                    break;
+                case Ge:
+                    p = Predicates.compare(require(field), part.getValue(), CasperUtils.Mode.GreaterThanEqual);
+                    break;
+                case GeField:
+                    p = Predicates.compare(part.getField(), part.getValue(), CasperUtils.Mode.GreaterThanEqual);
+                    break;
+                case In:
+                    p = Predicates.in(require(field), part.getValue());
+                    break;
+                case InField:
+                    p = Predicates.in(part.getField(), part.getValue());
+                    break;
+                case Between:
+                    p = Predicates.between(require(field), part.getValue());
+                    break;
+                case BetweenField:
+                    p = Predicates.between(part.getField(), part.getValue());
+                    break;
+                case Like:
+                    p = Predicates.like(require(field), part.getValue());
+                    break;
+                case LikeField:
+                    p = Predicates.like(part.getField(), part.getValue());
+                    break;
+            }
+
+            if (p != null) {
+                if (negate)
+                    p = Predicates.not(p);
+                result = join(result, join, p);
+                join = null;
+                negate = false;
+            }
+        }
+
+        // a grouping on its own counts each group
+        Aggregation aggregation = function != null || group != null
+                ? new Aggregation(function != null ? function : QueryPart.Command.Count, aggregated, group) : null;
+        return new CompiledQuery(result != null ? result : Predicates.TRUE, limit, order, aggregation, projection);
+    }
+
+    /**
+     * @return the same query with another predicate tree, as reordered by
+     * the planner
+     */
+    CompiledQuery withPredicate(QueryPredicate predicate) {
+        return new CompiledQuery(predicate, limit, order, aggregation, projection);
+    }
+
+    /**
+     * Binds the parameters of a query compiled with {@link Parameter}s in
+     * place of some values
+     *
+     * @param args  the positional arguments, or null
+     * @param named the named arguments, or null
+     * @return the same query with the arguments in place of the parameters,
+     * or this query if it has none
+     * @throws CasperException if a parameter has no argument, or an argument
+     *                         is invalid for its clause
+     */
+    CompiledQuery bind(Object[] args, Map<String, ?> named) throws CasperException {
+        QueryPredicate bound = Predicates.bind(predicate, args, named);
+        return bound == predicate ? this : withPredicate(bound);
+    }
+
+    /**
+     * @return the same query computing an aggregate over its matches
+     */
+    CompiledQuery withAggregation(Aggregation aggregation) {
+        return new CompiledQuery(predicate, limit, order, aggregation, projection);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    QueryPredicate getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the sort keys, or null if results stay in source order
+     */
+    Ordering getOrdering() {
+        return order;
+    }
+
+    /**
+     * @return the aggregate computed over the matches, or null
+     */
+    Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    /**
+     * @return the fields each result holds, or null if results are records
+     */
+    Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return every field the query reads from a record to test, sort and
+     * project it, or null if it needs whole records
+     * @since 1.2
+     */
+    public Set<String> getFields() {
+        if (projection == null)
+            return null;
+
+        Set<String> fields = new HashSet<>();
+        if (!Predicates.fields(predicate, fields))
+            return null;
+        for (int i = 0; order != null && i < order.size(); i++)
+            fields.add(order.getField(i));
+        for (int i = 0; i < projection.size(); i++)
+            fields.add(projection.getField(i));
+
+        return fields;
+    }
+
+    /**
+     * @return each field the query requires to equal a value, with that
+     * value, in query order; empty if matches need not equal anything
+     * @since 1.2
+     */
+    public Map<String, Object> getEqualities() {
+        Map<String, Object> equalities = new LinkedHashMap<>();
+        for (QueryPredicate p : Predicates.conjuncts(predicate)) {
+            if (p instanceof Predicates.Compare) {
+                Predicates.Compare c = (Predicates.Compare) p;
+                if (c.mode == CasperUtils.Mode.Exact && c.value != null && !equalities.containsKey(c.field))
+                    equalities.put(c.field, c.value);
+            }
+        }
+
+        return equalities;
+    }
+
+    @Override
+    public boolean test(Object o) throws CasperException {
+        return predicate.test(o);
+    }
+
+    /**
+     * Runs the query over a source
+     *
+     * @param source the records to test
+     * @param <X>    the record type
+     * @return the matching records in source order, or sorted when the
+     * query has an ordering, at most limit of them; their selected fields
+     * when the query has a projection
+     * @throws CasperException if a record cannot be compared
+     */
+    @SuppressWarnings("unchecked")
+    public <X> List<X> execute(Iterable<X> source) throws CasperException {
+        if (order != null)
+            return project(order.select(source, predicate, limit));
+
+        List<Object> results = new ArrayList<>();
+
+        for (X x : source) {
+            if (predicate.test(x)) {
+                results.add(projection != null ? projection.apply(x) : x);
+                if (results.size() == limit)
+                    break;
+            }
+        }
+
+        return (List<X>) results;
+    }
+
+    /**
+     * Runs the query over a source lazily. Nothing is tested until the
+     * results are iterated, and each iteration tests only as many records
+     * as it takes to find the next match.
+     *
+     * @param source the records to test
+     * @param <X>    the record type
+     * @return the matching records in source order, at most limit of them;
+     * a record that cannot be compared fails the iteration with an
+     * {@link IllegalStateException}. A query with an ordering has to see
+     * every match before returning the first, so each iteration runs
+     * {@link #execute(Iterable)}.
+     * @since 1.2
+     */
+    public <X> Iterable<X> iterate(final Iterable<X> source) {
+        return new Iterable<X>() {
+            @Override
+            public Iterator<X> iterator() {
+                if (order == null)
+                    return new QueryIterator<>(predicate, source.iterator(), limit, projection);
+
+                try {
+                    return execute(source).iterator();
+                } catch (CasperException ex) {
+                    throw new IllegalStateException(ex.getMessage(), ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Computes the query's aggregate over the matching records of a source
+     * in a single pass, without collecting them. The limit and ordering do
+     * not apply.
+     *
+     * @param source the records to test
+     * @return the aggregate value, or a map from each group to its value
+     * @throws CasperException if the query has no aggregate, or a record
+     *                         cannot be compared or aggregated
+     * @since 1.2
+     */
+    public Object aggregate(Iterable<?> source) throws CasperException {
+        if (aggregation == null)
+            throw new CasperException("Query has no aggregate");
+
+        return aggregation.execute(source, predicate);
+    }
+
+    /**
+     * Runs the query over a source, splitting it across a fork-join pool
+     * when it holds at least threshold records. Results stay in source
+     * order and a limit stops every worker early.
+     *
+     * @param source    the records to test
+     * @param pool      the pool to run on, or null for the shared default pool
+     * @param threshold the smallest source worth scanning in parallel
+     * @param <X>       the record type
+     * @return the matching records in source order, or sorted when the
+     * query has an ordering, at most limit of them
+     * @throws CasperException if a record cannot be compared
+     */
+    public <X> List<X> execute(Collection<X> source, ForkJoinPool pool, int threshold) throws CasperException {
+        if (source.size() < threshold)
+            return execute(source);
+
+        ForkJoinPool p = pool != null ? pool : ParallelScan.defaultPool();
+        if (order != null)
+            return project(order.sort(ParallelScan.execute(predicate, source, 0, p), limit));
+
+        return project(ParallelScan.execute(predicate, source, limit, p));
+    }
+
+    /**
+     * Runs the query over the columns of a collection snapshot, reading
+     * records only for the positions that match. An unsorted projection
+     * reads the selected fields stored as columns straight from them, so
+     * records are only read for the other fields.
+     *
+     * @param view the snapshot
+     * @param <X>  the record type
+     * @return the matching records in position order, or sorted when the
+     * query has an ordering, at most limit of them
+     * @throws CasperException if a record cannot be compared
+     */
+    @SuppressWarnings("unchecked")
+    public <X> List<X> execute(ColumnView<X> view) throws CasperException {
+        if (order != null)
+            return project(order.sort(ColumnScan.execute(predicate, view, 0), limit));
+        if (projection != null)
+            return (List<X>) (List<?>) ColumnScan.project(predicate, view, limit, projection);
+
+        return ColumnScan.execute(predicate, view, limit);
+    }
+
+    /**
+     * @return the selected fields of each record when the query has a
+     * projection, or the records themselves
+     */
+    <X> List<X> project(List<X> records) throws CasperException {
+        return projection != null ? projection.<X>apply(records) : records;
+    }
+
+    @Override
+    public String toString() {
+        return predicate.toString();
+    }
+
+    // without a join the latest predicate replaces the result, and a join
+    // before any predicate sees the initial false result, as in ObjectMatcher
+    private static QueryPredicate join(QueryPredicate result, QueryPart.Command join, QueryPredicate p) {
+        if (join == null)
+            return p;
+        if (result == null)
+            return join == QueryPart.Command.And ? Predicates.FALSE : p;
+
+        return join == QueryPart.Command.And ? Predicates.and(result, p) : Predicates.or(result, p);
+    }
+
+    private static String require(String field) throws CasperException {
+        if (field == null)
+            throw new CasperException("Field is null");
+        return field;
+    }
+}
@@ -0,0 +1,37 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.FieldAccessor;
+
+/**
+ * Reads one field of the records a query tests, sorts, selects or
+ * aggregates, remembering the accessor for the last class seen so a pass
+ * over a single type resolves it only once
+ *
+ * @since 1.2
+ */
+final class FieldReader {
+    final String field;
+    private volatile FieldAccessor accessor;
+
+    FieldReader(String field) {
+        this.field = field;
+    }
+
+    Object read(Object o) throws CasperException {
+        return accessor(o).get(o);
+    }
+
+    FieldAccessor accessor(Object o) throws CasperException {
+        if (o == null)
+            throw new CasperException("Input object is null");
+
+        FieldAccessor a = accessor;
+        if (a == null || a.getOwner() != o.getClass()) {
+            a = FieldAccessor.of(o.getClass(), field);
+            accessor = a;
+        }
+
+        return a;
+    }
+}
@@ -0,0 +1,131 @@
+package org.casper.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * A SQL LIKE pattern translated once into a matcher. {@code %} matches any
+ * run of characters and {@code \%} a literal percent sign; everything else,
+ * including regex metacharacters, matches itself. The common shapes
+ * {@code abc}, {@code abc%}, {@code %abc} and {@code %abc%} are answered with
+ * equals, startsWith, endsWith and indexOf; other shapes fall back to a
+ * precompiled {@link Pattern}.
+ *
+ * @since 1.2
+ */
+public final class LikePattern {
+    private static final int CACHE_SIZE = 1024;
+    private static final ConcurrentMap<String, LikePattern> cache = new ConcurrentHashMap<>();
+
+    private final String like;
+    private final Shape shape;
+    private final String literal;
+    private final Pattern pattern;
+
+    private LikePattern(String like, Shape shape, String literal, Pattern pattern) {
+        this.like = like;
+        this.shape = shape;
+        this.literal = literal;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Finds the compiled form of a LIKE pattern, translating and caching it
+     * on first use
+     *
+     * @param like the LIKE pattern
+     * @return the compiled pattern
+     */
+    public static LikePattern of(String like) {
+        LikePattern p = cache.get(like);
+        if (p != null)
+            return p;
+
+        p = compile(like);
+        if (cache.size() >= CACHE_SIZE)
+            cache.clear();
+        cache.put(like, p);
+        return p;
+    }
+
+    public boolean matches(String s) {
+        switch (shape) {
+            case Any:
+                return true;
+            case Exact:
+                return s.equals(literal);
+            case Prefix:
+                return s.startsWith(literal);
+            case Suffix:
+                return s.endsWith(literal);
+            case Contains:
+                return s.contains(literal);
+            default:
+                return pattern.matcher(s).matches();
+        }
+    }
+
+    /**
+     * @return whether the pattern fixes the start of the string, so it only
+     * matches values sharing a literal prefix
+     */
+    boolean isAnchored() {
+        return shape == Shape.Exact || shape == Shape.Prefix;
+    }
+
+    @Override
+    public String toString() {
+        return like;
+    }
+
+    private static LikePattern compile(String like) {
+        List<String> literals = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < like.length(); ++i) {
+            char c = like.charAt(i);
+            if (c == '\\' && i + 1 < like.length() && like.charAt(i + 1) == '%') {
+                sb.append('%');
+                ++i;
+            } else if (c == '%') {
+                literals.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        literals.add(sb.toString());
+
+        // literals.get(0) precedes the first wildcard, the last one follows the last
+        int n = literals.size();
+        String first = literals.get(0);
+        String last = literals.get(n - 1);
+
+        if (n == 1)
+            return new LikePattern(like, Shape.Exact, first, null);
+        if (n == 2 && first.isEmpty() && last.isEmpty())
+            return new LikePattern(like, Shape.Any, null, null);
+        if (n == 2 && last.isEmpty())
+            return new LikePattern(like, Shape.Prefix, first, null);
+        if (n == 2 && first.isEmpty())
+            return new LikePattern(like, Shape.Suffix, last, null);
+        if (n == 3 && first.isEmpty() && last.isEmpty())
+            return new LikePattern(like, Shape.Contains, literals.get(1), null);
+
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            if (i > 0)
+                regex.append(".*");
+            if (!literals.get(i).isEmpty())
+                regex.append(Pattern.quote(literals.get(i)));
+        }
+
+        return new LikePattern(like, Shape.Regex, null, Pattern.compile(regex.toString(), Pattern.DOTALL));
+    }
+
+    private enum Shape {
+        Any, Exact, Prefix, Suffix, Contains, Regex
+    }
+}
@@ -2,20 +2,25 @@ package org.casper.query;
 
 import org.casper.exception.CasperException;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class ListQuery<T extends Collection<?>> {
     private T source;
     private QueryBuilder query;
     private int max;
+    private boolean parallel;
+    private ForkJoinPool pool;
+    private int threshold;
 
     private ListQuery(T source) {
         this.source = source;
         query = new QueryBuilder();
         max = 0;
+        threshold = ParallelScan.DEFAULT_THRESHOLD;
     }
 
     public static <T extends Collection<?>> ListQuery<T> from(T source) {
@@ -105,6 +110,16 @@ public class ListQuery<T extends Collection<?>> {
         return this;
     }
 
+    public ListQuery<T> between(String field, Number start, Number end) {
+        query.add(QueryPart.Command.BetweenField, field, new Object[]{start, end});
+        return this;
+    }
+
+    public ListQuery<T> between(Number start, Number end) {
+        query.add(QueryPart.Command.Between, new Object[]{start, end});
+        return this;
+    }
+
     public ListQuery<T> in(String field, Collection<?> value) {
         query.add(QueryPart.Command.InField, field, value);
         return this;
@@ -135,6 +150,86 @@ public class ListQuery<T extends Collection<?>> {
         return this;
     }
 
+    public ListQuery<T> lg(String field, Parameter value) {
+        query.add(QueryPart.Command.NeField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> lg(Parameter value) {
+        query.add(QueryPart.Command.Ne, value);
+        return this;
+    }
+
+    public ListQuery<T> lt(String field, Parameter value) {
+        query.add(QueryPart.Command.LtField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> lt(Parameter value) {
+        query.add(QueryPart.Command.Lt, value);
+        return this;
+    }
+
+    public ListQuery<T> gt(String field, Parameter value) {
+        query.add(QueryPart.Command.GtField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> gt(Parameter value) {
+        query.add(QueryPart.Command.Gt, value);
+        return this;
+    }
+
+    public ListQuery<T> le(String field, Parameter value) {
+        query.add(QueryPart.Command.LeField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> le(Parameter value) {
+        query.add(QueryPart.Command.Le, value);
+        return this;
+    }
+
+    public ListQuery<T> ge(String field, Parameter value) {
+        query.add(QueryPart.Command.GeField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> ge(Parameter value) {
+        query.add(QueryPart.Command.Ge, value);
+        return this;
+    }
+
+    public ListQuery<T> between(String field, Parameter start, Parameter end) {
+        query.add(QueryPart.Command.BetweenField, field, new Object[]{start, end});
+        return this;
+    }
+
+    public ListQuery<T> between(Parameter start, Parameter end) {
+        query.add(QueryPart.Command.Between, new Object[]{start, end});
+        return this;
+    }
+
+    public ListQuery<T> in(String field, Parameter value) {
+        query.add(QueryPart.Command.InField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> in(Parameter value) {
+        query.add(QueryPart.Command.In, value);
+        return this;
+    }
+
+    public ListQuery<T> like(String field, Parameter value) {
+        query.add(QueryPart.Command.LikeField, field, value);
+        return this;
+    }
+
+    public ListQuery<T> like(Parameter value) {
+        query.add(QueryPart.Command.Like, value);
+        return this;
+    }
+
     public ListQuery<T> and() {
         query.add(QueryPart.Command.And);
         return this;
@@ -175,203 +270,258 @@ public class ListQuery<T extends Collection<?>> {
         return this;
     }
 
+    /**
+     * Sorts the results by a field, smallest first, after any earlier sort
+     * keys. With a limit only the first results are kept while scanning.
+     *
+     * @param field the field to sort by
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> orderBy(String field) {
+        query.add(QueryPart.Command.OrderBy, field, null);
+        return this;
+    }
+
+    /**
+     * Sorts the results by a field, largest first, after any earlier sort
+     * keys
+     *
+     * @param field the field to sort by
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> orderByDesc(String field) {
+        query.add(QueryPart.Command.OrderByDesc, field, null);
+        return this;
+    }
+
+    /**
+     * Returns only the given fields of each match: execute and iterate then
+     * yield an {@code Object[]} per match holding the fields in order
+     *
+     * @param fields the fields to select
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> select(String... fields) {
+        for (String field : fields)
+            query.add(QueryPart.Command.Select, field, null);
+        return this;
+    }
+
+    /**
+     * Scans the source in parallel on the shared fork-join pool once it
+     * holds enough records to be worth splitting
+     *
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> parallel() {
+        return parallel(null);
+    }
+
+    /**
+     * Scans the source in parallel on the given pool once it holds enough
+     * records to be worth splitting
+     *
+     * @param pool the pool to run on, or null for the shared default pool
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> parallel(ForkJoinPool pool) {
+        this.parallel = true;
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Sets the smallest source scanned in parallel; smaller sources are
+     * scanned on the calling thread
+     *
+     * @param threshold the minimum number of records
+     * @return the current instance of the ListQuery
+     * @since 1.2
+     */
+    public ListQuery<T> threshold(int threshold) {
+        this.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Compiles the current query into an immutable predicate tree that can
+     * be executed many times, from many threads
+     *
+     * @return the compiled query, carrying the current limit
+     * @throws CasperException if a part of the query is invalid
+     * @since 1.2
+     */
+    public CompiledQuery compile() throws CasperException {
+        return CompiledQuery.compile(query, max);
+    }
+
+    /**
+     * Compiles and plans the current query once, for running many times
+     * with different arguments for its {@link Parameter}s. Later changes to
+     * this builder do not affect the prepared query.
+     *
+     * @return the prepared query, carrying the current limit and parallel
+     * settings
+     * @throws CasperException if a part of the query is invalid
+     * @since 1.2
+     */
+    public PreparedQuery prepare() throws CasperException {
+        return new PreparedQuery(plan().getFilter(), source, parallel, pool, threshold);
+    }
+
     @SuppressWarnings("unchecked")
     public <X> List<X> execute() throws CasperException {
-        List<X> results = new ArrayList<>();
-
-        for (X x : (Collection<X>) this.source) {
-            if (buildQuery(x).isMatch()) {
-                results.add(x);
-                if (results.size() == max)
-                    break;
-            }
-        }
+        CompiledQuery q = plan().getFilter();
+        if (parallel)
+            return q.execute((Collection<X>) this.source, pool, threshold);
+
+        return q.execute((Collection<X>) this.source);
+    }
+
+    /**
+     * Runs the current query lazily, testing records only as the results
+     * are iterated and stopping at the limit. The query is compiled now,
+     * so later changes to this builder do not affect the results.
+     *
+     * @return the matching records in source order
+     * @throws CasperException if a part of the query is invalid
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <X> Iterable<X> iterate() throws CasperException {
+        return plan().getFilter().iterate((Collection<X>) this.source);
+    }
+
+    /**
+     * @return the number of matching records, counted while scanning
+     * @throws CasperException if a part of the query is invalid or a record
+     *                         cannot be compared
+     * @since 1.2
+     */
+    public long count() throws CasperException {
+        return (Long) aggregate(QueryPart.Command.Count, null, null);
+    }
+
+    /**
+     * @param field a number field
+     * @return the sum of the field over the matching records: a Long for
+     * integral values, a Double once a floating value is seen, or a
+     * BigDecimal; null if there are none
+     * @throws CasperException if the query is invalid or a value is not a
+     *                         number
+     * @since 1.2
+     */
+    public Number sum(String field) throws CasperException {
+        return (Number) aggregate(QueryPart.Command.Sum, field, null);
+    }
+
+    /**
+     * @param field a number field
+     * @return the mean of the field over the matching records, or null if
+     * there are none
+     * @throws CasperException if the query is invalid or a value is not a
+     *                         number
+     * @since 1.2
+     */
+    public Double avg(String field) throws CasperException {
+        return (Double) aggregate(QueryPart.Command.Avg, field, null);
+    }
+
+    /**
+     * @param field the field
+     * @return the smallest non-null value of the field over the matching
+     * records, or null if there are none
+     * @throws CasperException if the query is invalid or values cannot be
+     *                         compared
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V min(String field) throws CasperException {
+        return (V) aggregate(QueryPart.Command.Min, field, null);
+    }
+
+    /**
+     * @param field the field
+     * @return the largest non-null value of the field over the matching
+     * records, or null if there are none
+     * @throws CasperException if the query is invalid or values cannot be
+     *                         compared
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V max(String field) throws CasperException {
+        return (V) aggregate(QueryPart.Command.Max, field, null);
+    }
+
+    /**
+     * Groups the matching records by a field, hashing each into the running
+     * aggregate of its group as the source is scanned
+     *
+     * @param group    the field to group by
+     * @param function Count, Sum, Avg, Min or Max
+     * @param field    the aggregated field, or null to count records
+     * @return each group value, in the order first seen, with its aggregate
+     * @throws CasperException if the query is invalid or a value cannot be
+     *                         aggregated
+     * @since 1.2
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Map<K, V> groupBy(String group, QueryPart.Command function, String field) throws CasperException {
+        return (Map<K, V>) aggregate(function, field, group);
+    }
 
-        query.reset();
-        return results;
-    }
-
-    private <X> ObjectMatcher<X> buildQuery(X x) throws CasperException {
-        ObjectMatcher<X> q = ObjectMatcher.match(x);
-        for (QueryPart part : query) {
-            switch (part.getCommand()) {
-                case And:
-                    q.and();
-                    break;
-                case AndField:
-                    q.and(part.getField());
-                    break;
-                case Or:
-                    q.or();
-                    break;
-                case OrField:
-                    q.or(part.getField());
-                    break;
-                case Not:
-                    q.not();
-                    break;
-                case Where:
-                    q.where();
-                    break;
-                case WhereField:
-                    q.where(part.getField());
-                    break;
-                case Eq:
-                    q.eq(part.getValue());
-                    break;
-                case EqField:
-                    q.eq(part.getField(), part.getValue());
-                    break;
-                case Ne:
-                    q.ne(part.getValue());
-                    break;
-                case NeField:
-                    q.eq(part.getField(), part.getValue());
-                    break;
-                case Lt:
-                    q.lt((Number) part.getValue());
-                    break;
-                case LtField:
-                    q.lt(part.getField(), (Number) part.getValue());
-                    break;
-                case Gt:
-                    q.gt((Number) part.getValue());
-                    break;
-                case GtField:
-                    q.gt(part.getField(), (Number) part.getValue());
-                    break;
-                case Ge:
-                    q.ge((Number) part.getValue());
-                    break;
-                case GeField:
-                    q.ge(part.getField(), (Number) part.getValue());
-                    break;
-                case Le:
-                    q.le((Number) part.getValue());
-                    break;
-                case LeField:
-                    q.le(part.getField(), (Number) part.getValue());
-                    break;
-                case Lg:
-                    q.lg((Number) part.getValue());
-                    break;
-                case LgField:
-                    q.lg(part.getField(), (Number) part.getValue());
-                    break;
-                case In:
-                    if (part.getValue().getClass().isArray())
-                        q.in((T[]) part.getValue());
-                    else if (part.getValue() instanceof Collection<?>)
-                        q.in((List<T>) part.getValue());
-                    else
-                        throw new CasperException("Invalid input for IN clause");
-                    break;
-                case InField:
-                    if (part.getValue().getClass().isArray())
-                        q.in(part.getField(), (T[]) part.getValue());
-                    else if (part.getValue() instanceof Collection<?>)
-                        q.in(part.getField(), (List<T>) part.getValue());
-                    else
-                        throw new CasperException("Invalid input for IN clause");
-                    break;
-                case Between:
-                    // TODO handle start and end?
-                    break;
-                case BetweenField:
-                    // TODO handle start and end?
-                    break;
-                case Like:
-                    q.like((String) part.getValue());
-                    break;
-                case LikeField:
-                    q.like(part.getField(), (String) part.getValue());
-                    break;
-            }
-        }
+    /**
+     * @param group the field to group by
+     * @return the number of matching records for each group value
+     * @throws CasperException if the query is invalid
+     * @since 1.2
+     */
+    public <K> Map<K, Long> countBy(String group) throws CasperException {
+        return groupBy(group, QueryPart.Command.Count, null);
+    }
+
+    /**
+     * Plans the current query against the source. A plain collection has
+     * no indexes, so the plan is always a scan, but the required predicates
+     * are reordered so the most selective run first.
+     *
+     * @return the plan
+     * @throws CasperException if a part of the query is invalid
+     * @since 1.2
+     */
+    public QueryPlan<?> plan() throws CasperException {
+        return plan(compile());
+    }
 
-        return q;
+    @SuppressWarnings("unchecked")
+    private QueryPlan<?> plan(CompiledQuery q) {
+        return QueryPlanner.plan(q, new ScanSource<>((Collection<Object>) source));
+    }
+
+    private Object aggregate(QueryPart.Command function, String field, String group) throws CasperException {
+        return plan(compile().withAggregation(new Aggregation(function, field, group))).aggregate();
+    }
+
+    /**
+     * @return a description of how the query would be answered
+     * @throws CasperException if a part of the query is invalid
+     * @since 1.2
+     */
+    public String explain() throws CasperException {
+        return plan().explain();
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("select * from ").append(source.getClass().getSimpleName())
-                .append(" where ");
-
-        for (QueryPart part : query) {
-            switch (part.getCommand()) {
-                case And:
-                    sb.append(" and  ");
-                    break;
-                case AndField:
-                    sb.append(" and ").append(part.getField());
-                    break;
-                case Or:
-                    sb.append(" or ");
-                    break;
-                case OrField:
-                    sb.append(" or ").append(part.getField());
-                    break;
-                case Not:
-                    sb.append("!");
-                    break;
-                case Where:
-                    sb.append("");
-                    break;
-                case WhereField:
-                    sb.append(part.getField());
-                    break;
-                case Eq:
-                    sb.append(" = ").append(part.getValue());
-                    break;
-                case EqField:
-                    sb.append(part.getField()).append(" = ").append(part.getValue());
-                    break;
-                case Ne:
-                    sb.append(" != ").append(part.getValue());
-                    break;
-                case Lt:
-                    sb.append(" < ").append(part.getValue());
-                    break;
-                case LtField:
-                    sb.append(part.getField()).append(" < ").append(part.getValue());
-                    break;
-                case Gt:
-                    sb.append(" > ").append(part.getValue());
-                    break;
-                case GtField:
-                    sb.append(part.getField()).append(" > ").append(part.getValue());
-                    break;
-                case Le:
-                    sb.append(" <= ").append(part.getValue());
-                    break;
-                case LeField:
-                    sb.append(part.getField()).append(" <= ").append(part.getValue());
-                    break;
-                case Ge:
-                    sb.append(" >= ").append(part.getValue());
-                    break;
-                case GeField:
-                    sb.append(part.getField()).append(" >= ").append(part.getValue());
-                    break;
-                case Lg:
-                    sb.append(" <> ").append(part.getValue());
-                    break;
-                case LgField:
-                    sb.append(part.getField()).append(" <> ").append(part.getValue());
-                    break;
-                case NeField:
-                    sb.append(part.getField()).append(" != ").append(part.getValue());
-                    break;
-                case Like:
-                    sb.append(" like ").append(part.getValue());
-                    break;
-                case LikeField:
-                    sb.append(part.getField()).append(" like ").append(part.getValue());
-                    break;
-            }
+        try {
+            return explain();
+        } catch (CasperException ex) {
+            return "invalid query: " + ex.getMessage();
         }
-
-        return sb.toString();
     }
 }
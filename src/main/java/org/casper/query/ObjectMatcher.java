@@ -2,6 +2,7 @@ package org.casper.query;
 
 import org.casper.exception.CasperException;
 import org.casper.utils.CasperUtils;
+import org.casper.utils.ValueComparator;
 
 import java.util.Collection;
 
@@ -110,7 +111,9 @@ public class ObjectMatcher<T> {
 
         int result = CasperUtils.compare(source, field, value, mode);
 
-        if (mode == CasperUtils.Mode.LessThan) {
+        if (result == ValueComparator.UNORDERED) {
+            this.result = negate;
+        } else if (mode == CasperUtils.Mode.LessThan) {
             this.result = negate != (result < 0);
         } else if (mode == CasperUtils.Mode.GreaterThan) {
             this.result = negate != (result > 0);
@@ -194,26 +197,15 @@ public class ObjectMatcher<T> {
     }
 
     public ObjectMatcher<T> like(String field, String value) throws CasperException {
-
-        value = value.replace("\\%", "$$__PERCENT__$$");
-        value = value.replace("%", "%$$__WILDCARD__$$%");
-
-        String[] parts = value.split("%");
-        StringBuilder sb = new StringBuilder();
-        for (String part : parts) {
-            switch (part) {
-                case "$$__WILDCARD__$$":
-                    sb.append("(.*)");
-                    break;
-                case "$$__PERCENT__$$":
-                    sb.append("%");
-                    break;
-                default:
-                    sb.append(part);
-            }
+        if (skipNext) {
+            skipNext = false;
+            negate = false;
+            return this;
         }
 
-        return test(field, sb.toString(), CasperUtils.Mode.Regex);
+        result = negate != Predicates.like(CasperUtils.getFieldValue(source, field), LikePattern.of(value));
+        negate = false;
+        return this;
     }
 
     public ObjectMatcher<T> like(String value) throws CasperException {
@@ -247,7 +239,7 @@ public class ObjectMatcher<T> {
 
     /**
      * Tests whether the value of the specified field is between a specific
-     * range of numbers
+     * range of numbers, inclusive; the bounds may be given in either order
      *
      * @param field the name of the field in the source object to check
      * @param start the minimum number
@@ -263,27 +255,19 @@ public class ObjectMatcher<T> {
             return this;
         }
 
-        Double s, e;
-
-        if (start.doubleValue() > end.doubleValue()) {
-            s = end.doubleValue();
-            e = start.doubleValue();
-        } else if (start.doubleValue() < end.doubleValue()) {
-            s = start.doubleValue();
-            e = end.doubleValue();
-        } else {
-            return test(field, start, CasperUtils.Mode.Exact);
+        if (CasperUtils.compareValue(start, end, CasperUtils.Mode.Exact) > 0) {
+            Number n = start;
+            start = end;
+            end = n;
         }
 
-        for (Double i = s; i <= e; ++i) {
-            if (CasperUtils.compare(source, field, i, CasperUtils.Mode.Between) == 0) {
-                result = !negate;
-                negate = false;
-                return this;
-            }
-        }
+        Object value = CasperUtils.getFieldValue(source, field);
+        int lower = CasperUtils.compareValue(value, start, CasperUtils.Mode.GreaterThanEqual);
+        int upper = CasperUtils.compareValue(value, end, CasperUtils.Mode.LessThanEqual);
+        boolean match = lower != ValueComparator.UNORDERED && lower >= 0
+                && upper != ValueComparator.UNORDERED && upper <= 0;
 
-        result = negate;
+        result = negate != match;
         negate = false;
         return this;
     }
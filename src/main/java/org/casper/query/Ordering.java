@@ -0,0 +1,217 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.ValueComparator;
+
+import java.util.*;
+
+/**
+ * The sort keys of a query, compared in turn. Values compare as the
+ * {@link ValueComparator} for their class orders them; nulls sort after
+ * every other value, so they come last in ascending order and first in
+ * descending order. Records with equal keys keep their source order.
+ * <p>
+ * Each key is read once per matching record. With a limit, only the best
+ * {@code limit} matches are kept, in a bounded heap whose head is the worst
+ * of them, so selecting the top K of n records takes O(n log K) time and
+ * O(K) space rather than sorting everything.
+ *
+ * @since 1.2
+ */
+final class Ordering {
+    private final FieldReader[] keys;
+    private final boolean[] descending;
+
+    private final Comparator<Sorted<?>> forward = new Comparator<Sorted<?>>() {
+        @Override
+        public int compare(Sorted<?> a, Sorted<?> b) {
+            int c = Ordering.this.compare(a.keys, b.keys);
+            return c != 0 ? c : (a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1));
+        }
+    };
+
+    private final Comparator<Sorted<?>> reverse = Collections.reverseOrder(forward);
+
+    private Ordering(FieldReader[] keys, boolean[] descending) {
+        this.keys = keys;
+        this.descending = descending;
+    }
+
+    /**
+     * @param order      the keys so far, or null
+     * @param field      the field to sort by next
+     * @param descending whether larger values come first
+     * @return a new ordering with the key appended
+     */
+    static Ordering then(Ordering order, String field, boolean descending) {
+        int n = order != null ? order.keys.length : 0;
+        FieldReader[] keys = new FieldReader[n + 1];
+        boolean[] directions = new boolean[n + 1];
+        if (order != null) {
+            System.arraycopy(order.keys, 0, keys, 0, n);
+            System.arraycopy(order.descending, 0, directions, 0, n);
+        }
+        keys[n] = new FieldReader(field);
+        directions[n] = descending;
+
+        return new Ordering(keys, directions);
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    String getField(int i) {
+        return keys[i].field;
+    }
+
+    boolean isDescending(int i) {
+        return descending[i];
+    }
+
+    /**
+     * Tests every record of a source and sorts the matches
+     *
+     * @param source    the records to test
+     * @param predicate the filter
+     * @param limit     the maximum number of results, 0 for no limit
+     * @return the first limit matches in this order
+     * @throws CasperException if a record cannot be compared
+     */
+    <X> List<X> select(Iterable<X> source, QueryPredicate predicate, int limit) throws CasperException {
+        try {
+            return limit > 0 ? top(source, predicate, limit) : all(source, predicate);
+        } catch (Failure f) {
+            throw f.error;
+        }
+    }
+
+    /**
+     * @return the first limit records of a list in this order
+     */
+    <X> List<X> sort(List<X> records, int limit) throws CasperException {
+        return select(records, Predicates.TRUE, limit);
+    }
+
+    /**
+     * Compares two records on the first key only
+     */
+    int compareFirst(Object a, Object b) throws CasperException {
+        int c = compare(keys[0].read(a), keys[0].read(b));
+        return descending[0] ? -c : c;
+    }
+
+    private <X> List<X> all(Iterable<X> source, QueryPredicate predicate) throws CasperException {
+        List<Sorted<X>> matches = new ArrayList<>();
+        for (X x : source) {
+            if (predicate.test(x))
+                matches.add(new Sorted<>(x, keys(x), matches.size()));
+        }
+
+        Collections.sort(matches, forward);
+        return values(matches);
+    }
+
+    private <X> List<X> top(Iterable<X> source, QueryPredicate predicate, int limit) throws CasperException {
+        // the best matches so far, the worst of them at the head
+        PriorityQueue<Sorted<X>> heap = new PriorityQueue<>(Math.min(limit, 1024), reverse);
+        long seq = 0;
+        for (X x : source) {
+            if (!predicate.test(x))
+                continue;
+
+            Object[] k = keys(x);
+            if (heap.size() < limit) {
+                heap.add(new Sorted<>(x, k, seq));
+            } else if (compare(k, heap.peek().keys) < 0) {
+                // a later record only displaces the worst when it sorts strictly before it
+                heap.poll();
+                heap.add(new Sorted<>(x, k, seq));
+            }
+            seq++;
+        }
+
+        List<Sorted<X>> best = new ArrayList<>(heap);
+        Collections.sort(best, forward);
+        return values(best);
+    }
+
+    private Object[] keys(Object x) throws CasperException {
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            values[i] = keys[i].read(x);
+        return values;
+    }
+
+    private int compare(Object[] a, Object[] b) {
+        for (int i = 0; i < keys.length; i++) {
+            int c;
+            try {
+                c = compare(a[i], b[i]);
+            } catch (CasperException ex) {
+                throw new Failure(ex);
+            }
+            if (c != 0)
+                return descending[i] ? -c : c;
+        }
+
+        return 0;
+    }
+
+    private static int compare(Object a, Object b) throws CasperException {
+        if (a == null || b == null)
+            return a == null ? (b == null ? 0 : 1) : -1;
+
+        int c = ValueComparator.of(a.getClass()).compare(a, b, CasperUtils.Mode.Exact);
+        return c == ValueComparator.UNORDERED ? 0 : c;
+    }
+
+    private static <X> List<X> values(List<Sorted<X>> sorted) {
+        List<X> list = new ArrayList<>(sorted.size());
+        for (Sorted<X> s : sorted)
+            list.add(s.value);
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(keys[i].field);
+            if (descending[i])
+                sb.append(" desc");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * A match with its sort keys and its position among the matches
+     */
+    private static final class Sorted<X> {
+        final X value;
+        final Object[] keys;
+        final long seq;
+
+        Sorted(X value, Object[] keys, long seq) {
+            this.value = value;
+            this.keys = keys;
+            this.seq = seq;
+        }
+    }
+
+    // carries a comparison failure out of a Comparator
+    private static final class Failure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final CasperException error;
+
+        Failure(CasperException error) {
+            super(error.getMessage(), error, false, false);
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evaluates a predicate over a source split into contiguous ranges, one
+ * fork-join task per range. Each range keeps its matches in source order and
+ * the ranges are concatenated in order, so results match a sequential scan.
+ * With a limit, a range stops as soon as the ranges up to and including it
+ * have found enough matches, since anything it finds later cannot make the
+ * first {@code limit} results.
+ *
+ * @since 1.2
+ */
+final class ParallelScan extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    static final int DEFAULT_THRESHOLD = 10000;
+    private static final int MIN_RANGE = 1024;
+    private static final int CHECK_INTERVAL = 1024;
+
+    private static volatile ForkJoinPool defaultPool;
+
+    private final Shared shared;
+    private final int first;
+    private final int last;
+
+    private ParallelScan(Shared shared, int first, int last) {
+        this.shared = shared;
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @return the pool used when a query does not name one, shared by every
+     * query and sized to the number of processors
+     */
+    static ForkJoinPool defaultPool() {
+        if (defaultPool == null) {
+            synchronized (ParallelScan.class) {
+                if (defaultPool == null)
+                    defaultPool = new ForkJoinPool();
+            }
+        }
+
+        return defaultPool;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <X> List<X> execute(QueryPredicate predicate, Collection<X> source, int limit,
+                               ForkJoinPool pool) throws CasperException {
+        List<?> records = source instanceof ArrayList ? (List<?>) source : Arrays.asList(source.toArray());
+        int size = records.size();
+        int ranges = Math.max(1, Math.min(pool.getParallelism() * 4, size / MIN_RANGE));
+
+        Shared shared = new Shared(predicate, records, limit, ranges);
+        pool.invoke(new ParallelScan(shared, 0, ranges));
+
+        if (shared.error.get() != null)
+            throw shared.error.get();
+
+        List<X> results = new ArrayList<>();
+        for (List<Object> matches : shared.matches) {
+            for (Object o : matches) {
+                if (limit > 0 && results.size() == limit)
+                    return results;
+                results.add((X) o);
+            }
+        }
+
+        return results;
+    }
+
+    @Override
+    protected void compute() {
+        if (last - first > 1) {
+            int middle = (first + last) >>> 1;
+            invokeAll(new ParallelScan(shared, first, middle), new ParallelScan(shared, middle, last));
+            return;
+        }
+
+        int size = shared.records.size();
+        int start = (int) ((long) size * first / shared.ranges);
+        int end = (int) ((long) size * last / shared.ranges);
+        List<Object> matches = shared.matches.get(first);
+
+        try {
+            for (int i = start; i < end; ++i) {
+                if ((i - start) % CHECK_INTERVAL == 0 && shared.isDone(first))
+                    return;
+
+                Object o = shared.records.get(i);
+                if (shared.predicate.test(o)) {
+                    matches.add(o);
+                    shared.found.incrementAndGet(first);
+                    if (shared.limit > 0 && shared.isDone(first))
+                        return;
+                }
+            }
+        } catch (CasperException ex) {
+            shared.error.compareAndSet(null, ex);
+        }
+    }
+
+    private static final class Shared {
+        private final QueryPredicate predicate;
+        private final List<?> records;
+        private final int limit;
+        private final int ranges;
+        private final List<List<Object>> matches;
+        private final AtomicIntegerArray found;
+        private final AtomicReference<CasperException> error = new AtomicReference<>();
+
+        private Shared(QueryPredicate predicate, List<?> records, int limit, int ranges) {
+            this.predicate = predicate;
+            this.records = records;
+            this.limit = limit;
+            this.ranges = ranges;
+            matches = new ArrayList<>(ranges);
+            for (int i = 0; i < ranges; ++i)
+                matches.add(new ArrayList<>());
+            found = new AtomicIntegerArray(ranges);
+        }
+
+        private boolean isDone(int range) {
+            if (error.get() != null)
+                return true;
+            if (limit <= 0)
+                return false;
+
+            int total = 0;
+            for (int i = 0; i <= range; ++i) {
+                total += found.get(i);
+                if (total >= limit)
+                    return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.Map;
+
+/**
+ * A placeholder for a value of a prepared query, bound by position or by
+ * name each time the query runs. A parameter can stand for the value of a
+ * comparison, LIKE or IN clause, for a bound of a BETWEEN clause, or for an
+ * element of an IN list.
+ *
+ * -- ex: Preparing a query once and running it with different values
+ * <pre>
+ * {@code
+ *      PreparedQuery q = ListQuery.from(list).where("name").eq(param(0)).and("age").gt(param("age")).prepare();
+ *      List<Person> a = q.execute("Bob", 20);
+ * }
+ * </pre>
+ *
+ * @since 1.2
+ */
+public final class Parameter {
+    private final int index;
+    private final String name;
+
+    private Parameter(int index, String name) {
+        this.index = index;
+        this.name = name;
+    }
+
+    /**
+     * @param index the position of the argument, from 0
+     * @return the positional parameter
+     */
+    public static Parameter param(int index) {
+        if (index < 0)
+            throw new IllegalArgumentException("Parameter index is negative");
+        return new Parameter(index, null);
+    }
+
+    /**
+     * @param name the name of the argument
+     * @return the named parameter
+     */
+    public static Parameter param(String name) {
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("Parameter name is empty");
+        return new Parameter(-1, name);
+    }
+
+    /**
+     * @param args  the positional arguments, or null
+     * @param named the named arguments, or null
+     * @return the argument this parameter stands for
+     * @throws CasperException if no argument was given for it
+     */
+    Object get(Object[] args, Map<String, ?> named) throws CasperException {
+        if (name == null) {
+            if (args == null || index >= args.length)
+                throw new CasperException("Parameter is not bound: " + this);
+            return args[index];
+        }
+
+        if (named == null || !named.containsKey(name))
+            throw new CasperException("Parameter is not bound: " + this);
+        return named.get(name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Parameter))
+            return false;
+
+        Parameter p = (Parameter) o;
+        return index == p.index && (name == null ? p.name == null : name.equals(p.name));
+    }
+
+    @Override
+    public int hashCode() {
+        return name != null ? name.hashCode() : index;
+    }
+
+    @Override
+    public String toString() {
+        return name != null ? ":" + name : "?" + index;
+    }
+}
@@ -0,0 +1,569 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.FieldAccessor;
+import org.casper.utils.ValueComparator;
+
+import java.util.*;
+
+/**
+ * Factory for the nodes of a compiled predicate tree. The nodes are visible
+ * to the package so the planner can inspect and reorder them.
+ *
+ * @since 1.2
+ */
+final class Predicates {
+    static final QueryPredicate TRUE = new Constant(true);
+    static final QueryPredicate FALSE = new Constant(false);
+
+    private Predicates() {
+    }
+
+    static QueryPredicate and(QueryPredicate left, QueryPredicate right) {
+        return new All(concat(left, right, All.class));
+    }
+
+    static QueryPredicate or(QueryPredicate left, QueryPredicate right) {
+        return new Any(concat(left, right, Any.class));
+    }
+
+    static QueryPredicate all(List<QueryPredicate> predicates) {
+        if (predicates.isEmpty())
+            return TRUE;
+        if (predicates.size() == 1)
+            return predicates.get(0);
+
+        return new All(predicates.toArray(new QueryPredicate[predicates.size()]));
+    }
+
+    static QueryPredicate not(QueryPredicate p) {
+        return p instanceof Not ? ((Not) p).predicate : new Not(p);
+    }
+
+    static QueryPredicate compare(String field, Object value, CasperUtils.Mode mode) {
+        if (value instanceof Parameter)
+            return new Deferred(Operator.Compare, field, value, mode);
+        return new Compare(field, value, mode);
+    }
+
+    /**
+     * A closed range on a field. The bounds may be given in either order.
+     *
+     * @param value the two bounds, as an array or a collection
+     */
+    static QueryPredicate between(String field, Object value) throws CasperException {
+        if (isParameterized(value))
+            return new Deferred(Operator.Between, field, value, null);
+
+        Object[] bounds = value instanceof Collection<?> ? ((Collection<?>) value).toArray()
+                : value instanceof Object[] ? (Object[]) value : null;
+        if (bounds == null || bounds.length != 2 || bounds[0] == null || bounds[1] == null)
+            throw new CasperException("Invalid input for BETWEEN clause");
+
+        Object from = bounds[0], to = bounds[1];
+        if (CasperUtils.compareValue(from, to, CasperUtils.Mode.Exact) > 0) {
+            from = bounds[1];
+            to = bounds[0];
+        }
+
+        return new Between(new Compare(field, from, CasperUtils.Mode.GreaterThanEqual),
+                new Compare(field, to, CasperUtils.Mode.LessThanEqual));
+    }
+
+    static QueryPredicate in(String field, Object value) throws CasperException {
+        if (isParameterized(value))
+            return new Deferred(Operator.In, field, value, null);
+        if (value != null && value.getClass().isArray())
+            return new In(field, new LinkedHashSet<>(Arrays.asList((Object[]) value)));
+        else if (value instanceof Collection<?>)
+            return new In(field, new LinkedHashSet<Object>((Collection<?>) value));
+
+        throw new CasperException("Invalid input for IN clause");
+    }
+
+    static QueryPredicate like(String field, Object value) {
+        if (value instanceof Parameter)
+            return new Deferred(Operator.Like, field, value, null);
+        return new Like(field, LikePattern.of((String) value));
+    }
+
+    static boolean like(Object o, LikePattern pattern) throws CasperException {
+        if (o == null)
+            return false;
+        if (!(o instanceof String))
+            throw new CasperException("Field and value type mismatch");
+
+        return pattern.matches((String) o);
+    }
+
+    /**
+     * @return whether a comparison result satisfies the mode; an
+     * {@link ValueComparator#UNORDERED} result satisfies none
+     */
+    static boolean accept(int result, CasperUtils.Mode mode) {
+        if (result == ValueComparator.UNORDERED)
+            return false;
+
+        switch (mode) {
+            case LessThan:
+                return result < 0;
+            case GreaterThan:
+                return result > 0;
+            case LessThanEqual:
+                return result <= 0;
+            case GreaterThanEqual:
+                return result >= 0;
+            default:
+                return result == 0;
+        }
+    }
+
+    /**
+     * @return the predicates every match must satisfy: the children of a
+     * top-level AND, or the predicate itself
+     */
+    static List<QueryPredicate> conjuncts(QueryPredicate p) {
+        if (p instanceof All)
+            return Arrays.asList(((All) p).predicates);
+
+        return Collections.singletonList(p);
+    }
+
+    /**
+     * Adds the fields a predicate reads to a set
+     *
+     * @return false if the predicate may read fields it does not name
+     */
+    static boolean fields(QueryPredicate p, Set<String> fields) {
+        if (p instanceof Constant)
+            return true;
+        if (p instanceof FieldPredicate) {
+            fields.add(((FieldPredicate) p).field);
+            return true;
+        }
+        if (p instanceof Not)
+            return fields(((Not) p).predicate, fields);
+        if (p instanceof Junction) {
+            for (QueryPredicate child : ((Junction) p).predicates) {
+                if (!fields(child, fields))
+                    return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces the parameters of a predicate tree with their arguments.
+     * Nodes without parameters are shared with the original tree, and the
+     * order of the nodes is kept.
+     *
+     * @return the bound tree, or the same tree if it has no parameters
+     * @throws CasperException if a parameter has no argument, or an argument
+     *                         is invalid for its clause
+     */
+    static QueryPredicate bind(QueryPredicate p, Object[] args, Map<String, ?> named) throws CasperException {
+        if (p instanceof Deferred)
+            return ((Deferred) p).bind(args, named);
+
+        if (p instanceof Not) {
+            QueryPredicate child = bind(((Not) p).predicate, args, named);
+            return child == ((Not) p).predicate ? p : new Not(child);
+        }
+
+        if (p instanceof Junction) {
+            QueryPredicate[] children = ((Junction) p).predicates;
+            QueryPredicate[] bound = null;
+            for (int i = 0; i < children.length; i++) {
+                QueryPredicate child = bind(children[i], args, named);
+                if (child != children[i] && bound == null)
+                    bound = children.clone();
+                if (bound != null)
+                    bound[i] = child;
+            }
+            if (bound == null)
+                return p;
+            return p instanceof All ? new All(bound) : new Any(bound);
+        }
+
+        return p;
+    }
+
+    private static boolean isParameterized(Object value) {
+        if (value instanceof Parameter)
+            return true;
+
+        Iterable<?> values = value instanceof Object[] ? Arrays.asList((Object[]) value)
+                : value instanceof Collection<?> ? (Collection<?>) value : null;
+        if (values != null) {
+            for (Object v : values) {
+                if (v instanceof Parameter)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    // consecutive ANDs (or ORs) are flattened into one node
+    private static QueryPredicate[] concat(QueryPredicate left, QueryPredicate right, Class<?> type) {
+        List<QueryPredicate> list = new ArrayList<>();
+        if (type.isInstance(left))
+            list.addAll(Arrays.asList(((Junction) left).predicates));
+        else
+            list.add(left);
+        list.add(right);
+        return list.toArray(new QueryPredicate[list.size()]);
+    }
+
+    private static String format(Object value) {
+        if (value instanceof String || value instanceof Character)
+            return "'" + value + "'";
+        return String.valueOf(value);
+    }
+
+    static final class Constant implements QueryPredicate {
+        final boolean value;
+
+        private Constant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(Object o) {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return Boolean.toString(value);
+        }
+    }
+
+    abstract static class Junction implements QueryPredicate {
+        final QueryPredicate[] predicates;
+
+        private Junction(QueryPredicate[] predicates) {
+            this.predicates = predicates;
+        }
+
+        String join(String operator) {
+            StringBuilder sb = new StringBuilder();
+            for (QueryPredicate p : predicates) {
+                if (sb.length() > 0)
+                    sb.append(operator);
+                if (p instanceof Junction)
+                    sb.append('(').append(p).append(')');
+                else
+                    sb.append(p);
+            }
+
+            return sb.toString();
+        }
+    }
+
+    static final class All extends Junction {
+        private All(QueryPredicate[] predicates) {
+            super(predicates);
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            for (QueryPredicate p : predicates) {
+                if (!p.test(o))
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join(" and ");
+        }
+    }
+
+    static final class Any extends Junction {
+        private Any(QueryPredicate[] predicates) {
+            super(predicates);
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            for (QueryPredicate p : predicates) {
+                if (p.test(o))
+                    return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join(" or ");
+        }
+    }
+
+    static final class Not implements QueryPredicate {
+        final QueryPredicate predicate;
+
+        private Not(QueryPredicate predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            return !predicate.test(o);
+        }
+
+        @Override
+        public String toString() {
+            return "not (" + predicate + ")";
+        }
+    }
+
+    /**
+     * A clause on one field, read through a {@link FieldReader}
+     */
+    abstract static class FieldPredicate implements QueryPredicate {
+        final String field;
+        private final FieldReader reader;
+
+        private FieldPredicate(String field) {
+            this.field = field;
+            reader = new FieldReader(field);
+        }
+
+        Object read(Object o) throws CasperException {
+            return reader.read(o);
+        }
+
+        FieldAccessor accessor(Object o) throws CasperException {
+            return reader.accessor(o);
+        }
+    }
+
+    /**
+     * Compares a field with a value. A primitive number field compared with
+     * a number is read and compared unboxed; anything else goes through the
+     * {@link ValueComparator} for the field's class.
+     */
+    static final class Compare extends FieldPredicate {
+        final Object value;
+        final CasperUtils.Mode mode;
+        // the value unboxed, when it is a primitive number
+        private final boolean integral;
+        private final boolean floating;
+        private final long longValue;
+        private final double doubleValue;
+
+        private Compare(String field, Object value, CasperUtils.Mode mode) {
+            super(field);
+            this.value = value;
+            this.mode = mode;
+            integral = value != null && ValueComparator.isIntegral(value.getClass());
+            floating = value != null && ValueComparator.isFloating(value.getClass());
+            longValue = integral ? ((Number) value).longValue() : 0;
+            doubleValue = floating ? ((Number) value).doubleValue() : 0;
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            FieldAccessor a = accessor(o);
+            int result;
+            if (integral && a.isIntegral())
+                result = ValueComparator.compare(a.getLong(o), longValue);
+            else if (floating && a.isIntegral())
+                result = ValueComparator.compare(a.getLong(o), doubleValue);
+            else if (floating && a.isFloating())
+                result = ValueComparator.compare(a.getDouble(o), doubleValue);
+            else if (integral && a.isFloating())
+                result = -ValueComparator.compare(longValue, a.getDouble(o));
+            else
+                result = CasperUtils.compareValue(a.get(o), value, mode);
+
+            return accept(result, mode);
+        }
+
+        @Override
+        public String toString() {
+            String operator;
+            switch (mode) {
+                case LessThan:
+                    operator = " < ";
+                    break;
+                case GreaterThan:
+                    operator = " > ";
+                    break;
+                case LessThanEqual:
+                    operator = " <= ";
+                    break;
+                case GreaterThanEqual:
+                    operator = " >= ";
+                    break;
+                default:
+                    operator = " = ";
+            }
+
+            return field + operator + format(value);
+        }
+    }
+
+    /**
+     * A closed range, tested as one comparison with each bound
+     */
+    static final class Between extends FieldPredicate {
+        final Compare lower;
+        final Compare upper;
+
+        private Between(Compare lower, Compare upper) {
+            super(lower.field);
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            return lower.test(o) && upper.test(o);
+        }
+
+        @Override
+        public String toString() {
+            return field + " between " + format(lower.value) + " and " + format(upper.value);
+        }
+    }
+
+    static final class In extends FieldPredicate {
+        final Set<Object> values;
+        // the values as ValueComparator keys, so numbers match across types
+        final Set<Object> keys = new HashSet<>();
+
+        private In(String field, Set<Object> values) {
+            super(field);
+            this.values = values;
+            for (Object v : values)
+                keys.add(ValueComparator.key(v));
+        }
+
+        /**
+         * @return whether a field value equals one of the values
+         */
+        boolean contains(Object value) {
+            return keys.contains(ValueComparator.key(value));
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            return contains(read(o));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Object v : values) {
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append(format(v));
+            }
+
+            return field + " in (" + sb + ")";
+        }
+    }
+
+    /**
+     * The clauses a parameter can stand in
+     */
+    enum Operator {
+        Compare, Between, In, Like
+    }
+
+    /**
+     * A clause whose value holds parameters. It cannot be tested until it
+     * is bound, which builds the clause for the arguments.
+     */
+    static final class Deferred extends FieldPredicate {
+        final Operator operator;
+        final Object value;
+        final CasperUtils.Mode mode;
+
+        private Deferred(Operator operator, String field, Object value, CasperUtils.Mode mode) {
+            super(field);
+            this.operator = operator;
+            this.value = value;
+            this.mode = mode;
+        }
+
+        QueryPredicate bind(Object[] args, Map<String, ?> named) throws CasperException {
+            Object v = value;
+            if (v instanceof Parameter) {
+                v = ((Parameter) v).get(args, named);
+            } else if (v instanceof Object[]) {
+                Object[] values = ((Object[]) v).clone();
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] instanceof Parameter)
+                        values[i] = ((Parameter) values[i]).get(args, named);
+                }
+                v = values;
+            } else {
+                List<Object> values = new ArrayList<>();
+                for (Object o : (Collection<?>) v)
+                    values.add(o instanceof Parameter ? ((Parameter) o).get(args, named) : o);
+                v = values;
+            }
+
+            switch (operator) {
+                case Compare:
+                    return new Compare(field, v, mode);
+                case Between:
+                    return between(field, v);
+                case In:
+                    return in(field, v);
+                default:
+                    if (!(v instanceof String))
+                        throw new CasperException("Invalid input for LIKE clause");
+                    return new Like(field, LikePattern.of((String) v));
+            }
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            throw new CasperException("Parameter is not bound: " + value);
+        }
+
+        @Override
+        public String toString() {
+            Object v = value instanceof Object[] ? Arrays.asList((Object[]) value) : value;
+            switch (operator) {
+                case Compare:
+                    return new Compare(field, v, mode).toString();
+                case Between:
+                    return field + " between " + v;
+                case In:
+                    return field + " in " + v;
+                default:
+                    return field + " like " + v;
+            }
+        }
+    }
+
+    static final class Like extends FieldPredicate {
+        final LikePattern pattern;
+
+        private Like(String field, LikePattern pattern) {
+            super(field);
+            this.pattern = pattern;
+        }
+
+        @Override
+        public boolean test(Object o) throws CasperException {
+            return like(read(o), pattern);
+        }
+
+        @Override
+        public String toString() {
+            return field + " like " + format(pattern.toString());
+        }
+    }
+}
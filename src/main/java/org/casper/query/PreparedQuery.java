@@ -0,0 +1,137 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A query compiled once with {@link Parameter}s in place of some values and
+ * run any number of times, from any number of threads, with only the
+ * arguments changing. Each run binds the arguments into the compiled tree,
+ * rebuilding only the clauses that hold parameters, so the query is never
+ * parsed or compiled again.
+ * <p>
+ * A query prepared from a {@link ListQuery} is also planned once: its
+ * required clauses keep the order chosen when it was prepared. A query
+ * prepared against a collection is planned on each run, since which index
+ * answers it best depends on the arguments.
+ *
+ * -- ex: Preparing a query once and running it with named arguments
+ * <pre>
+ * {@code
+ *      PreparedQuery q = ListQuery.from(list).where("job").eq(param("job")).prepare();
+ *      List<Person> a = q.execute(Collections.singletonMap("job", "Digging"));
+ * }
+ * </pre>
+ *
+ * @since 1.2
+ */
+public final class PreparedQuery {
+    private final CompiledQuery query;
+    // the collection planned against on each run, or null
+    private final QuerySource<?> source;
+    // the list scanned with the plan made when the query was prepared, or null
+    private final Collection<?> list;
+    private final boolean parallel;
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    PreparedQuery(CompiledQuery query, Collection<?> list, boolean parallel, ForkJoinPool pool, int threshold) {
+        this.query = query;
+        this.source = null;
+        this.list = list;
+        this.parallel = parallel;
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    private PreparedQuery(CompiledQuery query, QuerySource<?> source) {
+        this.query = query;
+        this.source = source;
+        this.list = null;
+        this.parallel = false;
+        this.pool = null;
+        this.threshold = 0;
+    }
+
+    /**
+     * @param query  the compiled query
+     * @param source the collection to run it against
+     * @return the query prepared against the collection
+     */
+    public static PreparedQuery of(CompiledQuery query, QuerySource<?> source) {
+        return new PreparedQuery(query, source);
+    }
+
+    /**
+     * Runs the query with positional arguments
+     *
+     * @param args the argument of each {@link Parameter#param(int)}
+     * @return the matching records, or their selected fields
+     * @throws CasperException if an argument is missing or invalid, or a
+     *                         record cannot be compared
+     */
+    public <X> List<X> execute(Object... args) throws CasperException {
+        return run(query.bind(args, null));
+    }
+
+    /**
+     * Runs the query with named arguments
+     *
+     * @param args the argument of each {@link Parameter#param(String)}
+     * @return the matching records, or their selected fields
+     * @throws CasperException if an argument is missing or invalid, or a
+     *                         record cannot be compared
+     */
+    public <X> List<X> execute(Map<String, ?> args) throws CasperException {
+        return run(query.bind(null, args));
+    }
+
+    /**
+     * Runs the query lazily with positional arguments
+     *
+     * @param args the argument of each {@link Parameter#param(int)}
+     * @return the matching records, tested as they are iterated
+     * @throws CasperException if an argument is missing or invalid
+     */
+    public <X> Iterable<X> iterate(Object... args) throws CasperException {
+        return lazy(query.bind(args, null));
+    }
+
+    /**
+     * Runs the query lazily with named arguments
+     *
+     * @param args the argument of each {@link Parameter#param(String)}
+     * @return the matching records, tested as they are iterated
+     * @throws CasperException if an argument is missing or invalid
+     */
+    public <X> Iterable<X> iterate(Map<String, ?> args) throws CasperException {
+        return lazy(query.bind(null, args));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <X> List<X> run(CompiledQuery q) throws CasperException {
+        if (list == null)
+            return (List<X>) QueryPlanner.plan(q, source).execute();
+        if (parallel)
+            return q.execute((Collection<X>) list, pool, threshold);
+
+        return q.execute((Collection<X>) list);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <X> Iterable<X> lazy(CompiledQuery q) throws CasperException {
+        if (list == null)
+            return (Iterable<X>) QueryPlanner.plan(q, source).iterate();
+
+        return q.iterate((Collection<X>) list);
+    }
+
+    @Override
+    public String toString() {
+        return query.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields a query selects. Each result is an {@code Object[]} tuple
+ * holding the selected fields in order, read through the compiled
+ * accessor of each field, so nothing else of the record is copied.
+ *
+ * @since 1.2
+ */
+final class Projection {
+    private final FieldReader[] fields;
+
+    private Projection(FieldReader[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param projection the fields so far, or null
+     * @param field      the field to select next
+     * @return a new projection with the field appended
+     */
+    static Projection then(Projection projection, String field) {
+        int n = projection != null ? projection.fields.length : 0;
+        FieldReader[] fields = new FieldReader[n + 1];
+        if (projection != null)
+            System.arraycopy(projection.fields, 0, fields, 0, n);
+        fields[n] = new FieldReader(field);
+
+        return new Projection(fields);
+    }
+
+    int size() {
+        return fields.length;
+    }
+
+    String getField(int i) {
+        return fields[i].field;
+    }
+
+    /**
+     * @return the selected fields of a record
+     * @throws CasperException if the record has no such field
+     */
+    Object[] apply(Object record) throws CasperException {
+        Object[] tuple = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            tuple[i] = fields[i].read(record);
+        return tuple;
+    }
+
+    /**
+     * @return the selected field of a record, for a field not read from a column
+     */
+    Object read(int i, Object record) throws CasperException {
+        return fields[i].read(record);
+    }
+
+    @SuppressWarnings("unchecked")
+    <X> List<X> apply(List<?> records) throws CasperException {
+        List<Object> tuples = new ArrayList<>(records.size());
+        for (Object record : records)
+            tuples.add(apply(record));
+        return (List<X>) tuples;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (FieldReader f : fields) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(f.field);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Filters a source lazily: each record is tested only when the consumer
+ * asks for the next match, and the source is left alone once the limit is
+ * reached. A record that cannot be compared surfaces as an
+ * {@link IllegalStateException} caused by the {@link CasperException}.
+ * With a projection, each match is returned as its selected fields.
+ *
+ * @param <X> the record type
+ * @since 1.2
+ */
+final class QueryIterator<X> implements Iterator<X> {
+    private final QueryPredicate predicate;
+    private final Iterator<X> source;
+    private final Projection projection;
+    private int remaining;
+    private Object next;
+    private boolean ready;
+
+    QueryIterator(QueryPredicate predicate, Iterator<X> source, int limit, Projection projection) {
+        this.predicate = predicate;
+        this.source = source;
+        this.projection = projection;
+        remaining = limit > 0 ? limit : -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready)
+            return true;
+        if (remaining == 0)
+            return false;
+
+        while (source.hasNext()) {
+            X x = source.next();
+            try {
+                if (predicate.test(x)) {
+                    next = projection != null ? projection.apply(x) : x;
+                    ready = true;
+                    return true;
+                }
+            } catch (CasperException ex) {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public X next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        X x = (X) next;
+        next = null;
+        ready = false;
+        if (remaining > 0)
+            remaining--;
+        return x;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
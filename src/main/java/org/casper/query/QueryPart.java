@@ -47,6 +47,9 @@ public class QueryPart {
         Like, LikeField,
         In, InField,
         Between, BetweenField,
-        Not, Limit
+        Not, Limit,
+        OrderBy, OrderByDesc,
+        Count, Sum, Avg, Min, Max, GroupBy,
+        Select
     }
 }
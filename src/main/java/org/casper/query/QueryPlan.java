@@ -0,0 +1,262 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * How a query will be answered: the access path that finds the candidate
+ * records and the filter evaluated on each of them. Index paths return
+ * candidates in index order; a range index orders them by field value.
+ * A sorted query whose first key is the range indexed field reads the
+ * index in that order and stops at the limit instead of sorting.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public final class QueryPlan<T> {
+    private final QuerySource<T> source;
+    private final AccessPath path;
+    private final String field;
+    private final Object from;
+    private final boolean fromInclusive;
+    private final Object to;
+    private final boolean toInclusive;
+    private final int estimate;
+    private final CompiledQuery filter;
+    private final boolean ordered;
+    private final boolean covered;
+
+    QueryPlan(QuerySource<T> source, AccessPath path, String field, Object from, boolean fromInclusive,
+              Object to, boolean toInclusive, int estimate, CompiledQuery filter, boolean ordered,
+              boolean covered) {
+        this.source = source;
+        this.path = path;
+        this.field = field;
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.to = to;
+        this.toInclusive = toInclusive;
+        this.estimate = estimate;
+        this.filter = filter;
+        this.ordered = ordered;
+        this.covered = covered;
+    }
+
+    public AccessPath getAccessPath() {
+        return path;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the number of candidate records the access path is expected
+     * to produce
+     */
+    public int getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the query evaluated on every candidate, with its conjuncts in
+     * the order the planner chose
+     */
+    public CompiledQuery getFilter() {
+        return filter;
+    }
+
+    public List<T> candidates() {
+        List<T> candidates = lookup();
+        return candidates != null ? candidates : source.toList();
+    }
+
+    /**
+     * @return whether the access path reads records in the query's order,
+     * so they need no sorting
+     * @since 1.2
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public List<T> execute() throws CasperException {
+        Iterable<T> sorted = ordered ? read() : null;
+        if (sorted != null)
+            return first(sorted);
+
+        List<T> candidates = lookup();
+        return candidates != null ? filter.execute(candidates) : source.scan(filter);
+    }
+
+    /**
+     * Answers the query lazily. The index lookup, if any, runs when the
+     * results are first iterated; a full scan tests records only as they
+     * are pulled and stops at the limit.
+     *
+     * @return the matching records, in the order {@link #execute} returns them
+     * @since 1.2
+     */
+    public Iterable<T> iterate() {
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                Ordering order = filter.getOrdering();
+                Iterable<T> sorted = ordered ? read() : null;
+                if (sorted != null && order.size() == 1)
+                    return new QueryIterator<>(filter, sorted.iterator(), filter.getLimit(), filter.getProjection());
+
+                if (order != null) {
+                    try {
+                        return execute().iterator();
+                    } catch (CasperException ex) {
+                        throw new IllegalStateException(ex.getMessage(), ex);
+                    }
+                }
+
+                List<T> candidates = lookup();
+                return filter.iterate(candidates != null ? candidates : source).iterator();
+            }
+        };
+    }
+
+    /**
+     * Computes the query's aggregate in one pass over the candidates. An
+     * ungrouped count is read from the source when the query has no
+     * predicate, and from the index when the access path alone guarantees
+     * every predicate, without visiting any record.
+     *
+     * @return the aggregate value, or a map from each group to its value
+     * @throws CasperException if the query has no aggregate, or a record
+     *                         cannot be compared or aggregated
+     * @since 1.2
+     */
+    public Object aggregate() throws CasperException {
+        Aggregation a = filter.getAggregation();
+        if (a != null && a.isRecordCount()) {
+            if (filter.getPredicate() == Predicates.TRUE)
+                return (long) source.count();
+            int count = covered ? count() : -1;
+            if (count >= 0)
+                return (long) count;
+        }
+
+        List<T> candidates = lookup();
+        return filter.aggregate(candidates != null ? candidates : source);
+    }
+
+    // the records in the order of the first sort key, or null if the index cannot be read
+    private Iterable<T> read() {
+        return source.ordered(field, from, fromInclusive, to, toInclusive, filter.getOrdering().isDescending(0));
+    }
+
+    // the matches of an ordered read up to the limit; records tied with the
+    // last one on the first key are read too, then sorted on the other keys
+    private List<T> first(Iterable<T> records) throws CasperException {
+        Ordering order = filter.getOrdering();
+        int limit = filter.getLimit();
+        List<T> results = new ArrayList<>();
+        for (T t : records) {
+            if (!filter.test(t))
+                continue;
+            if (limit > 0 && results.size() >= limit
+                    && (order.size() == 1 || order.compareFirst(t, results.get(limit - 1)) != 0))
+                break;
+            results.add(t);
+        }
+
+        return filter.project(order.size() == 1 ? results : order.sort(results, limit));
+    }
+
+    // the exact number of records found through the index, or -1
+    private int count() {
+        switch (path) {
+            case PrimaryKey:
+            case HashIndex:
+                return source.count(field, from);
+            case RangeIndex:
+                return source.count(field, from, fromInclusive, to, toInclusive);
+            default:
+                return -1;
+        }
+    }
+
+    // the records found through the index, or null for a full scan
+    private List<T> lookup() {
+        switch (path) {
+            case PrimaryKey:
+            case HashIndex:
+                return source.lookup(field, from);
+            case RangeIndex:
+                return source.lookup(field, from, fromInclusive, to, toInclusive);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Describes the plan, e.g.
+     * <pre>
+     * select * from people
+     *   access: hash index name = 'Bob' (est. 2 of 3 rows)
+     *   filter: job = 'Welding' and name = 'Bob'
+     * </pre>
+     *
+     * @return the description
+     */
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        Aggregation a = filter.getAggregation();
+        Projection p = filter.getProjection();
+        sb.append("select ").append(a != null ? a : p != null ? p : "*").append(" from ").append(source.getName()).append('\n');
+        sb.append("  access: ");
+
+        switch (path) {
+            case PrimaryKey:
+                sb.append("primary key ").append(field).append(" = ").append(format(from));
+                break;
+            case HashIndex:
+                sb.append("hash index ").append(field).append(" = ").append(format(from));
+                break;
+            case RangeIndex:
+                sb.append("range index ");
+                if (from != null && from.equals(to) && fromInclusive && toInclusive) {
+                    sb.append(field).append(" = ").append(format(from));
+                    break;
+                }
+                if (from != null)
+                    sb.append(format(from)).append(fromInclusive ? " <= " : " < ");
+                sb.append(field);
+                if (to != null)
+                    sb.append(toInclusive ? " <= " : " < ").append(format(to));
+                break;
+            default:
+                sb.append("full scan");
+        }
+
+        sb.append(" (est. ").append(estimate).append(" of ").append(source.count()).append(" rows)\n");
+        sb.append("  filter: ").append(filter);
+        if (a != null && a.getGroup() != null)
+            sb.append('\n').append("  group: ").append(a.getGroup());
+        if (filter.getOrdering() != null)
+            sb.append('\n').append("  order: ").append(filter.getOrdering()).append(ordered ? " (index)" : "");
+        if (filter.getLimit() > 0)
+            sb.append('\n').append("  limit: ").append(filter.getLimit());
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return explain();
+    }
+
+    private static String format(Object value) {
+        if (value instanceof String || value instanceof Character)
+            return "'" + value + "'";
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,313 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+import org.casper.utils.CasperUtils;
+import org.casper.utils.ValueComparator;
+
+import java.util.*;
+
+/**
+ * Chooses how to answer a compiled query against a source. Every predicate
+ * a match must satisfy is a candidate access path: an equality on the
+ * primary key or a hash indexed field, or the combined bounds on a range
+ * indexed field. The path with the fewest estimated candidates wins over a
+ * full scan. The required predicates are then reordered so the most
+ * selective run first, and the one answered by the index runs last.
+ * <p>
+ * A query sorted first by a range indexed field reads that index in order,
+ * or in reverse, instead of sorting: when the chosen path is already that
+ * index, or instead of a full scan. Such a read stops at the limit.
+ *
+ * @since 1.2
+ */
+public final class QueryPlanner {
+    private static final double EQ_SELECTIVITY = 0.05;
+    private static final double RANGE_SELECTIVITY = 0.3;
+    private static final double LIKE_SELECTIVITY = 0.25;
+
+    private QueryPlanner() {
+    }
+
+    public static <T> QueryPlan<T> plan(CompiledQuery query, QuerySource<T> source) {
+        QueryPredicate root = query.getPredicate();
+        List<QueryPredicate> conjuncts = Predicates.conjuncts(root);
+        int rows = source.count();
+
+        AccessPath path = AccessPath.FullScan;
+        String field = null;
+        Object from = null, to = null;
+        boolean fromInclusive = false, toInclusive = false;
+        int estimate = rows;
+        QueryPredicate driver = null;
+
+        Map<String, Bounds> ranges = new LinkedHashMap<>();
+        for (QueryPredicate p : conjuncts) {
+            if (p instanceof Predicates.Between) {
+                Predicates.Between b = (Predicates.Between) p;
+                bounds(ranges, b.field).from(b.lower.value, true);
+                bounds(ranges, b.field).to(b.upper.value, true);
+            }
+            if (!(p instanceof Predicates.Compare))
+                continue;
+
+            Predicates.Compare c = (Predicates.Compare) p;
+            switch (c.mode) {
+                case Exact:
+                    int count = source.estimate(c.field, c.value);
+                    if (count >= 0 && count < estimate) {
+                        path = source.getAccessPath(c.field);
+                        field = c.field;
+                        from = c.value;
+                        // an ordered index answers an equality as a range of one value
+                        to = path == AccessPath.RangeIndex ? c.value : null;
+                        fromInclusive = toInclusive = true;
+                        estimate = count;
+                        driver = p;
+                    }
+                    break;
+                case GreaterThan:
+                case GreaterThanEqual:
+                    bounds(ranges, c.field).from(c.value, c.mode == CasperUtils.Mode.GreaterThanEqual);
+                    break;
+                case LessThan:
+                case LessThanEqual:
+                    bounds(ranges, c.field).to(c.value, c.mode == CasperUtils.Mode.LessThanEqual);
+                    break;
+            }
+        }
+
+        for (Bounds b : ranges.values()) {
+            int count = source.estimate(b.field, b.from, b.fromInclusive, b.to, b.toInclusive, estimate);
+            if (count >= 0 && count < estimate) {
+                path = AccessPath.RangeIndex;
+                field = b.field;
+                from = b.from;
+                fromInclusive = b.fromInclusive;
+                to = b.to;
+                toInclusive = b.toInclusive;
+                estimate = count;
+                driver = null;
+            }
+        }
+
+        boolean ordered = false;
+        Ordering sort = query.getOrdering();
+        if (sort != null) {
+            String key = sort.getField(0);
+            if (path == AccessPath.RangeIndex) {
+                ordered = key.equals(field);
+            } else if (path == AccessPath.FullScan) {
+                Bounds b = ranges.get(key);
+                Object lower = b != null ? b.from : null, upper = b != null ? b.to : null;
+                boolean li = b != null && b.fromInclusive, ui = b != null && b.toInclusive;
+                if (source.ordered(key, lower, li, upper, ui, sort.isDescending(0)) != null) {
+                    path = AccessPath.RangeIndex;
+                    field = key;
+                    from = lower;
+                    fromInclusive = li;
+                    to = upper;
+                    toInclusive = ui;
+                    ordered = true;
+                }
+            }
+        }
+
+        // the bounds of an equality path were never merged with the ranges on
+        // its field, so those are checked against the value instead
+        boolean covered = true;
+        for (QueryPredicate p : conjuncts) {
+            covered &= p == driver || (driver != null ? holds(field, from, p)
+                    : covers(path, field, from != null ? from : to, p));
+        }
+
+        QueryPredicate filter = root;
+        if (conjuncts.size() > 1)
+            filter = Predicates.all(order(conjuncts, source, rows, path == AccessPath.RangeIndex ? field : null, driver));
+
+        return new QueryPlan<>(source, path, field, from, fromInclusive, to, toInclusive, estimate,
+                query.withPredicate(filter), ordered, covered);
+    }
+
+    // whether every record of the range path satisfies the predicate; bounds
+    // of another type than the one used were not compared, so they may be tighter
+    private static boolean covers(AccessPath path, String field, Object bound, QueryPredicate p) {
+        if (path != AccessPath.RangeIndex || bound == null)
+            return false;
+
+        if (p instanceof Predicates.Compare) {
+            Predicates.Compare c = (Predicates.Compare) p;
+            return c.field.equals(field) && c.mode != CasperUtils.Mode.Exact && c.value != null
+                    && c.value.getClass() == bound.getClass();
+        }
+        if (p instanceof Predicates.Between) {
+            Predicates.Between b = (Predicates.Between) p;
+            return b.field.equals(field) && b.lower.value != null && b.upper.value != null
+                    && b.lower.value.getClass() == bound.getClass() && b.upper.value.getClass() == bound.getClass();
+        }
+
+        return false;
+    }
+
+    // whether the predicate holds for every record whose field equals the
+    // value; a comparison that fails or cannot be made does not
+    private static boolean holds(String field, Object value, QueryPredicate p) {
+        try {
+            if (p instanceof Predicates.Compare) {
+                Predicates.Compare c = (Predicates.Compare) p;
+                return c.field.equals(field) && holds(value, c);
+            }
+            if (p instanceof Predicates.Between) {
+                Predicates.Between b = (Predicates.Between) p;
+                return b.field.equals(field) && holds(value, b.lower) && holds(value, b.upper);
+            }
+        } catch (CasperException ex) {
+            return false;
+        }
+
+        return false;
+    }
+
+    private static boolean holds(Object value, Predicates.Compare c) throws CasperException {
+        return c.value != null
+                && Predicates.accept(ValueComparator.of(value.getClass()).compare(value, c.value, c.mode), c.mode);
+    }
+
+    // predicates already guaranteed by the access path go last
+    private static <T> List<QueryPredicate> order(List<QueryPredicate> conjuncts, final QuerySource<T> source,
+                                                  final int rows, final String rangeField,
+                                                  final QueryPredicate driver) {
+        final Map<QueryPredicate, Double> selectivity = new IdentityHashMap<>();
+        for (QueryPredicate p : conjuncts) {
+            boolean covered = p == driver || (rangeField != null && p instanceof Predicates.Compare
+                    && ((Predicates.Compare) p).field.equals(rangeField)
+                    && ((Predicates.Compare) p).mode != CasperUtils.Mode.Exact)
+                    || (rangeField != null && p instanceof Predicates.Between
+                    && ((Predicates.Between) p).field.equals(rangeField));
+            selectivity.put(p, covered ? 2.0 : selectivity(p, source, rows));
+        }
+
+        List<QueryPredicate> ordered = new ArrayList<>(conjuncts);
+        Collections.sort(ordered, new Comparator<QueryPredicate>() {
+            @Override
+            public int compare(QueryPredicate o1, QueryPredicate o2) {
+                return Double.compare(selectivity.get(o1), selectivity.get(o2));
+            }
+        });
+
+        return ordered;
+    }
+
+    /**
+     * @return the estimated fraction of records the predicate accepts, from
+     * an index when one exists and from the shape of the predicate otherwise
+     */
+    private static <T> double selectivity(QueryPredicate p, QuerySource<T> source, int rows) {
+        if (p instanceof Predicates.Constant)
+            return ((Predicates.Constant) p).value ? 1.0 : 0.0;
+
+        if (p instanceof Predicates.Compare) {
+            Predicates.Compare c = (Predicates.Compare) p;
+            if (c.mode == CasperUtils.Mode.Exact) {
+                int count = source.estimate(c.field, c.value);
+                return count >= 0 && rows > 0 ? (double) count / rows : EQ_SELECTIVITY;
+            }
+
+            return RANGE_SELECTIVITY;
+        }
+
+        if (p instanceof Predicates.Between)
+            return RANGE_SELECTIVITY * RANGE_SELECTIVITY;
+
+        if (p instanceof Predicates.In)
+            return Math.min(1.0, EQ_SELECTIVITY * ((Predicates.In) p).values.size());
+
+        if (p instanceof Predicates.Like)
+            return ((Predicates.Like) p).pattern.isAnchored() ? EQ_SELECTIVITY : LIKE_SELECTIVITY;
+
+        // a clause waiting for its parameters is estimated by its shape alone
+        if (p instanceof Predicates.Deferred) {
+            Predicates.Deferred d = (Predicates.Deferred) p;
+            switch (d.operator) {
+                case Compare:
+                    return d.mode == CasperUtils.Mode.Exact ? EQ_SELECTIVITY : RANGE_SELECTIVITY;
+                case Between:
+                    return RANGE_SELECTIVITY * RANGE_SELECTIVITY;
+                case In:
+                    // a list of parameters has a known length, a whole list does not
+                    int n = d.value instanceof Object[] ? ((Object[]) d.value).length
+                            : d.value instanceof Collection<?> ? ((Collection<?>) d.value).size() : 0;
+                    return n > 0 ? Math.min(1.0, EQ_SELECTIVITY * n) : RANGE_SELECTIVITY;
+                default:
+                    return LIKE_SELECTIVITY;
+            }
+        }
+
+        if (p instanceof Predicates.Not)
+            return 1.0 - selectivity(((Predicates.Not) p).predicate, source, rows);
+
+        if (p instanceof Predicates.All) {
+            double s = 1.0;
+            for (QueryPredicate c : ((Predicates.All) p).predicates)
+                s *= selectivity(c, source, rows);
+            return s;
+        }
+
+        if (p instanceof Predicates.Any) {
+            double s = 0.0;
+            for (QueryPredicate c : ((Predicates.Any) p).predicates)
+                s += selectivity(c, source, rows);
+            return Math.min(1.0, s);
+        }
+
+        return 1.0;
+    }
+
+    private static Bounds bounds(Map<String, Bounds> ranges, String field) {
+        Bounds b = ranges.get(field);
+        if (b == null) {
+            b = new Bounds(field);
+            ranges.put(field, b);
+        }
+
+        return b;
+    }
+
+    /**
+     * The tightest bounds the required predicates put on a single field
+     */
+    private static class Bounds {
+        private String field;
+        private Object from;
+        private boolean fromInclusive;
+        private Object to;
+        private boolean toInclusive;
+
+        private Bounds(String field) {
+            this.field = field;
+        }
+
+        private void from(Object value, boolean inclusive) {
+            if (from == null || tighter(value, inclusive, from, 1)) {
+                from = value;
+                fromInclusive = inclusive;
+            }
+        }
+
+        private void to(Object value, boolean inclusive) {
+            if (to == null || tighter(value, inclusive, to, -1)) {
+                to = value;
+                toInclusive = inclusive;
+            }
+        }
+
+        // bounds of different types cannot be ordered, so the first one is kept
+        @SuppressWarnings("unchecked")
+        private static boolean tighter(Object value, boolean inclusive, Object bound, int direction) {
+            if (value == null || !value.getClass().equals(bound.getClass()) || !(value instanceof Comparable))
+                return false;
+
+            int c = ((Comparable<Object>) value).compareTo(bound) * direction;
+            return c > 0 || (c == 0 && !inclusive);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+/**
+ * A compiled test applied to a single record. Implementations are
+ * immutable, so one predicate can be evaluated by many threads at once.
+ *
+ * @since 1.2
+ */
+public interface QueryPredicate {
+    boolean test(Object o) throws CasperException;
+}
@@ -0,0 +1,83 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.List;
+
+/**
+ * Records a query can be planned against, together with the indexes that
+ * can narrow them down. Estimates and lookups return -1 and null when no
+ * index can answer them. Iterating a source visits every record in the
+ * order {@link #toList} returns them, without copying them.
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+public interface QuerySource<T> extends Iterable<T> {
+    String getName();
+
+    int count();
+
+    /**
+     * @param field the field being compared
+     * @return the best index kept on the field, or FullScan if there is none
+     */
+    AccessPath getAccessPath(String field);
+
+    int estimate(String field, Object value);
+
+    /**
+     * Estimates the records a range lookup would return, reading only as
+     * much of the index as the planner needs
+     *
+     * @param limit the best estimate so far; past it the exact figure does
+     *              not matter
+     * @return the estimate, above the limit if the range is no better, or
+     * -1 if no index can answer it
+     */
+    int estimate(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive, int limit);
+
+    /**
+     * Counts the records an equality lookup would return. Unlike an
+     * estimate, the count is exact.
+     *
+     * @return the number of records, or -1 if no index can answer it
+     */
+    int count(String field, Object value);
+
+    /**
+     * Counts the records a range lookup would return. Unlike an estimate,
+     * the count is exact.
+     *
+     * @return the number of records, or -1 if no index can answer it
+     */
+    int count(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive);
+
+    List<T> lookup(String field, Object value);
+
+    List<T> lookup(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive);
+
+    List<T> toList();
+
+    /**
+     * Reads the records whose field lies within a range in field order
+     * from an ordered index, lazily. A null bound leaves that side open.
+     *
+     * @param descending whether to read from the largest value down
+     * @return the records, or null if the field has no ordered index usable
+     * for these bounds, or if the range is open on both sides and records
+     * whose field is null would be missed
+     */
+    Iterable<T> ordered(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                        boolean descending);
+
+    /**
+     * Runs a query over every record, in the order {@link #toList} returns
+     * them
+     *
+     * @param filter the query
+     * @return the matching records, at most the query's limit of them
+     * @throws CasperException if a record cannot be compared
+     */
+    List<T> scan(CompiledQuery filter) throws CasperException;
+}
@@ -0,0 +1,89 @@
+package org.casper.query;
+
+import org.casper.exception.CasperException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A plain collection without indexes, which can only be scanned
+ *
+ * @param <T> the record type
+ * @since 1.2
+ */
+final class ScanSource<T> implements QuerySource<T> {
+    private final Collection<T> source;
+
+    ScanSource(Collection<T> source) {
+        this.source = source;
+    }
+
+    @Override
+    public String getName() {
+        return source.getClass().getSimpleName();
+    }
+
+    @Override
+    public int count() {
+        return source.size();
+    }
+
+    @Override
+    public AccessPath getAccessPath(String field) {
+        return AccessPath.FullScan;
+    }
+
+    @Override
+    public int estimate(String field, Object value) {
+        return -1;
+    }
+
+    @Override
+    public int estimate(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                        int limit) {
+        return -1;
+    }
+
+    @Override
+    public int count(String field, Object value) {
+        return -1;
+    }
+
+    @Override
+    public int count(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return -1;
+    }
+
+    @Override
+    public List<T> lookup(String field, Object value) {
+        return null;
+    }
+
+    @Override
+    public List<T> lookup(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        return null;
+    }
+
+    @Override
+    public Iterable<T> ordered(String field, Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                               boolean descending) {
+        return null;
+    }
+
+    @Override
+    public List<T> scan(CompiledQuery filter) throws CasperException {
+        return filter.execute(source);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return source.iterator();
+    }
+
+    @Override
+    public List<T> toList() {
+        return source instanceof List ? (List<T>) source : new ArrayList<>(source);
+    }
+}
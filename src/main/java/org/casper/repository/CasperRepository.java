@@ -1,10 +1,16 @@
 package org.casper.repository;
 
+import org.casper.database.ChangeListener;
+import org.casper.database.Subscription;
+
+import java.util.Collection;
 import java.util.List;
 
 public interface CasperRepository<T> {
     T save(T t);
 
+    List<T> saveAll(Collection<T> t);
+
     T remove(T t);
 
     List<T> remove(List<T> t);
@@ -17,9 +23,22 @@ public interface CasperRepository<T> {
 
     List<T> delete(T[] t);
 
+    List<T> deleteAll(Collection<T> t);
+
     int count();
 
-    //T findOne(ID id);
-    //T removeOne(ID id);
+    T findOne(Object id);
+
+    T removeOne(Object id);
+
     List<T> findAll();
+
+    /**
+     * Watches every record of the repository
+     *
+     * @param listener told about each record added, changed or removed
+     * @return the subscription, to cancel
+     * @since 1.2
+     */
+    Subscription subscribe(ChangeListener<T> listener);
 }
@@ -0,0 +1,20 @@
+package org.casper.stereotype;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a record type whose collection also stores its fields column-wise.
+ * Numeric, character and boolean fields are kept in primitive arrays and
+ * strings are dictionary encoded, so a full scan compares array elements and
+ * only reads the records that match. Fields of other types are compared on
+ * the record as usual.
+ *
+ * @since 1.2
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CasperColumnar {
+}
@@ -1,7 +1,18 @@
 package org.casper.stereotype;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 /**
+ * Marks the primary key field of a stored object. Collections holding
+ * objects with a {@code CasperId} field keep a hash map from key to record
+ * so upserts, removes and lookups by id do not scan the collection.
+ *
  * Created by dan on 10/9/16.
  */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
 public @interface CasperId {
 }
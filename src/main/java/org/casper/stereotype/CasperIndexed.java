@@ -1,7 +1,20 @@
 package org.casper.stereotype;
 
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
 /**
+ * Marks a field to be indexed by its collection. Equality predicates on the
+ * field are answered from a hash index; with {@code ordered = true} the
+ * values are kept sorted instead so lt/gt/le/ge and between predicates can
+ * run as range scans.
+ *
  * Created by dan on 10/9/16.
  */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
 public @interface CasperIndexed {
+    boolean ordered() default false;
 }
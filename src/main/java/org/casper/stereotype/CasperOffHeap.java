@@ -0,0 +1,22 @@
+package org.casper.stereotype;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a record type whose collection stores its records encoded in
+ * direct memory instead of on the heap. Only each record's key, index
+ * values and location stay on the heap. Reads decode a new copy of the
+ * record every time, so changing a record that was read does not change
+ * the stored one. Unkeyed records are matched by their encoded fields
+ * rather than by {@code equals}. The direct memory used is bounded by
+ * {@code -XX:MaxDirectMemorySize}.
+ *
+ * @since 1.2
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CasperOffHeap {
+}
@@ -2,39 +2,45 @@ package org.casper.utils;
 
 import org.casper.exception.CasperException;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class CasperUtils {
     public static <T> int compare(T t, String field, Object value, Mode mode) throws CasperException {
-        Object o = getFieldValue(t, field);
-
-        if (!o.getClass().equals(value.getClass())
-                && mode != Mode.In && mode != Mode.Between) {
-            throw new CasperException("Field and value type mismatch");
-        }
+        return compareValue(getFieldValue(t, field), value, mode);
+    }
 
-        if (o instanceof Number && !value.getClass().isArray()) {
-            Double fieldValue = ((Number) o).doubleValue();
-            Double targetValue = ((Number) value).doubleValue();
+    /**
+     * Compares a field value that has already been read against a query value
+     * with the {@link ValueComparator} for the field's class. A null only
+     * equals a null. In {@link Mode#In}, an array value holds the values the
+     * field may equal.
+     *
+     * @param o     the value of the field
+     * @param value the value from the query
+     * @param mode  how the two are compared
+     * @return less than, equal to or greater than zero as o is less than,
+     * equal to or greater than value, or {@link ValueComparator#UNORDERED}
+     * @throws CasperException if the two types cannot be compared
+     * @since 1.2
+     */
+    public static int compareValue(Object o, Object value, Mode mode) throws CasperException {
+        if (o == null || value == null)
+            return o == value ? 0 : ValueComparator.UNORDERED;
 
-            return fieldValue < targetValue ? -1 : fieldValue > targetValue ? 1 : 0;
-        } else if (value.getClass().isArray()) {
-            Object[] targetValues = (Object[]) value;
-            for (Object v : targetValues) {
-                if (o.equals(v))
+        if (mode == Mode.In && value instanceof Object[]) {
+            for (Object v : (Object[]) value) {
+                if (compareValue(o, v, Mode.Exact) == 0)
                     return 0;
             }
 
-            return -1;
-        } else if (o instanceof String) {
-            if (mode == Mode.IgnoreCase)
-                return ((String) o).equalsIgnoreCase((String) value) ? 0 : -1;
-            else if (mode == Mode.Regex)
-                return ((String) o).matches((String) value) ? 0 : -1;
+            return ValueComparator.UNORDERED;
         }
 
-        return o.equals(value) ? 0 : -1;
+        return ValueComparator.of(o.getClass()).compare(o, value, mode);
     }
 
     public static <T> int compare(T t, String field, Object value) throws CasperException {
@@ -49,14 +55,81 @@ public class CasperUtils {
         if (field == null)
             throw new CasperException("Field is null");
 
-        try {
-            Class<?> cls = t.getClass();
-            Field f = cls.getDeclaredField(field);
-            f.setAccessible(true);
-            return f.get(t);
-        } catch (NoSuchFieldException | IllegalAccessException ex) {
-            throw new CasperException(ex);
+        return FieldAccessor.of(t.getClass(), field).get(t);
+    }
+
+    /**
+     * Finds the first field carrying the given annotation, searching the
+     * class and then its superclasses
+     *
+     * @param cls        the class to inspect
+     * @param annotation the annotation to look for
+     * @return the accessible field, or null if no field is annotated
+     * @since 1.2
+     */
+    public static Field getAnnotatedField(Class<?> cls, Class<? extends Annotation> annotation) {
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (f.isAnnotationPresent(annotation)) {
+                    f.setAccessible(true);
+                    return f;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds every field carrying the given annotation, searching the class
+     * and then its superclasses
+     *
+     * @param cls        the class to inspect
+     * @param annotation the annotation to look for
+     * @return the accessible fields, empty if no field is annotated
+     * @since 1.2
+     */
+    public static List<Field> getAnnotatedFields(Class<?> cls, Class<? extends Annotation> annotation) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (f.isAnnotationPresent(annotation)) {
+                    f.setAccessible(true);
+                    fields.add(f);
+                }
+            }
         }
+
+        return fields;
+    }
+
+    /**
+     * Maps a primitive type onto its wrapper class
+     *
+     * @param cls the type to wrap
+     * @return the wrapper class for primitives, otherwise cls itself
+     * @since 1.2
+     */
+    public static Class<?> wrap(Class<?> cls) {
+        if (!cls.isPrimitive())
+            return cls;
+        if (cls == int.class)
+            return Integer.class;
+        if (cls == long.class)
+            return Long.class;
+        if (cls == double.class)
+            return Double.class;
+        if (cls == float.class)
+            return Float.class;
+        if (cls == short.class)
+            return Short.class;
+        if (cls == byte.class)
+            return Byte.class;
+        if (cls == char.class)
+            return Character.class;
+        if (cls == boolean.class)
+            return Boolean.class;
+        return Void.class;
     }
 
     public enum Mode {
@@ -0,0 +1,172 @@
+package org.casper.utils;
+
+import org.casper.exception.CasperException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads a single field of a class through a cached {@link MethodHandle}.
+ * Accessors are resolved once per (class, field) pair, including fields
+ * inherited from superclasses, and shared by every query and index.
+ *
+ * -- ex: Reading a field
+ * <pre>
+ * {@code
+ *      Object name = FieldAccessor.of(Person.class, "name").get(person);
+ * }
+ * </pre>
+ *
+ * @since 1.2
+ */
+public final class FieldAccessor {
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType LONG_GETTER = MethodType.methodType(long.class, Object.class);
+    private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class, Object.class);
+
+    private static final ClassValue<ConcurrentMap<String, FieldAccessor>> registry =
+            new ClassValue<ConcurrentMap<String, FieldAccessor>>() {
+                @Override
+                protected ConcurrentMap<String, FieldAccessor> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+
+    private final Class<?> owner;
+    private final String name;
+    private final Class<?> type;
+    private final MethodHandle getter;
+    // unboxed reads of primitive number fields, otherwise null
+    private final MethodHandle longGetter;
+    private final MethodHandle doubleGetter;
+
+    private FieldAccessor(Class<?> owner, Field field) throws IllegalAccessException {
+        this.owner = owner;
+        name = field.getName();
+        type = field.getType();
+        field.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflectGetter(field);
+        getter = handle.asType(GETTER);
+        longGetter = type.isPrimitive() && ValueComparator.isIntegral(type) ? handle.asType(LONG_GETTER) : null;
+        doubleGetter = type.isPrimitive() && ValueComparator.isFloating(type) ? handle.asType(DOUBLE_GETTER) : null;
+    }
+
+    /**
+     * Finds the accessor for a field of a class, resolving and caching it on
+     * first use
+     *
+     * @param cls   the class of the objects to read
+     * @param field the name of the field, declared by cls or a superclass
+     * @return the cached accessor
+     * @throws CasperException if the field does not exist
+     */
+    public static FieldAccessor of(Class<?> cls, String field) throws CasperException {
+        if (field == null)
+            throw new CasperException("Field is null");
+
+        ConcurrentMap<String, FieldAccessor> accessors = registry.get(cls);
+        FieldAccessor accessor = accessors.get(field);
+        if (accessor != null)
+            return accessor;
+
+        try {
+            accessor = new FieldAccessor(cls, findField(cls, field));
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new CasperException(ex);
+        }
+
+        FieldAccessor existing = accessors.putIfAbsent(field, accessor);
+        return existing != null ? existing : accessor;
+    }
+
+    public Class<?> getOwner() {
+        return owner;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Object get(Object t) throws CasperException {
+        if (t == null)
+            throw new CasperException("Input object is null");
+
+        try {
+            return (Object) getter.invokeExact(t);
+        } catch (ClassCastException ex) {
+            throw new CasperException(ex);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new CasperException(ex);
+        }
+    }
+
+    /**
+     * @return whether the field is a primitive byte, short, int or long, so
+     * {@link #getLong} can read it without boxing
+     * @since 1.2
+     */
+    public boolean isIntegral() {
+        return longGetter != null;
+    }
+
+    /**
+     * @return whether the field is a primitive float or double, so
+     * {@link #getDouble} can read it without boxing
+     * @since 1.2
+     */
+    public boolean isFloating() {
+        return doubleGetter != null;
+    }
+
+    public long getLong(Object t) throws CasperException {
+        if (t == null)
+            throw new CasperException("Input object is null");
+
+        try {
+            return (long) longGetter.invokeExact(t);
+        } catch (ClassCastException ex) {
+            throw new CasperException(ex);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new CasperException(ex);
+        }
+    }
+
+    public double getDouble(Object t) throws CasperException {
+        if (t == null)
+            throw new CasperException("Input object is null");
+
+        try {
+            return (double) doubleGetter.invokeExact(t);
+        } catch (ClassCastException ex) {
+            throw new CasperException(ex);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new CasperException(ex);
+        }
+    }
+
+    private static Field findField(Class<?> cls, String field) throws NoSuchFieldException {
+        for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(field);
+            } catch (NoSuchFieldException ex) {
+                // keep looking in the superclass
+            }
+        }
+
+        throw new NoSuchFieldException(field);
+    }
+}
@@ -0,0 +1,295 @@
+package org.casper.utils;
+
+import org.casper.exception.CasperException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Compares a field value against a query value, specialized by the type of
+ * the field. One comparator is shared per field class, and comparing two
+ * numbers never boxes or rounds them. The rules are:
+ * <ul>
+ * <li>byte, short, int and long fields compare as long against any of those,
+ * exactly against float and double values, and against {@link BigDecimal}
+ * and {@link BigInteger} values as decimals</li>
+ * <li>float and double fields compare as double against any primitive
+ * number; NaN is greater than every other value and equal to itself</li>
+ * <li>{@link BigDecimal} and {@link BigInteger} fields compare as decimals
+ * against any number</li>
+ * <li>strings compare lexicographically, ignoring case in
+ * {@link CasperUtils.Mode#IgnoreCase}, or match the value as a regular
+ * expression in {@link CasperUtils.Mode#Regex}</li>
+ * <li>enums compare by declaration order against constants of the same
+ * enum, or the name of one</li>
+ * <li>characters and booleans compare against values of the same type, and
+ * any other {@link Comparable}, such as a date, against values of the same
+ * class or a subclass</li>
+ * <li>other types are only equal to an equal value of the same class</li>
+ * </ul>
+ * Values that cannot be ordered, such as a null and a non-null value or two
+ * strings in an equality mode, compare as {@link #UNORDERED}, which is
+ * neither less than, equal to nor greater than anything.
+ *
+ * @since 1.2
+ */
+public abstract class ValueComparator {
+    /**
+     * The result of comparing values that have no order
+     */
+    public static final int UNORDERED = Integer.MIN_VALUE;
+
+    private static final String MISMATCH = "Field and value type mismatch";
+
+    private static final ValueComparator INTEGRAL = new Integral();
+    private static final ValueComparator FLOATING = new Floating();
+    private static final ValueComparator DECIMAL = new Decimal();
+    private static final ValueComparator STRING = new Text();
+    private static final ValueComparator ENUM = new Constant();
+    private static final ValueComparator COMPARABLE = new Natural();
+    private static final ValueComparator OTHER = new Equality();
+
+    private static final ClassValue<ValueComparator> comparators = new ClassValue<ValueComparator>() {
+        @Override
+        protected ValueComparator computeValue(Class<?> type) {
+            type = CasperUtils.wrap(type);
+            if (isIntegral(type))
+                return INTEGRAL;
+            if (isFloating(type))
+                return FLOATING;
+            if (isDecimal(type))
+                return DECIMAL;
+            if (type == String.class)
+                return STRING;
+            if (Enum.class.isAssignableFrom(type))
+                return ENUM;
+            if (Comparable.class.isAssignableFrom(type))
+                return COMPARABLE;
+            return OTHER;
+        }
+    };
+
+    ValueComparator() {
+    }
+
+    /**
+     * @param type the class of the field, primitive or not
+     * @return the comparator for values of that class
+     */
+    public static ValueComparator of(Class<?> type) {
+        return comparators.get(type);
+    }
+
+    /**
+     * Compares two values that are known not to be null
+     *
+     * @param field the value of the field
+     * @param value the value from the query
+     * @param mode  how the two are compared
+     * @return less than, equal to or greater than zero as field is less than,
+     * equal to or greater than value, or {@link #UNORDERED}
+     * @throws CasperException if the value's type cannot be compared with the field's
+     */
+    public abstract int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException;
+
+    public static boolean isIntegral(Class<?> type) {
+        return type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+                || type == int.class || type == long.class || type == short.class || type == byte.class;
+    }
+
+    public static boolean isFloating(Class<?> type) {
+        return type == Double.class || type == Float.class || type == double.class || type == float.class;
+    }
+
+    /**
+     * Maps a value to the form every value equal to it under these rules
+     * shares, so that equality can be tested by hashing. Whole numbers
+     * become a Long, other numbers a Double when that is exact, and enum
+     * constants their name. Any other value is returned as it is.
+     *
+     * @param value the value, or null
+     * @return the key of the value
+     */
+    public static Object key(Object value) {
+        if (value == null)
+            return null;
+
+        Class<?> type = value.getClass();
+        if (isIntegral(type))
+            return ((Number) value).longValue();
+        if (isFloating(type)) {
+            double d = ((Number) value).doubleValue();
+            return d == Math.rint(d) && d >= -0x1p63 && d < 0x1p63 ? (Object) (long) d : (Object) d;
+        }
+        if (isDecimal(type)) {
+            BigDecimal d = decimal(value);
+            try {
+                return d.longValueExact();
+            } catch (ArithmeticException ex) {
+                // a fraction, or too large for a long
+            }
+            double approx = d.doubleValue();
+            return isFinite(approx) && new BigDecimal(approx).compareTo(d) == 0 ? (Object) approx
+                    : d.stripTrailingZeros();
+        }
+        if (value instanceof Enum)
+            return ((Enum<?>) value).name();
+        return value;
+    }
+
+    public static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    public static int compare(double a, double b) {
+        if (a < b)
+            return -1;
+        if (a > b)
+            return 1;
+        // equal, including 0.0 and -0.0, unless one of them is NaN
+        return a == b ? 0 : Double.compare(a, b);
+    }
+
+    /**
+     * Compares a long against a double without rounding the long
+     */
+    public static int compare(long a, double b) {
+        if (Double.isNaN(b) || b >= 0x1p63)
+            return -1;
+        if (b < -0x1p63)
+            return 1;
+
+        // the truncated double is exact, so compare whole parts, then the fraction
+        long whole = (long) b;
+        if (a != whole)
+            return a < whole ? -1 : 1;
+        double fraction = b - whole;
+        return fraction > 0 ? -1 : (fraction < 0 ? 1 : 0);
+    }
+
+    private static BigDecimal decimal(Object n) {
+        if (n instanceof BigDecimal)
+            return (BigDecimal) n;
+        if (n instanceof BigInteger)
+            return new BigDecimal((BigInteger) n);
+        if (isIntegral(n.getClass()))
+            return BigDecimal.valueOf(((Number) n).longValue());
+        return new BigDecimal(((Number) n).doubleValue());
+    }
+
+    private static boolean isDecimal(Class<?> type) {
+        return type == BigDecimal.class || type == BigInteger.class;
+    }
+
+    // NaN and the infinities have no decimal form, but order against any finite value like 0.0 does
+    private static boolean isFinite(double d) {
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+    private static final class Integral extends ValueComparator {
+        @Override
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            long a = ((Number) field).longValue();
+            Class<?> type = value.getClass();
+            if (isIntegral(type))
+                return compare(a, ((Number) value).longValue());
+            if (isFloating(type))
+                return compare(a, ((Number) value).doubleValue());
+            if (isDecimal(type))
+                return BigDecimal.valueOf(a).compareTo(decimal(value));
+
+            throw new CasperException(MISMATCH);
+        }
+    }
+
+    private static final class Floating extends ValueComparator {
+        @Override
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            double a = ((Number) field).doubleValue();
+            Class<?> type = value.getClass();
+            if (isFloating(type))
+                return compare(a, ((Number) value).doubleValue());
+            if (isIntegral(type))
+                return -compare(((Number) value).longValue(), a);
+            if (isDecimal(type))
+                return isFinite(a) ? new BigDecimal(a).compareTo(decimal(value)) : compare(a, 0.0);
+
+            throw new CasperException(MISMATCH);
+        }
+    }
+
+    private static final class Decimal extends ValueComparator {
+        @Override
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            Class<?> type = value.getClass();
+            if (isFloating(type) && !isFinite(((Number) value).doubleValue()))
+                return -compare(((Number) value).doubleValue(), 0.0);
+            if (isIntegral(type) || isFloating(type) || isDecimal(type))
+                return decimal(field).compareTo(decimal(value));
+
+            throw new CasperException(MISMATCH);
+        }
+    }
+
+    private static final class Text extends ValueComparator {
+        @Override
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            if (!(value instanceof String))
+                throw new CasperException(MISMATCH);
+
+            String s = (String) field;
+            switch (mode) {
+                case IgnoreCase:
+                    return s.equalsIgnoreCase((String) value) ? 0 : UNORDERED;
+                case Regex:
+                    return s.matches((String) value) ? 0 : UNORDERED;
+                default:
+                    return Integer.signum(s.compareTo((String) value));
+            }
+        }
+    }
+
+    private static final class Constant extends ValueComparator {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            Class type = ((Enum<?>) field).getDeclaringClass();
+            Enum<?> constant;
+            if (value instanceof Enum && ((Enum<?>) value).getDeclaringClass() == type) {
+                constant = (Enum<?>) value;
+            } else if (value instanceof String) {
+                try {
+                    constant = Enum.valueOf(type, (String) value);
+                } catch (IllegalArgumentException ex) {
+                    return UNORDERED;
+                }
+            } else {
+                throw new CasperException(MISMATCH);
+            }
+
+            return compare(((Enum<?>) field).ordinal(), constant.ordinal());
+        }
+    }
+
+    private static final class Natural extends ValueComparator {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            Class<?> type = field.getClass();
+            if (!type.isInstance(value) && !value.getClass().isInstance(field))
+                throw new CasperException(MISMATCH);
+
+            return Integer.signum(((Comparable<Object>) field).compareTo(value));
+        }
+    }
+
+    private static final class Equality extends ValueComparator {
+        @Override
+        public int compare(Object field, Object value, CasperUtils.Mode mode) throws CasperException {
+            if (field.getClass() != value.getClass())
+                throw new CasperException(MISMATCH);
+
+            return field.equals(value) ? 0 : UNORDERED;
+        }
+    }
+}
@@ -1,14 +1,42 @@
 package org.casper.database;
 
+import org.casper.exception.CasperException;
+import org.casper.model.ColumnarObject;
+import org.casper.model.OffHeapObject;
+import org.casper.model.TestObject;
+import org.casper.persistence.FsyncPolicy;
+import org.casper.query.AccessPath;
+import org.casper.query.CompiledQuery;
+import org.casper.query.Parameter;
+import org.casper.query.PreparedQuery;
+import org.casper.query.QueryBuilder;
+import org.casper.query.QueryPart;
+import org.casper.query.QueryPlan;
+import org.casper.stereotype.CasperOffHeap;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
 
 public class CasperDatabaseTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private CasperDatabase casperDatabase;
 
     @Before
@@ -85,12 +113,1018 @@ public class CasperDatabaseTest {
 
     @Test
     public void findOne() throws Exception {
+        casperDatabase.createCollection("people");
+        casperDatabase.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+        casperDatabase.save("people", new TestObject(2, "Sue", 40, "Welding", 'f', 'b'));
+
+        TestObject o = casperDatabase.findOne("people", 2);
+        assertNotNull(o);
+        assertEquals(o.getName(), "Sue");
+        assertNull(casperDatabase.findOne("people", 3));
+        assertNull(casperDatabase.findOne("cats", 1));
+    }
+
+    @Test
+    public void saveById() throws Exception {
+        casperDatabase.createCollection("people");
+        casperDatabase.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+        casperDatabase.save("people", new TestObject(2, "Sue", 40, "Welding", 'f', 'b'));
+        casperDatabase.save("people", new TestObject(1, "Robert", 31, "Digging", 'm', 'a'));
+
+        assertEquals(casperDatabase.count("people"), 2);
+        TestObject o = casperDatabase.findOne("people", 1);
+        assertEquals(o.getName(), "Robert");
+
+        casperDatabase.remove("people", new TestObject(2, "Sue", 40, "Welding", 'f', 'b'));
+        assertEquals(casperDatabase.count("people"), 1);
+
+        assertNotNull(casperDatabase.removeOne("people", 1));
+        assertEquals(casperDatabase.count("people"), 0);
+    }
+
+    @Test
+    public void saveAll() throws Exception {
+        casperDatabase.createCollection("people");
+        casperDatabase.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+        casperDatabase.saveAll("people", Arrays.asList(
+                new TestObject(2, "Sue", 40, "Welding", 'f', 'b'),
+                new TestObject(1, "Robert", 31, "Digging", 'm', 'a'),
+                new TestObject(3, "Ann", 50, "Welding", 'f', 'c'),
+                new TestObject(2, "Susan", 41, "Welding", 'f', 'b')));
+
+        assertEquals(casperDatabase.count("people"), 3);
+        List<TestObject> all = casperDatabase.findAll("people");
+        assertEquals(all.get(0).getName(), "Robert");
+        assertEquals(all.get(1).getName(), "Ann");
+        assertEquals(all.get(2).getName(), "Susan");
 
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Sue");
+        assertEquals(casperDatabase.find(qb).size(), 0);
+
+        casperDatabase.deleteAll("people", Arrays.asList(
+                new TestObject(1, "Robert", 31, "Digging", 'm', 'a'),
+                new TestObject(4, "Nobody", 60, "None", 'm', 'a')));
+        assertEquals(casperDatabase.count("people"), 2);
+        assertNull(casperDatabase.findOne("people", 1));
+
+        ModelA a = new ModelA("frank"), b = new ModelA("herbert");
+        casperDatabase.saveAll("cats", Arrays.asList(a, b, a));
+        assertEquals(casperDatabase.count("cats"), 2);
+        casperDatabase.saveAll("cats", Arrays.asList(a));
+        assertEquals(casperDatabase.count("cats"), 2);
+        casperDatabase.deleteAll("cats", Arrays.asList(b, a));
+        assertEquals(casperDatabase.count("cats"), 0);
+    }
+
+    @Test
+    public void removeList() throws Exception {
+        ModelA a = new ModelA("frank"), b = new ModelA("herbert"), c = new ModelA("ralph");
+        casperDatabase.save("cats", a);
+        casperDatabase.save("cats", b);
+        casperDatabase.save("cats", c);
+
+        casperDatabase.remove("cats", Arrays.asList(c, a, new ModelA("frank")));
+        assertEquals(casperDatabase.count("cats"), 1);
+        assertSame(casperDatabase.findAll("cats").get(0), b);
+    }
+
+    @Test
+    public void removeQuery() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; i++)
+            casperDatabase.save("people", new TestObject(i, i % 2 == 0 ? "Bob" : "Sue", 20 + i, "Digging", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.REMOVE);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GtField, "age", 22);
+        assertEquals(casperDatabase.remove(qb), 3);
+        assertEquals(casperDatabase.count("people"), 7);
+        assertEquals(casperDatabase.remove(qb), 0);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.REMOVE);
+        qb.add(QueryPart.Command.EqField, "name", "Sue");
+        qb.add(QueryPart.Command.Limit, 2);
+        assertEquals(casperDatabase.delete(qb), 2);
+        assertEquals(casperDatabase.count("people"), 5);
+        assertNull(casperDatabase.findOne("people", 1));
+        assertNotNull(casperDatabase.findOne("people", 5));
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.REMOVE);
+        qb.add(QueryPart.Command.EqField, "name", 1);
+        try {
+            casperDatabase.remove(qb);
+            fail();
+        } catch (CasperException ex) {
+            assertEquals(casperDatabase.count("people"), 5);
+        }
     }
 
     @Test
     public void find() throws Exception {
+        casperDatabase.createCollection("people");
+        casperDatabase.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+        casperDatabase.save("people", new TestObject(2, "Sue", 40, "Welding", 'f', 'b'));
+        casperDatabase.save("people", new TestObject(3, "Bob", 50, "Welding", 'm', 'c'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.EqField, "job", "Welding");
+        List<TestObject> r = casperDatabase.find(qb);
+        assertEquals(r.size(), 1);
+        assertEquals(r.get(0).getId(), 3);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        qb.add(QueryPart.Command.Or);
+        qb.add(QueryPart.Command.EqField, "job", "Welding");
+        assertEquals(casperDatabase.find(qb).size(), 3);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.Not);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        r = casperDatabase.find(qb);
+        assertEquals(r.size(), 1);
+        assertEquals(r.get(0).getName(), "Sue");
+
+        casperDatabase.save("people", new TestObject(2, "Bob", 41, "Welding", 'f', 'b'));
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        assertEquals(casperDatabase.find(qb).size(), 3);
+
+        casperDatabase.removeOne("people", 1);
+        assertEquals(casperDatabase.find(qb).size(), 2);
+    }
+
+    @Test
+    public void findRange() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + i, 20 + i, "Digging", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "age", 22);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.LtField, "age", 25);
+        List<TestObject> r = casperDatabase.find(qb);
+        assertEquals(r.size(), 3);
+        assertEquals(r.get(0).getAge(), 22);
+        assertEquals(r.get(2).getAge(), 24);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GtField, "age", 27);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GtField, "age", 25);
+        assertEquals(casperDatabase.find(qb).size(), 2);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GtField, "age", 27);
+        qb.add(QueryPart.Command.Or);
+        qb.add(QueryPart.Command.LeField, "age", 20);
+        assertEquals(casperDatabase.find(qb).size(), 3);
+
+        casperDatabase.save("people", new TestObject(0, "Name0", 23, "Digging", 'm', 'a'));
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "age", 23);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.LeField, "age", 23);
+        assertEquals(casperDatabase.find(qb).size(), 2);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.BetweenField, "age", new Object[]{22, 24});
+        QueryPlan<TestObject> plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.RangeIndex);
+        assertEquals(plan.getEstimate(), 4);
+        assertEquals(casperDatabase.find(qb).size(), 4);
+        assertTrue(plan.explain().contains("range index 22 <= age <= 24 (est. 4 of 10 rows)"));
+        assertTrue(plan.explain().contains("filter: age between 22 and 24"));
+    }
+
+    @Test
+    public void iterate() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 1000; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + i % 10, 20 + i % 50, "Digging", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Digging");
+        Iterator<TestObject> it = casperDatabase.<TestObject>iterate(qb).iterator();
+        assertEquals(it.next().getId(), 0);
+
+        // an iteration keeps reading the collection as of when it started
+        casperDatabase.removeOne("people", 1);
+        casperDatabase.save("people", new TestObject(1000, "Name0", 20, "Digging", 'm', 'a'));
+        int count = 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(count, 1000);
+
+        qb.add(QueryPart.Command.Limit, 5);
+        count = 0;
+        for (TestObject t : casperDatabase.<TestObject>iterate(qb))
+            count++;
+        assertEquals(count, 5);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name3");
+        assertEquals(casperDatabase.<TestObject>iterate(qb).iterator().next().getId(), 3);
+    }
+
+    @Test
+    public void orderBy() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 100; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + (i % 10), (i * 37) % 50,
+                    i % 2 == 0 ? "Digging" : "Welding", 'm', 'a'));
+
+        // a full scan sorted by the range indexed field reads the index backwards
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.OrderByDesc, "age", null);
+        qb.add(QueryPart.Command.Limit, 3);
+        QueryPlan<TestObject> plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.RangeIndex);
+        assertTrue(plan.isOrdered());
+        assertTrue(plan.explain().contains("order: age desc (index)"));
+        assertEquals(ids(casperDatabase.<TestObject>find(qb)), Arrays.asList(27, 77, 4));
+        assertEquals(ids(casperDatabase.<TestObject>iterate(qb)), Arrays.asList(27, 77, 4));
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "age", 10);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.LtField, "age", 20);
+        qb.add(QueryPart.Command.OrderBy, "age", null);
+        assertTrue(casperDatabase.plan(qb).isOrdered());
+        assertEquals(ids(casperDatabase.<TestObject>find(qb)).subList(0, 4), Arrays.asList(30, 80, 3, 53));
+
+        // ties on the index key are sorted on the next key
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.OrderBy, "age", null);
+        qb.add(QueryPart.Command.OrderByDesc, "id", null);
+        qb.add(QueryPart.Command.Limit, 3);
+        assertEquals(ids(casperDatabase.<TestObject>find(qb)), Arrays.asList(50, 0, 73));
+
+        // the candidates of another index are sorted
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name3");
+        qb.add(QueryPart.Command.OrderByDesc, "age", null);
+        qb.add(QueryPart.Command.Limit, 4);
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.HashIndex);
+        assertFalse(plan.isOrdered());
+        assertEquals(ids(plan.execute()), Arrays.asList(43, 93, 13, 63));
+
+        // an equality on the range indexed field reads a range of one value
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "age", 41);
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.RangeIndex);
+        assertTrue(plan.explain().contains("range index age = 41 (est. 2 of 100 rows)"));
+        assertEquals(ids(plan.execute()), Arrays.asList(43, 93));
+    }
+
+    @Test
+    public void rangeEstimate() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 1000; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + (i % 10), i, "Digging", 'm', 'a'));
+
+        // a narrow range is counted exactly
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.BetweenField, "age", new Object[]{10, 20});
+        assertEquals(casperDatabase.plan(qb).getEstimate(), 11);
+
+        // a wide one is extrapolated from its first values
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "age", 100);
+        QueryPlan<TestObject> plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.RangeIndex);
+        assertTrue(Math.abs(plan.getEstimate() - 900) < 50);
+
+        // but a covered count is still exact
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.aggregate(qb), 900L);
+
+        // a range no better than the equality is not counted through
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name3");
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GtField, "age", 0);
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.HashIndex);
+        assertEquals(plan.getEstimate(), 100);
+        assertEquals(casperDatabase.find(qb).size(), 100);
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 100; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + (i % 10), (i * 37) % 50,
+                    i % 2 == 0 ? "Digging" : "Welding", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.aggregate(qb), 100L);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name3");
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.aggregate(qb), 10L);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "age", 10);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.LtField, "age", 20);
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.aggregate(qb), 20L);
+
+        // an equality drives the path, so the range on its field is still checked
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "age", 3);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GtField, "age", 5);
+        assertEquals(casperDatabase.find(qb).size(), 0);
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.plan(qb).getAccessPath(), AccessPath.RangeIndex);
+        assertEquals(casperDatabase.aggregate(qb), 0L);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "age", 7);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.BetweenField, "age", new Object[]{5, 9});
+        qb.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.aggregate(qb), 2L);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Digging");
+        qb.add(QueryPart.Command.Sum, "age", null);
+        assertEquals(casperDatabase.aggregate(qb), 1200L);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.Avg, "age", null);
+        qb.add(QueryPart.Command.GroupBy, "job", null);
+        assertEquals(casperDatabase.aggregate(qb).toString(), "{Digging=24.0, Welding=25.0}");
+        assertTrue(casperDatabase.explain(qb).startsWith("select job, avg(age) from people\n"));
+        assertTrue(casperDatabase.explain(qb).contains("group: job"));
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Welding");
+        qb.add(QueryPart.Command.Max, "age", null);
+        assertEquals(casperDatabase.aggregate(qb), 49);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Welding");
+        try {
+            casperDatabase.aggregate(qb);
+            fail();
+        } catch (CasperException ex) {
+            assertEquals(ex.getMessage(), "Query has no aggregate");
+        }
+    }
+
+    private static List<Integer> ids(Iterable<TestObject> records) {
+        List<Integer> ids = new ArrayList<>();
+        for (TestObject t : records)
+            ids.add(t.getId());
+        return ids;
+    }
+
+    @Test
+    public void select() throws Exception {
+        casperDatabase.createCollection("scores");
+        for (int i = 0; i < 100; ++i)
+            casperDatabase.save("scores", new ColumnarObject(i, "Name" + i % 10, i % 7 == 0 ? null : i, i / 10.0, 'm'));
+
+        // every selected field is a column, so the records are not read
+        QueryBuilder qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GeField, "score", 9.5);
+        qb.add(QueryPart.Command.Select, "id", null);
+        qb.add(QueryPart.Command.Select, "age", null);
+        List<Object[]> rows = casperDatabase.find(qb);
+        assertEquals(rows.size(), 5);
+        assertArrayEquals(rows.get(0), new Object[]{95, 95});
+        assertArrayEquals(rows.get(3), new Object[]{98, null});
+        assertTrue(casperDatabase.plan(qb).explain().startsWith("select id, age from scores"));
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "id", 42);
+        qb.add(QueryPart.Command.Select, "name", null);
+        assertArrayEquals(casperDatabase.<Object[]>findOne(qb), new Object[]{"Name2"});
+
+        // off-heap records only decode the fields the query reads
+        casperDatabase.createCollection("notes");
+        for (int i = 0; i < 100; ++i)
+            casperDatabase.save("notes", new OffHeapObject(i, "Name" + i % 10, "note " + i));
+        qb = new QueryBuilder("notes", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.LikeField, "notes", "note 9%");
+        qb.add(QueryPart.Command.Select, "id", null);
+        qb.add(QueryPart.Command.Select, "name", null);
+        rows = casperDatabase.find(qb);
+        assertEquals(rows.size(), 11);
+        assertArrayEquals(rows.get(0), new Object[]{9, "Name9"});
+        assertArrayEquals(rows.get(1), new Object[]{90, "Name0"});
+
+        List<Object[]> lazy = new ArrayList<>();
+        for (Object[] row : casperDatabase.<Object[]>iterate(qb))
+            lazy.add(row);
+        assertEquals(lazy.size(), 11);
+        assertArrayEquals(lazy.get(10), rows.get(10));
+    }
+
+    @Test
+    public void resultCache() throws Exception {
+        casperDatabase.setResultCacheSize(2);
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + i, 20 + i, i < 5 ? "Digging" : "Welding", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Welding");
+        List<TestObject> first = casperDatabase.find(qb);
+        first.clear();
+        assertEquals(casperDatabase.find(qb).size(), 5);
+        assertEquals(casperDatabase.getCacheHits(), 1);
+        assertEquals(casperDatabase.getCacheMisses(), 1);
+
+        // a write moves the collection past the cached version
+        casperDatabase.save("people", new TestObject(10, "Name10", 30, "Welding", 'f', 'a'));
+        assertEquals(casperDatabase.find(qb).size(), 6);
+        assertEquals(casperDatabase.getCacheMisses(), 2);
+
+        QueryBuilder count = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        count.add(QueryPart.Command.EqField, "job", "Welding");
+        count.add(QueryPart.Command.Count, null, null);
+        assertEquals(casperDatabase.<Long>aggregate(count), Long.valueOf(6));
+        assertEquals(casperDatabase.<Long>aggregate(count), Long.valueOf(6));
+        assertEquals(casperDatabase.getCacheHits(), 2);
+
+        // the least recently used result is evicted
+        QueryBuilder other = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        other.add(QueryPart.Command.EqField, "job", "Digging");
+        casperDatabase.find(other);
+        casperDatabase.find(qb);
+        assertEquals(casperDatabase.getCacheMisses(), 5);
+
+        // a collection dropped and created again never sees the old results
+        casperDatabase.dropCollection("people");
+        casperDatabase.createCollection("people");
+        assertEquals(casperDatabase.find(other).size(), 0);
+
+        casperDatabase.setResultCacheSize(0);
+        assertEquals(casperDatabase.getCacheHits(), 0);
+    }
+
+    @Test
+    public void prepare() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; ++i)
+            casperDatabase.save("people", new TestObject(i, "Name" + i % 3, 20 + i, "Digging", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", Parameter.param(0));
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GeField, "age", Parameter.param(1));
+        PreparedQuery q = casperDatabase.prepare(qb);
+        assertEquals(q.execute("Name1", 0).size(), 3);
+        assertEquals(q.execute("Name1", 25).size(), 1);
+        assertEquals(q.execute("Nobody", 0).size(), 0);
 
+        // each run is planned for its arguments, so the index still answers it
+        casperDatabase.save("people", new TestObject(10, "Name1", 99, "Digging", 'm', 'a'));
+        assertEquals(q.<TestObject>execute("Name1", 90).get(0).getId(), 10);
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        casperDatabase.createCollection("people");
+        casperDatabase.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+
+        // events are delivered on the calling thread, so they are seen at once
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        QueryBuilder diggers = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        diggers.add(QueryPart.Command.EqField, "job", "Digging");
+        final List<ChangeEvent<TestObject>> dug = new ArrayList<>();
+        Subscription s = casperDatabase.subscribe(diggers, new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                dug.add(event);
+            }
+        }, direct);
+
+        // not indexed under an equality, so every write is tested
+        QueryBuilder older = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        older.add(QueryPart.Command.GtField, "age", 40);
+        final List<ChangeEvent<TestObject>> old = new ArrayList<>();
+        casperDatabase.subscribe(older, new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                old.add(event);
+            }
+        }, direct);
+
+        casperDatabase.save("people", new TestObject(2, "Sue", 25, "Digging", 'f', 'a'));
+        casperDatabase.save("people", new TestObject(3, "Tom", 50, "Baking", 'm', 'a'));
+        casperDatabase.save("people", new TestObject(1, "Bob", 31, "Digging", 'm', 'a'));
+        casperDatabase.save("people", new TestObject(2, "Sue", 45, "Baking", 'f', 'a'));
+        casperDatabase.removeOne("people", 3);
+
+        assertEquals(dug.size(), 3);
+        assertEquals(dug.get(0).getType(), ChangeEvent.Type.Insert);
+        assertEquals(dug.get(0).getNewValue().getId(), 2);
+        assertEquals(dug.get(1).getType(), ChangeEvent.Type.Update);
+        assertEquals(dug.get(1).getOldValue().getAge(), 30);
+        assertEquals(dug.get(1).getNewValue().getAge(), 31);
+        // Sue leaves the results when she changes jobs
+        assertEquals(dug.get(2).getType(), ChangeEvent.Type.Delete);
+        assertEquals(dug.get(2).getNewValue().getJob(), "Baking");
+        assertTrue(dug.get(2).getVersion() > dug.get(1).getVersion());
+
+        assertEquals(old.size(), 3);
+        assertEquals(old.get(0).getType(), ChangeEvent.Type.Insert);
+        assertEquals(old.get(1).getType(), ChangeEvent.Type.Insert);
+        assertEquals(old.get(1).getNewValue().getId(), 2);
+        assertEquals(old.get(2).getType(), ChangeEvent.Type.Delete);
+        assertNull(old.get(2).getNewValue());
+
+        s.cancel();
+        assertTrue(s.isCancelled());
+        casperDatabase.save("people", new TestObject(4, "Ann", 20, "Digging", 'f', 'a'));
+        assertEquals(dug.size(), 3);
+
+        // the default executor delivers on a background thread
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<ChangeEvent<TestObject>> last = new AtomicReference<>();
+        QueryBuilder ann = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        ann.add(QueryPart.Command.EqField, "name", "Ann");
+        casperDatabase.subscribe(ann, new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                last.set(event);
+                latch.countDown();
+            }
+        });
+        casperDatabase.removeOne("people", 4);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(last.get().getType(), ChangeEvent.Type.Delete);
+        assertEquals(last.get().getOldValue().getName(), "Ann");
+        casperDatabase.close();
+
+        // subscribing after closing still delivers
+        final CountDownLatch reopened = new CountDownLatch(1);
+        Subscription after = casperDatabase.subscribe(ann, new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                reopened.countDown();
+            }
+        });
+        casperDatabase.save("people", new TestObject(5, "Ann", 20, "Digging", 'f', 'a'));
+        assertTrue(reopened.await(5, TimeUnit.SECONDS));
+        assertFalse(after.isCancelled());
+        casperDatabase.close();
+    }
+
+    @Test
+    public void explain() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; ++i)
+            casperDatabase.save("people", new TestObject(i, i < 2 ? "Bob" : "Name" + i, 20 + i, "Digging", 'm', 'a'));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "job", "Digging");
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        QueryPlan<TestObject> plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.HashIndex);
+        assertEquals(plan.getEstimate(), 2);
+        assertTrue(plan.explain().contains("hash index name = 'Bob' (est. 2 of 10 rows)"));
+        assertEquals(plan.execute().size(), 2);
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GtField, "age", 27);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.EqField, "id", 9);
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.PrimaryKey);
+        assertTrue(plan.explain().contains("filter: age > 27 and id = 9"));
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.LtField, "age", 22);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.EqField, "job", "Digging");
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.RangeIndex);
+        assertTrue(plan.explain().contains("range index age < 22 (est. 2 of 10 rows)"));
+
+        qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Bob");
+        qb.add(QueryPart.Command.Or);
+        qb.add(QueryPart.Command.EqField, "job", "Digging");
+        plan = casperDatabase.plan(qb);
+        assertEquals(plan.getAccessPath(), AccessPath.FullScan);
+        assertEquals(plan.execute().size(), 10);
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        casperDatabase.createCollection("people");
+        for (int i = 0; i < 10; i++)
+            casperDatabase.save("people", new TestObject(i, "Bob", 20 + i, "Digging", 'm', 'a'));
+
+        CasperCollection<?> collection = casperDatabase.getCollection("people");
+        long version = collection.getVersion();
+        Iterator<?> it = collection.iterator();
+        casperDatabase.removeOne("people", 0);
+        casperDatabase.save("people", new TestObject(10, "Sue", 30, "Welding", 'f', 'b'));
+        assertNotEquals(collection.getVersion(), version);
+
+        int count = 0;
+        while (it.hasNext()) {
+            assertNotEquals(((TestObject) it.next()).getId(), 10);
+            count++;
+        }
+        assertEquals(count, 10);
+        assertEquals(casperDatabase.count("people"), 10);
+    }
+
+    @Test
+    public void concurrentWrites() throws Exception {
+        casperDatabase.createCollection("people");
+        final CasperCollection<TestObject> collection =
+                (CasperCollection<TestObject>) casperDatabase.getCollection("people");
+        final int writers = 4, records = 2000;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++) {
+            final int offset = w * records;
+            threads[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < offset + records; i++) {
+                            collection.add(new TestObject(i, "Bob", i % 50, "Digging", 'm', 'a'));
+                            if (i % 2 == 0)
+                                collection.removeById(i);
+                        }
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            });
+            threads[w].start();
+        }
+
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread t : threads)
+                running |= t.isAlive();
+
+            int seen = 0;
+            for (TestObject o : collection)
+                seen++;
+            assertTrue(seen <= writers * records);
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        assertNull(error.get());
+        assertEquals(collection.count(), writers * records / 2);
+        assertEquals(collection.toList().size(), writers * records / 2);
+        assertEquals(collection.estimate("name", "Bob"), writers * records / 2);
+        assertEquals(collection.lookup("age", 11, true, 11, true).size(), writers * records / 50);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void concurrentUpserts() throws Exception {
+        casperDatabase.createCollection("people");
+        final CasperCollection<TestObject> collection =
+                (CasperCollection<TestObject>) casperDatabase.getCollection("people");
+        collection.add(new TestObject(1, "Bob", 0, "Digging", 'm', 'a'));
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        // the record exists before and after every write, so no reader may miss it
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i < 20000; i++)
+                        collection.add(new TestObject(1, "Bob", i % 2, "Digging", 'm', 'a'));
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            assertNotNull(collection.get(1));
+            assertEquals(collection.lookup("name", "Bob").size(), 1);
+            assertEquals(collection.lookup("age", 0, true, 1, true).size(), 1);
+        }
+
+        writer.join();
+        assertNull(error.get());
+        assertEquals(collection.lookup("name", "Bob").size(), 1);
+    }
+
+    @Test
+    public void durable() throws Exception {
+        File log = folder.newFile("casper.log");
+        CasperDatabase db = new CasperDatabase(log, FsyncPolicy.GroupCommit, 5);
+        db.createCollection("people");
+        db.createCollection("cats");
+        db.createCollection("dogs");
+        db.save("people", new TestObject(1, "Bob", 30, "Digging", 'm', 'a'));
+        db.saveAll("people", Arrays.asList(
+                new TestObject(2, "Sue", 40, "Welding", 'f', 'b'),
+                new TestObject(3, "Ann", 50, "Welding", 'f', 'c')));
+        db.save("people", new TestObject(1, "Robert", 31, "Digging", 'm', 'a'));
+        db.removeOne("people", 2);
+        db.save("cats", "frank");
+        db.save("cats", "herbert");
+        db.remove("cats", "frank");
+        db.dropCollection("dogs");
+        db.close();
+
+        db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertNull(db.getCollection("dogs"));
+        assertEquals(db.count("people"), 2);
+        List<TestObject> all = db.findAll("people");
+        assertEquals(all.get(0).getName(), "Ann");
+        assertEquals(all.get(1).getName(), "Robert");
+        assertEquals(db.findAll("cats"), Arrays.<Object>asList("herbert"));
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Robert");
+        assertEquals(db.plan(qb).getAccessPath(), AccessPath.HashIndex);
+        assertEquals(db.find(qb).size(), 1);
+
+        db.save("people", new TestObject(4, "Sue", 20, "Welding", 'f', 'b'));
+        db.close();
+
+        db = new CasperDatabase(log, FsyncPolicy.Async, 5);
+        assertEquals(db.count("people"), 3);
+        assertEquals(((TestObject) db.findOne("people", 4)).getName(), "Sue");
+        db.close();
+    }
+
+    @Test
+    public void checkpointCrash() throws Exception {
+        File log = folder.newFile("crash.log");
+        CasperDatabase db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        db.createCollection("cats");
+        db.save("cats", "frank");
+        db.checkpoint();
+        db.save("cats", "herbert");
+        db.close();
+
+        // a crash after a checkpoint moved the log aside but before its snapshot was written
+        assertTrue(log.renameTo(new File(log.getPath() + ".2")));
+        db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertEquals(db.count("cats"), 2);
+        db.save("cats", "tom");
+        db.close();
+        assertTrue(new File(log.getPath() + ".2").exists());
+
+        // the segment the snapshot does not cover is replayed again
+        db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertEquals(db.findAll("cats"), Arrays.<Object>asList("frank", "herbert", "tom"));
+        db.checkpoint();
+        db.close();
+        assertFalse(new File(log.getPath() + ".2").exists());
+
+        db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertEquals(db.count("cats"), 3);
+        db.close();
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        File log = folder.newFile("checkpoint.log");
+        final CasperDatabase db = new CasperDatabase(log, FsyncPolicy.Async, 5);
+        db.createCollection("people");
+        db.createCollection("cats");
+        for (int i = 0; i < 100; i++)
+            db.save("people", new TestObject(i, "Bob", i, "Digging", 'm', 'a'));
+        db.save("cats", "frank");
+        db.checkpoint();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 100; i < 2000; i++) {
+                    db.save("people", new TestObject(i, "Sue", i, "Welding", 'f', 'b'));
+                    if (i % 3 == 0)
+                        db.removeOne("people", i - 100);
+                }
+            }
+        });
+        writer.start();
+        while (writer.isAlive())
+            db.checkpoint();
+        writer.join();
+
+        db.remove("cats", "frank");
+        db.save("cats", "herbert");
+        db.close();
+        assertFalse(new File(log.getPath() + ".1").exists());
+
+        CasperDatabase reopened = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertEquals(reopened.count("people"), 1367);
+        List<TestObject> before = db.findAll("people"), after = reopened.findAll("people");
+        for (int i = 0; i < before.size(); i++)
+            assertEquals(after.get(i).getId(), before.get(i).getId());
+        assertEquals(reopened.findAll("cats"), Arrays.<Object>asList("herbert"));
+        assertNull(reopened.findOne("people", 2));
+        assertEquals(((TestObject) reopened.findOne("people", 1999)).getName(), "Sue");
+
+        QueryBuilder qb = new QueryBuilder("people", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Sue");
+        assertEquals(reopened.find(qb).size(), 1300);
+        reopened.close();
+    }
+
+    @Test
+    public void columnar() throws Exception {
+        casperDatabase.createCollection("scores");
+        for (int i = 0; i < 3000; ++i) {
+            casperDatabase.save("scores", new ColumnarObject(i, "Name" + i % 10,
+                    i % 11 == 0 ? null : i % 50, i / 10.0, i % 2 == 0 ? 'm' : 'f'));
+        }
+
+        QueryBuilder qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name3");
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.LtField, "score", 20.0);
+        assertColumnar(qb);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.Not);
+        qb.add(QueryPart.Command.LikeField, "name", "Name1%");
+        qb.add(QueryPart.Command.Or);
+        qb.add(QueryPart.Command.GeField, "score", 250.5);
+        assertColumnar(qb);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.InField, "age", Arrays.asList(1, 2, null));
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.EqField, "gender", 'm');
+        assertColumnar(qb);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.InField, "age", Arrays.<Object>asList(1L, 2.0));
+        assertColumnar(qb);
+        assertEquals(casperDatabase.find(qb).size(), 110);
+
+        // values are widened to the column's type, and null fields never compare
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.LtField, "age", 20L);
+        qb.add(QueryPart.Command.And);
+        qb.add(QueryPart.Command.GeField, "score", 100);
+        assertColumnar(qb);
+        assertEquals(casperDatabase.find(qb).size(), 728);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.BetweenField, "score", new Object[]{150, 100.5});
+        assertColumnar(qb);
+        assertEquals(casperDatabase.find(qb).size(), 496);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "gender", 'f');
+        qb.add(QueryPart.Command.Limit, 5);
+        assertEquals(casperDatabase.find(qb).size(), 5);
+
+        // removing most rows compacts the columns with the rows
+        for (int i = 0; i < 2500; ++i)
+            casperDatabase.removeOne("scores", i);
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.NeField, "name", "Name5");
+        assertColumnar(qb);
+        assertEquals(casperDatabase.<ColumnarObject>find(qb).get(0).getId(), 2500);
+
+        qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "age", "ten");
+        try {
+            casperDatabase.find(qb);
+            fail("Expected a type mismatch");
+        } catch (CasperException ex) {
+            assertEquals(ex.getMessage(), "Field and value type mismatch");
+        }
+    }
+
+    @Test
+    public void columnarNulls() throws Exception {
+        // one null, then enough values that the columns grow past its bitmap
+        casperDatabase.createCollection("scores");
+        casperDatabase.save("scores", new ColumnarObject(0, "Name0", null, 0.0, 'm'));
+        for (int i = 1; i < 100; ++i)
+            casperDatabase.save("scores", new ColumnarObject(i, "Name" + i, i, i, 'm'));
+
+        QueryBuilder qb = new QueryBuilder("scores", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.GtField, "age", 50);
+        assertColumnar(qb);
+        assertEquals(casperDatabase.find(qb).size(), 49);
+    }
+
+    // the columnar scan must find what a row-by-row scan does, in order
+    private void assertColumnar(QueryBuilder qb) throws CasperException {
+        List<ColumnarObject> all = casperDatabase.findAll("scores");
+        assertEquals(casperDatabase.find(qb), CompiledQuery.compile(qb, 0).execute(all));
+    }
+
+    @Test
+    public void offHeapReclaim() throws Exception {
+        casperDatabase.createCollection("notes");
+        StringBuilder notes = new StringBuilder();
+        for (int i = 0; i < 1000; ++i)
+            notes.append('x');
+
+        // each round writes about a slab's worth of records, then removes
+        // most of the last round's, so every slab keeps a few live rows
+        for (int round = 0; round < 20; ++round) {
+            for (int i = 0; i < 1000; ++i)
+                casperDatabase.save("notes", new OffHeapObject(round * 1000 + i, "Round" + round, notes.toString()));
+            for (int i = 0; round > 0 && i < 1000; ++i) {
+                if (i % 50 != 0)
+                    casperDatabase.removeOne("notes", (round - 1) * 1000 + i);
+            }
+        }
+
+        // the survivors are copied out of the mostly dead slabs
+        CasperCollection<?> collection = casperDatabase.getCollection("notes");
+        assertTrue(collection.reserved() <= 4 * OffHeapStore.SLAB_SIZE);
+        assertEquals(casperDatabase.count("notes"), 1380);
+        OffHeapObject stored = casperDatabase.findOne("notes", 50);
+        assertEquals(stored.getName(), "Round0");
+        assertEquals(stored.getNotes().length(), 1000);
+
+        QueryBuilder qb = new QueryBuilder("notes", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Round3");
+        assertEquals(casperDatabase.find(qb).size(), 20);
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        File log = folder.newFile("casper.log");
+        CasperDatabase db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        db.createCollection("notes");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 300000; ++i)
+            big.append('x');
+        for (int i = 0; i < 5000; ++i)
+            db.save("notes", new OffHeapObject(i, "Name" + i % 10, i == 42 ? big.toString() : "note " + i));
+
+        OffHeapObject stored = db.findOne("notes", 7);
+        assertEquals(stored.getName(), "Name7");
+        assertEquals(stored.getNotes(), "note 7");
+        assertNotSame(stored, db.findOne("notes", 7));
+        assertEquals(((OffHeapObject) db.findOne("notes", 42)).getNotes().length(), 300000);
+
+        db.save("notes", new OffHeapObject(7, "Seven", "changed"));
+        db.removeOne("notes", 8);
+        QueryBuilder qb = new QueryBuilder("notes", QueryBuilder.Type.FIND);
+        qb.add(QueryPart.Command.EqField, "name", "Name7");
+        assertEquals(db.plan(qb).getAccessPath(), AccessPath.HashIndex);
+        assertEquals(db.find(qb).size(), 499);
+
+        // unkeyed records are matched by their fields, not by instance
+        db.createCollection("tags");
+        db.saveAll("tags", Arrays.asList(new Tag("a"), new Tag("b"), new Tag("a")));
+        assertEquals(db.count("tags"), 2);
+        db.remove("tags", new Tag("a"));
+        assertEquals(db.count("tags"), 1);
+        db.checkpoint();
+        db.save("notes", new OffHeapObject(5000, "Name0", "after"));
+        db.close();
+
+        db = new CasperDatabase(log, FsyncPolicy.PerOperation, 0);
+        assertEquals(db.count("notes"), 5000);
+        assertEquals(((OffHeapObject) db.findOne("notes", 7)).getNotes(), "changed");
+        assertEquals(((OffHeapObject) db.findOne("notes", 5000)).getNotes(), "after");
+        assertEquals(((Tag) db.findAll("tags").get(0)).name, "b");
+        db.close();
+    }
+
+    @CasperOffHeap
+    private static class Tag {
+        private final String name;
+
+        Tag(String name) {
+            this.name = name;
+        }
     }
 
     @Test
@@ -0,0 +1,42 @@
+package org.casper.model;
+
+import org.casper.stereotype.CasperColumnar;
+import org.casper.stereotype.CasperId;
+
+@CasperColumnar
+public class ColumnarObject {
+    @CasperId
+    private int id;
+    private String name;
+    private Integer age;
+    private double score;
+    private Character gender;
+
+    public ColumnarObject(int id, String name, Integer age, double score, Character gender) {
+        this.id = id;
+        this.name = name;
+        this.age = age;
+        this.score = score;
+        this.gender = gender;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getAge() {
+        return age;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public Character getGender() {
+        return gender;
+    }
+}
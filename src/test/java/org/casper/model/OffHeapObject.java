@@ -0,0 +1,32 @@
+package org.casper.model;
+
+import org.casper.stereotype.CasperId;
+import org.casper.stereotype.CasperIndexed;
+import org.casper.stereotype.CasperOffHeap;
+
+@CasperOffHeap
+public class OffHeapObject {
+    @CasperId
+    private int id;
+    @CasperIndexed
+    private String name;
+    private String notes;
+
+    public OffHeapObject(int id, String name, String notes) {
+        this.id = id;
+        this.name = name;
+        this.notes = notes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+}
@@ -9,6 +9,7 @@ public class TestObject {
     private int id;
     @CasperIndexed
     private String name;
+    @CasperIndexed(ordered = true)
     private int age;
     private String job;
     private Character gender;
@@ -0,0 +1,207 @@
+package org.casper.persistence;
+
+import org.casper.exception.CasperException;
+import org.casper.model.TestObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replay() throws Exception {
+        File file = folder.newFile("test.log");
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            file.delete();
+            WriteAheadLog log = new WriteAheadLog(file, policy, 5);
+            log.replay(collect(new ArrayList<String>()));
+            for (int i = 0; i < 20; i++)
+                log.sync(log.append(("entry" + i).getBytes("UTF-8")));
+            log.close();
+
+            List<String> entries = new ArrayList<>();
+            log = new WriteAheadLog(file, policy, 5);
+            log.replay(collect(entries));
+            log.close();
+            assertEquals(entries.size(), 20);
+            assertEquals(entries.get(19), "entry19");
+        }
+    }
+
+    @Test
+    public void tornTail() throws Exception {
+        File file = folder.newFile("torn.log");
+        WriteAheadLog log = new WriteAheadLog(file, FsyncPolicy.PerOperation, 0);
+        log.replay(collect(new ArrayList<String>()));
+        log.sync(log.append("first".getBytes("UTF-8")));
+        long end = log.append("second".getBytes("UTF-8"));
+        log.sync(end);
+        log.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(end - 2);
+        }
+
+        List<String> entries = new ArrayList<>();
+        log = new WriteAheadLog(file, FsyncPolicy.PerOperation, 0);
+        log.replay(collect(entries));
+        log.sync(log.append("third".getBytes("UTF-8")));
+        log.close();
+        assertEquals(entries, Arrays.asList("first"));
+
+        entries.clear();
+        log = new WriteAheadLog(file, FsyncPolicy.PerOperation, 0);
+        log.replay(collect(entries));
+        log.close();
+        assertEquals(entries, Arrays.asList("first", "third"));
+    }
+
+    @Test
+    public void codec() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Object[] values = {null, "text", 1, 2L, 3.5, 4.5f, (short) 5, (byte) 6, true, 'c',
+                new Date(1000), new BigDecimal("1.25"), FsyncPolicy.Async, new ArrayList<>(Arrays.asList(1, 2))};
+        for (Object value : values)
+            RecordCodec.write(out, value);
+        RecordCodec.write(out, new TestObject(1, "Bob", 30, "Digging", 'm', null));
+        RecordCodec.write(out, new TestObject(2, "Ann", 40, "Welding", 'f', null));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (Object value : values)
+            assertEquals(RecordCodec.read(in), value);
+
+        TestObject o = (TestObject) RecordCodec.read(in);
+        assertEquals(o.getId(), 1);
+        assertEquals(o.getName(), "Bob");
+        assertEquals(o.getAge(), 30);
+        assertEquals(o.getGender(), Character.valueOf('m'));
+        assertNull(o.getRating());
+
+        // a partial read skips the fields it is not asked for
+        o = (TestObject) RecordCodec.read(in, new HashSet<>(Arrays.asList("name", "age")));
+        assertEquals(o.getName(), "Ann");
+        assertEquals(o.getAge(), 40);
+        assertEquals(o.getId(), 0);
+        assertNull(o.getJob());
+        assertEquals(in.read(), -1);
+    }
+
+    @Test
+    public void codecJdkTypes() throws Exception {
+        Timestamp timestamp = new Timestamp(1000);
+        timestamp.setNanos(123456789);
+        Object[] values = {UUID.randomUUID(), new java.sql.Date(86400000L), new Time(3600000L), timestamp,
+                parse("java.time.LocalDate", "2016-10-18"), parse("java.time.Instant", "2016-10-18T10:15:30.5Z"),
+                parse("java.time.ZonedDateTime", "2016-10-18T10:15:30+02:00[Europe/Paris]"),
+                parse("java.time.Duration", "PT1H30M"), Locale.CANADA_FRENCH};
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Object value : values)
+            RecordCodec.write(out, value);
+        for (int i = 0; i < values.length; i++)
+            RecordCodec.write(out, new Node(i, values[i]));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (Object value : values) {
+            Object read = RecordCodec.read(in);
+            assertEquals(read, value);
+            assertEquals(read.getClass(), value.getClass());
+        }
+
+        // and is skipped by a partial read
+        for (int i = 0; i < values.length; i++) {
+            Node node = (Node) RecordCodec.read(in, Collections.singleton("id"));
+            assertEquals(node.id, i);
+            assertNull(node.value);
+        }
+        assertEquals(in.read(), -1);
+    }
+
+    @Test
+    public void codecRejects() throws Exception {
+        DataOutputStream out = new DataOutputStream(new ByteArrayOutputStream());
+        try {
+            RecordCodec.write(out, new ByteArrayOutputStream());
+            fail();
+        } catch (CasperException ex) {
+            assertTrue(ex.getMessage().contains("not serializable"));
+        }
+
+        Node node = new Node();
+        node.next = new Node();
+        node.next.next = node;
+        try {
+            RecordCodec.write(out, node);
+            fail();
+        } catch (CasperException ex) {
+            assertTrue(ex.getMessage().contains("refers to itself"));
+        }
+
+        // a record reached twice without a cycle is written twice
+        Node shared = new Node();
+        node.next.next = shared;
+        node.other = shared;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordCodec.write(new DataOutputStream(bytes), node);
+        Node read = (Node) RecordCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertNotNull(read.next.next);
+        assertNotNull(read.other);
+    }
+
+    static class Node {
+        int id;
+        Object value;
+        Node next;
+        Node other;
+
+        Node() {
+        }
+
+        Node(int id, Object value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    // builds a java.time value without compiling against it
+    private static Object parse(String type, String text) throws Exception {
+        return Class.forName(type).getMethod("parse", CharSequence.class).invoke(null, text);
+    }
+
+    @Test
+    public void mapped() throws Exception {
+        File file = folder.newFile("mapped.bin");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < 1000; i++)
+                out.writeInt(i);
+        }
+
+        try (DataInputStream in = new DataInputStream(new MappedInputStream(file, 7))) {
+            for (int i = 0; i < 1000; i++)
+                assertEquals(in.readInt(), i);
+            assertEquals(in.read(), -1);
+        }
+    }
+
+    private WriteAheadLog.EntryHandler collect(final List<String> entries) {
+        return new WriteAheadLog.EntryHandler() {
+            @Override
+            public void handle(byte[] entry) throws IOException {
+                entries.add(new String(entry, "UTF-8"));
+            }
+        };
+    }
+}
@@ -0,0 +1,180 @@
+package org.casper.proxy;
+
+import org.casper.database.ChangeEvent;
+import org.casper.database.ChangeListener;
+import org.casper.database.Subscription;
+import org.casper.model.TestObject;
+import org.casper.repository.CasperRepository;
+import org.casper.repository.TestRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CasperRepositoryFactoryTest {
+
+    private TestRepository repository;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = CasperRepositoryFactory.getRepository(TestRepository.class);
+        repository.deleteAll(repository.findAll());
+        repository.saveAll(Arrays.asList(
+                new TestObject(1, "Bob", 30, "Digging", 'm', 'a'),
+                new TestObject(2, "Sue", 40, "Welding", 'f', 'b'),
+                new TestObject(3, "Bob", 50, "Welding", 'm', 'c'),
+                new TestObject(4, "Ann", 60, "Digging", 'f', 'c')));
+    }
+
+    @Test
+    public void remove() throws Exception {
+        repository.remove(Arrays.asList(repository.findOne(1), repository.findOne(2)));
+        assertEquals(repository.count(), 2);
+
+        repository.delete(new TestObject[]{repository.findOne(3)});
+        assertEquals(repository.count(), 1);
+        assertNotNull(repository.findOne(4));
+    }
+
+    @Test
+    public void between() throws Exception {
+        assertEquals(repository.findByAgeBetween(40, 60).size(), 3);
+        assertEquals(repository.findByAgeBetweenAndJob(30, 50, "Welding").size(), 2);
+    }
+
+    @Test
+    public void iterate() throws Exception {
+        Iterator<TestObject> it = repository.findByJob("Welding").iterator();
+        assertEquals(it.next().getId(), 2);
+        assertEquals(it.next().getId(), 3);
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void orderBy() throws Exception {
+        List<TestObject> r = repository.findByJobOrderByAgeDesc("Welding");
+        assertEquals(r.get(0).getId(), 3);
+        assertEquals(r.get(1).getId(), 2);
+
+        r = repository.findAllOrderByNameAscAgeDesc();
+        assertEquals(r.size(), 4);
+        assertEquals(r.get(0).getName(), "Ann");
+        assertEquals(r.get(1).getId(), 3);
+        assertEquals(r.get(2).getId(), 1);
+
+        r = repository.findByGenderOrderByNameLimit('f', 1);
+        assertEquals(r.size(), 1);
+        assertEquals(r.get(0).getName(), "Ann");
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        assertEquals(repository.countByJob("Welding"), 2L);
+        assertEquals(repository.sumAgeByName("Bob"), 80);
+        assertEquals(repository.sumAgeByName("Nobody"), 0);
+        assertEquals(repository.avgAgeByJob("Digging"), 45.0, 0.0);
+        assertEquals(repository.countGroupByJob().get("Digging"), Long.valueOf(2));
+        assertEquals(repository.sumAgeByJob().get("Welding"), Long.valueOf(90));
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        final BlockingQueue<ChangeEvent<TestObject>> all = new LinkedBlockingQueue<>();
+        final BlockingQueue<ChangeEvent<TestObject>> welders = new LinkedBlockingQueue<>();
+        Subscription a = repository.subscribe(new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                all.add(event);
+            }
+        });
+        Subscription w = repository.subscribeByJob("Welding", new ChangeListener<TestObject>() {
+            @Override
+            public void onChange(ChangeEvent<TestObject> event) {
+                welders.add(event);
+            }
+        });
+
+        try {
+            repository.save(new TestObject(5, "Tom", 20, "Digging", 'm', 'a'));
+            repository.save(new TestObject(1, "Bob", 30, "Welding", 'm', 'a'));
+
+            assertEquals(all.poll(5, TimeUnit.SECONDS).getType(), ChangeEvent.Type.Insert);
+            assertEquals(all.poll(5, TimeUnit.SECONDS).getType(), ChangeEvent.Type.Update);
+            ChangeEvent<TestObject> e = welders.poll(5, TimeUnit.SECONDS);
+            assertEquals(e.getType(), ChangeEvent.Type.Insert);
+            assertEquals(e.getOldValue().getJob(), "Digging");
+            assertEquals(e.getNewValue().getId(), 1);
+            assertTrue(welders.isEmpty());
+        } finally {
+            a.cancel();
+            w.cancel();
+        }
+    }
+
+    @Test
+    public void select() throws Exception {
+        List<Object[]> rows = repository.findNameAndAgeByJob("Welding");
+        assertEquals(rows.size(), 2);
+        assertArrayEquals(rows.get(0), new Object[]{"Sue", 40});
+        assertArrayEquals(rows.get(1), new Object[]{"Bob", 50});
+
+        List<TestRepository.NameAndAge> women = repository.findByGenderOrderByAgeDesc('f');
+        assertEquals(women.size(), 2);
+        assertEquals(women.get(0).getName(), "Ann");
+        assertEquals(women.get(0).getAge(), 60);
+        assertEquals(women.get(1).toString(), "NameAndAge{age=40, name=Sue}");
+
+        TestRepository.NameAndAge bob = repository.findOneById(1);
+        assertEquals(bob.getName(), "Bob");
+        assertEquals(bob, repository.findOneById(1));
+        assertEquals(bob.hashCode(), repository.findOneById(1).hashCode());
+        assertNotEquals(bob, women.get(0));
+        assertSame(bob.getClass(), women.get(0).getClass());
+
+        // a null read through a primitive getter is zero
+        TestRepository.NameAndAge nobody = (TestRepository.NameAndAge)
+                ProjectionHandler.wrap(TestRepository.NameAndAge.class, new Object[]{null, null});
+        assertEquals(nobody.getAge(), 0);
+        assertNull(nobody.getName());
+    }
+
+    @Test
+    public void getRepository() throws Exception {
+        assertSame(CasperRepositoryFactory.getRepository(TestRepository.class), repository);
+        assertEquals(repository, repository);
+        assertEquals(repository.toString(), "CasperRepository(TestRepository)");
+        assertEquals(repository.count(), 4);
+    }
+
+    @Test
+    public void invalidMethod() throws Exception {
+        // the name is parsed when the repository is created, not when it is called
+        try {
+            CasperRepositoryFactory.getRepository(BrokenRepository.class);
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), "Invalid number of arguments: findByNameAndJob");
+        }
+    }
+
+    private interface BrokenRepository extends CasperRepository<TestObject> {
+        List<TestObject> findByNameAndJob(String name);
+    }
+
+    @Test
+    public void deleteBy() throws Exception {
+        assertEquals(repository.deleteByName("Bob"), 2);
+        assertEquals(repository.count(), 2);
+        assertEquals(repository.findByName("Bob").size(), 0);
+
+        assertEquals(repository.removeByJobAndName("Digging", "Ann"), 1L);
+        assertEquals(repository.count(), 1);
+    }
+}
@@ -1,11 +1,24 @@
 package org.casper.query;
 
+import org.casper.exception.CasperException;
 import org.casper.model.TestObject;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.casper.query.Parameter.param;
+import static org.junit.Assert.*;
 
 
 public class ListQueryTest {
@@ -40,7 +53,8 @@ public class ListQueryTest {
 
     @Test
     public void ne() throws Exception {
-
+        List<TestObject> r = query.ne("age", 20).execute();
+        assertEquals(r.size(), 9);
     }
 
     @Test
@@ -60,7 +74,40 @@ public class ListQueryTest {
 
     @Test
     public void lt() throws Exception {
+        assertEquals(ListQuery.from(list).where("age").lt(25).execute().size(), 5);
+        assertEquals(ListQuery.from(list).where("age").lt(25L).execute().size(), 5);
+        assertEquals(ListQuery.from(list).where("age").lt(24.5).execute().size(), 5);
+    }
 
+    @Test
+    public void between() throws Exception {
+        List<TestObject> r = ListQuery.from(list).where("age").between(22, 24).execute();
+        assertEquals(r.size(), 3);
+        assertEquals(r.get(0).getAge(), 22);
+        assertEquals(ListQuery.from(list).between("age", 24.5, 21.5).execute().size(), 3);
+        assertEquals(ListQuery.from(list).not().between("age", 0, 10000000).execute().size(), 0);
+    }
+
+    @Test
+    public void iterate() throws Exception {
+        List<Object> mixed = new ArrayList<Object>(list);
+        mixed.add("not a record");
+
+        Iterator<Object> it = ListQuery.from(mixed).where("age").ge(22).limit(3).iterate().iterator();
+        assertEquals(((TestObject) it.next()).getAge(), 22);
+        assertEquals(((TestObject) it.next()).getAge(), 23);
+        assertEquals(((TestObject) it.next()).getAge(), 24);
+        assertFalse(it.hasNext());
+
+        int seen = 0;
+        try {
+            for (Object o : ListQuery.from(mixed).where("age").ge(22).iterate())
+                seen++;
+            fail();
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getCause() instanceof CasperException);
+            assertEquals(seen, 8);
+        }
     }
 
     @Test
@@ -100,7 +147,10 @@ public class ListQueryTest {
 
     @Test
     public void in() throws Exception {
-
+        // numbers match across types, as they do in comparisons
+        assertEquals(ListQuery.from(list).where("age").in(Arrays.<Object>asList(21L, 22.0, 99)).execute().size(), 2);
+        assertEquals(ListQuery.from(list).where("age").in(Arrays.<Object>asList(21.5)).execute().size(), 0);
+        assertEquals(ListQuery.from(list).where("gender").in(Arrays.<Object>asList('m')).execute().size(), 10);
     }
 
     @Test
@@ -130,7 +180,8 @@ public class ListQueryTest {
 
     @Test
     public void and() throws Exception {
-
+        List<TestObject> r = query.eq("job", "Digging").and().lt("age", 23).execute();
+        assertEquals(r.size(), 3);
     }
 
     @Test
@@ -140,7 +191,8 @@ public class ListQueryTest {
 
     @Test
     public void or() throws Exception {
-
+        List<TestObject> r = query.eq("age", 20).or().eq("age", 29).execute();
+        assertEquals(r.size(), 2);
     }
 
     @Test
@@ -150,7 +202,8 @@ public class ListQueryTest {
 
     @Test
     public void not() throws Exception {
-
+        List<TestObject> r = query.not().like("name", "Name1%").execute();
+        assertEquals(r.size(), 9);
     }
 
     @Test
@@ -165,18 +218,199 @@ public class ListQueryTest {
 
     @Test
     public void limit() throws Exception {
-
+        List<TestObject> r = query.gt("age", 0).limit(4).execute();
+        assertEquals(r.size(), 4);
+        assertEquals(r.get(3).getAge(), 23);
     }
 
     @Test
     public void execute() throws Exception {
+        query.where("name").like("Name%").and("age").gt(24).or("job").eq("Fishing");
+        assertEquals(query.execute().size(), 5);
+        assertEquals(query.execute().size(), 5);
+        assertEquals(query.reset().execute().size(), 10);
+    }
+
+    @Test
+    public void compile() throws Exception {
+        final CompiledQuery q = query.where("age").ge(25).and().not().eq(27).compile();
+        assertEquals(q.execute(list).size(), 4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return q.execute(list).size();
+                    }
+                }));
+            }
+
+            for (Future<Integer> f : futures)
+                assertEquals(f.get().intValue(), 4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        List<TestObject> big = new ArrayList<>();
+        for (int i = 0; i < 50000; ++i)
+            big.add(new TestObject(i, "Name" + i, i % 100, "Digging", 'm', 'a'));
+
+        List<TestObject> expected = ListQuery.from(big).where("age").lt(10).execute();
+        List<TestObject> actual = ListQuery.from(big).where("age").lt(10).parallel().threshold(1000).execute();
+        assertEquals(actual, expected);
+
+        List<TestObject> limited = ListQuery.from(big).where("age").eq(42).limit(7).parallel().execute();
+        assertEquals(limited.size(), 7);
+        assertEquals(limited, ListQuery.from(big).where("age").eq(42).limit(7).execute());
+        assertEquals(limited.get(6).getId(), 642);
+    }
+
+    @Test
+    public void orderBy() throws Exception {
+        List<TestObject> people = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i)
+            people.add(new TestObject(i, i % 3 == 0 ? null : "Name" + (i % 7), (i * 37) % 100, "Digging", 'm', 'a'));
+
+        List<TestObject> sorted = ListQuery.from(people).orderBy("age").execute();
+        assertEquals(sorted.size(), 1000);
+        for (int i = 1; i < sorted.size(); ++i) {
+            TestObject a = sorted.get(i - 1), b = sorted.get(i);
+            assertTrue(a.getAge() < b.getAge() || (a.getAge() == b.getAge() && a.getId() < b.getId()));
+        }
+
+        // the bounded heap keeps the same first results as a full sort, ties in source order
+        List<TestObject> top = ListQuery.from(people).where("age").ge(10).orderByDesc("age").limit(25).execute();
+        List<TestObject> all = ListQuery.from(people).where("age").ge(10).orderByDesc("age").execute();
+        assertEquals(top, all.subList(0, 25));
+        assertEquals(top.get(0).getAge(), 99);
+        assertEquals(top.get(0).getId(), 27);
+        assertEquals(top.get(1).getId(), 127);
+
+        List<TestObject> parallel = ListQuery.from(people).where("age").ge(10).orderByDesc("age").limit(25)
+                .parallel().threshold(100).execute();
+        assertEquals(parallel, top);
+
+        // nulls last, then the second key breaks ties
+        List<TestObject> byName = ListQuery.from(people).orderBy("name").orderByDesc("age").execute();
+        assertEquals(byName.get(0).getName(), "Name0");
+        assertNull(byName.get(999).getName());
+        assertTrue(byName.get(0).getAge() >= byName.get(1).getAge());
+
+        Iterator<Object> it = ListQuery.from(people).orderBy("age").limit(2).iterate().iterator();
+        assertEquals(((TestObject) it.next()).getAge(), 0);
+        assertEquals(((TestObject) it.next()).getAge(), 0);
+        assertFalse(it.hasNext());
+
+        assertTrue(ListQuery.from(people).orderByDesc("age").orderBy("name").limit(3).explain()
+                .endsWith("  order: age desc, name\n  limit: 3"));
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        assertEquals(query.count(), 10);
+        assertEquals(ListQuery.from(list).where("age").lt(25).count(), 5);
+        assertEquals(query.sum("age"), 245L);
+        assertEquals(query.avg("age"), 24.5, 0.0);
+        assertEquals(ListQuery.from(list).where("age").gt(22).<Integer>min("age"), Integer.valueOf(23));
+        assertEquals(query.<String>max("name"), "Name9");
+        assertNull(ListQuery.from(list).where("age").gt(99).sum("age"));
+
+        list.add(new TestObject(10, "Name10", 40, "Welding", 'f', 'b'));
+        list.add(new TestObject(11, "Name11", 41, "Welding", 'f', 'b'));
+        Map<String, Long> counts = ListQuery.from(list).countBy("job");
+        assertEquals(counts.keySet(), new LinkedHashSet<>(Arrays.asList("Digging", "Welding")));
+        assertEquals(counts.get("Digging"), Long.valueOf(10));
+        assertEquals(counts.get("Welding"), Long.valueOf(2));
+
+        Map<Character, Number> sums = ListQuery.from(list).where("age").gt(28).groupBy("gender", QueryPart.Command.Sum, "age");
+        assertEquals(sums.get('m'), 29L);
+        assertEquals(sums.get('f'), 81L);
+
+        try {
+            query.sum("job");
+            fail();
+        } catch (CasperException ex) {
+            assertEquals(ex.getMessage(), "Field is not a number");
+        }
+    }
 
+    @Test
+    public void select() throws Exception {
+        List<Object[]> rows = ListQuery.from(list).where("age").ge(27).select("id", "name").execute();
+        assertEquals(rows.size(), 3);
+        assertArrayEquals(rows.get(0), new Object[]{7, "Name7"});
+        assertArrayEquals(rows.get(2), new Object[]{9, "Name9"});
+
+        // sorting reads the record, the projection is applied to the results
+        List<Object[]> top = ListQuery.from(list).orderByDesc("age").select("name").limit(2).execute();
+        assertArrayEquals(top.get(0), new Object[]{"Name9"});
+        assertArrayEquals(top.get(1), new Object[]{"Name8"});
+
+        Iterator<Object[]> it = ListQuery.from(list).where("id").eq(4).select("job", "age").<Object[]>iterate().iterator();
+        assertArrayEquals(it.next(), new Object[]{"Digging", 24});
+        assertFalse(it.hasNext());
+
+        assertTrue(ListQuery.from(list).select("id", "name").explain().startsWith("select id, name from "));
+
+        try {
+            ListQuery.from(list).select("salary").execute();
+            fail();
+        } catch (CasperException ex) {
+            // no such field
+        }
+    }
+
+    @Test
+    public void prepare() throws Exception {
+        PreparedQuery q = ListQuery.from(list).where("age").gt(param(0)).and("name").like(param(1)).prepare();
+        assertEquals(q.execute(25, "Name%").size(), 4);
+        assertEquals(q.execute(20, "Name2").size(), 1);
+        assertEquals(q.<TestObject>execute(28, "%9").get(0).getId(), 9);
+
+        // the builder can change without affecting the prepared query
+        ListQuery<List<TestObject>> builder = ListQuery.from(list).where("job").eq(param("job"))
+                .and("id").in(Arrays.<Object>asList(param("a"), param("b")));
+        PreparedQuery named = builder.prepare();
+        builder.and("age").lt(0);
+        Map<String, Object> args = new HashMap<>();
+        args.put("job", "Digging");
+        args.put("a", 3);
+        args.put("b", 7);
+        assertEquals(named.execute(args).size(), 2);
+
+        Iterator<TestObject> it = ListQuery.from(list).where("age").between(param(0), param(1)).prepare()
+                .<TestObject>iterate(21, 22).iterator();
+        assertEquals(it.next().getAge(), 21);
+        assertEquals(it.next().getAge(), 22);
+        assertFalse(it.hasNext());
+
+        try {
+            q.execute(25);
+            fail();
+        } catch (CasperException ex) {
+            assertEquals(ex.getMessage(), "Parameter is not bound: ?1");
+        }
+
+        // an unbound query is still explained
+        assertTrue(ListQuery.from(list).where("name").eq(param("name")).explain().contains("name = :name"));
     }
 
     @Test
     public void toString1() throws Exception {
         String q = query.where("name").like("Name%").and("age").gt(0).or("job").eq("Digging").toString();
-        System.out.println(q);
+        assertEquals(q, "select * from ArrayList\n"
+                + "  access: full scan (est. 10 of 10 rows)\n"
+                + "  filter: (name like 'Name%' and age > 0) or job = 'Digging'");
+
+        q = ListQuery.from(list).where("age").gt(0).and("name").eq("Name1").limit(1).toString();
+        assertTrue(q.contains("filter: name = 'Name1' and age > 0"));
+        assertTrue(q.contains("limit: 1"));
     }
 
 }
\ No newline at end of file
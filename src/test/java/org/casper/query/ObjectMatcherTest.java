@@ -105,6 +105,20 @@ public class ObjectMatcherTest {
         assertFalse(matcher.isMatch());
     }
 
+    @Test
+    public void likeLiteral() throws Exception {
+        matcher.like("name", "J.hn");
+        assertFalse(matcher.isMatch());
+        matcher.like("name", "J%n");
+        assertTrue(matcher.isMatch());
+        matcher.like("job", "Fighting%100\\%%time");
+        assertTrue(matcher.isMatch());
+        matcher.like("job", "%(clowns)%");
+        assertFalse(matcher.isMatch());
+        matcher.like("job", "%");
+        assertTrue(matcher.isMatch());
+    }
+
     @Test
     public void like1() throws Exception {
         matcher.where("name");
@@ -264,6 +278,12 @@ public class ObjectMatcherTest {
         matcher.between("age", 40, 20);
         assertTrue(matcher.isMatch());
 
+        matcher.between("age", 29.5, 30.5);
+        assertTrue(matcher.isMatch());
+        matcher.between("age", 30.5, 31.5);
+        assertFalse(matcher.isMatch());
+        matcher.not().between("age", 0, 10000000);
+        assertFalse(matcher.isMatch());
     }
 
     @Test
@@ -1,8 +1,53 @@
 package org.casper.repository;
 
 
+import org.casper.database.ChangeListener;
+import org.casper.database.Subscription;
 import org.casper.model.TestObject;
 
+import java.util.List;
+import java.util.Map;
+
 public interface TestRepository extends CasperRepository<TestObject> {
+    List<TestObject> findByName(String name);
+
+    List<TestObject> findByAgeBetween(int start, int end);
+
+    Iterable<TestObject> findByJob(String job);
+
+    List<TestObject> findByAgeBetweenAndJob(int start, int end, String job);
+
+    List<TestObject> findByJobOrderByAgeDesc(String job);
+
+    List<TestObject> findAllOrderByNameAscAgeDesc();
+
+    List<TestObject> findByGenderOrderByNameLimit(Character gender, int limit);
+
+    List<Object[]> findNameAndAgeByJob(String job);
+
+    List<NameAndAge> findByGenderOrderByAgeDesc(Character gender);
+
+    NameAndAge findOneById(int id);
+
+    long countByJob(String job);
+
+    int sumAgeByName(String name);
+
+    double avgAgeByJob(String job);
+
+    Map<String, Long> countGroupByJob();
+
+    Map<String, Long> sumAgeByJob();
+
+    int deleteByName(String name);
+
+    long removeByJobAndName(String job, String name);
+
+    Subscription subscribeByJob(String job, ChangeListener<TestObject> listener);
+
+    interface NameAndAge {
+        String getName();
 
+        int getAge();
+    }
 }
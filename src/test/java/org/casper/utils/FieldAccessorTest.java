@@ -0,0 +1,60 @@
+package org.casper.utils;
+
+import org.casper.exception.CasperException;
+import org.casper.model.TestObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class FieldAccessorTest {
+
+    @Test
+    public void get() throws Exception {
+        TestObject o = new TestObject(1, "John", 30, "Digging", 'm', 'a');
+        assertEquals(FieldAccessor.of(TestObject.class, "name").get(o), "John");
+        assertEquals(FieldAccessor.of(TestObject.class, "age").get(o), 30);
+        assertEquals(FieldAccessor.of(TestObject.class, "age").getType(), int.class);
+    }
+
+    @Test
+    public void unboxed() throws Exception {
+        TestObject o = new TestObject(1, "John", 30, "Digging", 'm', 'a');
+        FieldAccessor age = FieldAccessor.of(TestObject.class, "age");
+        assertTrue(age.isIntegral());
+        assertFalse(age.isFloating());
+        assertEquals(age.getLong(o), 30L);
+        assertFalse(FieldAccessor.of(TestObject.class, "gender").isIntegral());
+    }
+
+    @Test
+    public void cached() throws Exception {
+        assertSame(FieldAccessor.of(TestObject.class, "name"), FieldAccessor.of(TestObject.class, "name"));
+    }
+
+    @Test
+    public void inherited() throws Exception {
+        Child c = new Child();
+        assertEquals(FieldAccessor.of(Child.class, "name").get(c), "parent");
+        assertEquals(FieldAccessor.of(Child.class, "toy").get(c), "ball");
+        assertEquals(CasperUtils.getFieldValue(c, "name"), "parent");
+    }
+
+    @Test
+    public void missing() throws Exception {
+        try {
+            FieldAccessor.of(TestObject.class, "missing");
+            fail();
+        } catch (CasperException ex) {
+            assertTrue(ex.getCause() instanceof NoSuchFieldException);
+        }
+    }
+
+    private static class Parent {
+        private String name = "parent";
+    }
+
+    private static class Child extends Parent {
+        private String toy = "ball";
+    }
+}
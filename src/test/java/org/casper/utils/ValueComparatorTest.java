@@ -0,0 +1,99 @@
+package org.casper.utils;
+
+import org.casper.exception.CasperException;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+import static org.casper.utils.CasperUtils.Mode.*;
+import static org.casper.utils.CasperUtils.compareValue;
+import static org.casper.utils.ValueComparator.UNORDERED;
+import static org.junit.Assert.*;
+
+
+public class ValueComparatorTest {
+
+    @Test
+    public void widening() throws Exception {
+        assertEquals(compareValue(5, 5L, Exact), 0);
+        assertEquals(compareValue((short) 5, 6, LessThan), -1);
+        assertEquals(compareValue(5L, 4.5, Exact), 1);
+        assertEquals(compareValue(5, 5.0f, Exact), 0);
+        assertEquals(compareValue(2.5, 3, Exact), -1);
+        assertEquals(compareValue(5, new BigDecimal("5.00"), Exact), 0);
+        assertEquals(compareValue(new BigInteger("5"), 5.5, Exact), -1);
+        assertEquals(compareValue(new BigDecimal("0.1"), 0.1, Exact), -1);
+    }
+
+    @Test
+    public void key() throws Exception {
+        assertEquals(ValueComparator.key(5), 5L);
+        assertEquals(ValueComparator.key((byte) 5), ValueComparator.key(5.0f));
+        assertEquals(ValueComparator.key(new BigDecimal("5.00")), 5L);
+        assertEquals(ValueComparator.key(new BigDecimal("2.5")), 2.5);
+        assertEquals(ValueComparator.key(0x1p70), ValueComparator.key(BigInteger.ONE.shiftLeft(70)));
+        assertEquals(ValueComparator.key(-0.0), 0L);
+        assertEquals(ValueComparator.key(Size.Small), "Small");
+        assertEquals(ValueComparator.key('a'), 'a');
+        assertNull(ValueComparator.key(null));
+    }
+
+    @Test
+    public void precision() throws Exception {
+        assertEquals(compareValue(Long.MAX_VALUE - 1, Long.MAX_VALUE, Exact), -1);
+        assertEquals(compareValue(9007199254740993L, 9007199254740992.0, Exact), 1);
+        assertEquals(ValueComparator.compare(-3L, -2.5), -1);
+        assertEquals(ValueComparator.compare(-2L, -2.5), 1);
+        assertEquals(ValueComparator.compare(Long.MAX_VALUE, 0x1p63), -1);
+        assertEquals(ValueComparator.compare(0.0, -0.0), 0);
+        assertEquals(ValueComparator.compare(Double.NaN, 1.0), 1);
+        assertEquals(ValueComparator.compare(Double.NaN, Double.NaN), 0);
+    }
+
+    @Test
+    public void comparable() throws Exception {
+        assertEquals(compareValue("apple", "banana", LessThan), -1);
+        assertEquals(compareValue("Apple", "apple", IgnoreCase), 0);
+        assertEquals(compareValue("Apple", "pear", IgnoreCase), UNORDERED);
+        assertEquals(compareValue("Apple", "A.*", Regex), 0);
+        assertEquals(compareValue(new Date(1000), new Date(2000), Exact), -1);
+        assertEquals(compareValue(Size.Large, Size.Small, Exact), 1);
+        assertEquals(compareValue(Size.Small, "Small", Exact), 0);
+        assertEquals(compareValue(Size.Small, "Huge", Exact), UNORDERED);
+        assertEquals(compareValue('a', 'b', Exact), -1);
+        assertEquals(compareValue(true, false, Exact), 1);
+    }
+
+    @Test
+    public void nulls() throws Exception {
+        assertEquals(compareValue(null, null, Exact), 0);
+        assertEquals(compareValue(null, 1, LessThan), UNORDERED);
+        assertEquals(compareValue("a", null, Exact), UNORDERED);
+        assertEquals(compareValue(2L, new Object[]{1, 2}, In), 0);
+    }
+
+    @Test
+    public void mismatch() throws Exception {
+        Object[][] pairs = {{1, "1"}, {"1", 1}, {'a', "a"}, {new Date(), 1L}, {Size.Small, 0}, {new Object(), "x"}};
+        for (Object[] pair : pairs) {
+            try {
+                compareValue(pair[0], pair[1], Exact);
+                fail(pair[0] + " against " + pair[1]);
+            } catch (CasperException ex) {
+                assertEquals(ex.getMessage(), "Field and value type mismatch");
+            }
+        }
+    }
+
+    @Test
+    public void shared() throws Exception {
+        assertSame(ValueComparator.of(int.class), ValueComparator.of(Long.class));
+        assertNotSame(ValueComparator.of(double.class), ValueComparator.of(long.class));
+    }
+
+    private enum Size {
+        Small, Large
+    }
+}